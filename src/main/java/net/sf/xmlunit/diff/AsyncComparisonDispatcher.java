@@ -0,0 +1,333 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import net.sf.xmlunit.exceptions.XMLUnitException;
+
+/**
+ * Bounded single-producer ring buffer that passes comparisons to
+ * listeners on consumer tasks run by an Executor.
+ *
+ * <p>{@link #publish publish} must not be invoked by more than one
+ * thread at a time.  Each consumer has a listener of its own and
+ * reads the buffer independently of the others, it delivers all
+ * comparisons that have been published when it wakes up as a single
+ * batch and only then frees their slots.  A slot can be reused once
+ * all consumers have freed it.</p>
+ */
+final class AsyncComparisonDispatcher {
+    /**
+     * Number of times the YIELDING strategy yields before it blocks.
+     */
+    private static final int MAX_YIELDS = 1 << 10;
+
+    private final ComparisonListener[] targets;
+    private final ComparisonListenerSupport.Backpressure backpressure;
+    private final ComparisonListenerSupport.WaitStrategy waitStrategy;
+    private final Comparison<?, ?>[] comparisons;
+    private final ComparisonResult[] outcomes;
+    private final int mask;
+
+    /**
+     * Sequence of the next comparison to publish.
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong[] heads = new AtomicLong[] { head };
+    /**
+     * Sequence of the next comparison to deliver, per consumer.
+     */
+    private final AtomicLong[] tails;
+    /**
+     * Slots up to this sequence don't reference comparisons anymore.
+     */
+    private long cleared = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+    /**
+     * Why a consumer has terminated before the dispatcher has been
+     * closed.
+     */
+    private final AtomicReference<Throwable> stopped =
+        new AtomicReference<Throwable>();
+    private volatile boolean closed = false;
+    /**
+     * Thread currently inside {@link #start start}.
+     */
+    private volatile Thread starter;
+    private volatile boolean ranOnStarter = false;
+
+    /**
+     * Monitor of threads waiting with the BLOCKING strategy.
+     */
+    private final Object lock = new Object();
+    private volatile int waiters = 0;
+
+    /**
+     * @param targets one listener per consumer
+     */
+    AsyncComparisonDispatcher(ComparisonListener[] targets, int capacity,
+                              ComparisonListenerSupport.Backpressure
+                              backpressure,
+                              ComparisonListenerSupport.WaitStrategy
+                              waitStrategy) {
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.targets = targets;
+        this.backpressure = backpressure;
+        this.waitStrategy = waitStrategy;
+        comparisons = new Comparison<?, ?>[size];
+        outcomes = new ComparisonResult[size];
+        mask = size - 1;
+        tails = new AtomicLong[targets.length];
+        for (int i = 0; i < tails.length; i++) {
+            tails[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Starts the consumers.
+     *
+     * <p>Returns false and stops the consumers if the executor runs
+     * any of them on the calling thread - like {@code Runnable::run}
+     * or a pool that is saturated and uses the CallerRunsPolicy - the
+     * consumer would never return otherwise.</p>
+     */
+    boolean start(Executor executor) {
+        starter = Thread.currentThread();
+        try {
+            for (int i = 0; i < targets.length && !ranOnStarter; i++) {
+                executor.execute(new Consumer(i));
+            }
+        } finally {
+            starter = null;
+        }
+        if (ranOnStarter) {
+            closed = true;
+            signal();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a comparison to the buffer, waits for a free slot or drops
+     * the comparison if the buffer is full.
+     *
+     * @throws XMLUnitException if a consumer has terminated
+     * unexpectedly
+     */
+    void publish(Comparison<?, ?> comparison, ComparisonResult outcome) {
+        checkConsumers();
+        final long seq = head.get();
+        if (seq - minimum(tails) > mask) {
+            if (backpressure == ComparisonListenerSupport.Backpressure.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            await(tails, seq - mask);
+            checkConsumers();
+        }
+        final int slot = (int) seq & mask;
+        comparisons[slot] = comparison;
+        outcomes[slot] = outcome;
+        head.set(seq + 1);
+        signal();
+    }
+
+    /**
+     * Waits until all published comparisons have been delivered and
+     * rethrows the first exception thrown by a listener since the
+     * last flush.
+     *
+     * @throws XMLUnitException if a consumer has terminated
+     * unexpectedly
+     */
+    void flush() {
+        final long published = head.get();
+        await(tails, published);
+        checkConsumers();
+        // don't keep the comparisons of a finished compare call alive
+        for (long seq = Math.max(cleared, published - mask - 1);
+             seq < published; seq++) {
+            final int slot = (int) seq & mask;
+            comparisons[slot] = null;
+            outcomes[slot] = null;
+        }
+        cleared = published;
+        Throwable t = failure.getAndSet(null);
+        if (t != null) {
+            throw new XMLUnitException("Caught exception in"
+                                       + " ComparisonListener", t);
+        }
+    }
+
+    /**
+     * Flushes the buffer and stops the consumers.
+     */
+    void close() {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            signal();
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Reads the buffer and passes the comparisons to one listener.
+     */
+    private class Consumer implements Runnable {
+        private final int index;
+
+        private Consumer(int index) {
+            this.index = index;
+        }
+
+        public void run() {
+            if (Thread.currentThread() == starter) {
+                ranOnStarter = true;
+                return;
+            }
+            try {
+                consume();
+            } catch (RuntimeException ex) {
+                // most likely interrupted, producers must not wait for
+                // a consumer that is gone
+                stop(ex);
+            } catch (Error err) {
+                stop(err);
+                throw err;
+            }
+        }
+
+        private void consume() {
+            final AtomicLong tail = tails[index];
+            final ComparisonListener target = targets[index];
+            long next = tail.get();
+            while (true) {
+                final long available = head.get();
+                if (available == next) {
+                    if (closed) {
+                        return;
+                    }
+                    await(heads, next + 1);
+                    continue;
+                }
+                for (long seq = next; seq < available; seq++) {
+                    final int slot = (int) seq & mask;
+                    deliver(target, comparisons[slot], outcomes[slot]);
+                }
+                next = available;
+                tail.set(next);
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Passes a comparison to a listener unless any listener has
+     * failed before, the buffer is drained anyway so the producer
+     * can't get stuck.
+     */
+    private void deliver(ComparisonListener target,
+                         Comparison<?, ?> comparison,
+                         ComparisonResult outcome) {
+        if (failure.get() == null) {
+            try {
+                target.comparisonPerformed(comparison, outcome);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+    }
+
+    private void stop(Throwable cause) {
+        stopped.compareAndSet(null, cause);
+        signal();
+    }
+
+    private void checkConsumers() {
+        Throwable t = stopped.get();
+        if (t != null) {
+            throw new XMLUnitException("Asynchronous dispatch of"
+                                       + " comparisons has stopped", t);
+        }
+    }
+
+    private static long minimum(AtomicLong[] sequences) {
+        long min = sequences[0].get();
+        for (int i = 1; i < sequences.length; i++) {
+            min = Math.min(min, sequences[i].get());
+        }
+        return min;
+    }
+
+    private boolean isDone(AtomicLong[] sequences, long value) {
+        return minimum(sequences) >= value || closed || stopped.get() != null;
+    }
+
+    /**
+     * Waits until all sequences have reached the given value, the
+     * dispatcher has been closed or a consumer has terminated.
+     *
+     * <p>The YIELDING strategy yields the processor a limited number
+     * of times and blocks afterwards, so an idle consumer doesn't
+     * keep a core busy.</p>
+     */
+    private void await(AtomicLong[] sequences, long value) {
+        if (waitStrategy == ComparisonListenerSupport.WaitStrategy.YIELDING) {
+            for (int i = 0; i < MAX_YIELDS; i++) {
+                if (isDone(sequences, value)) {
+                    return;
+                }
+                Thread.yield();
+            }
+        }
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (!isDone(sequences, value)) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new XMLUnitException("Interrupted while waiting for"
+                                           + " ComparisonListener", ex);
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Wakes up all blocked threads.
+     */
+    private void signal() {
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
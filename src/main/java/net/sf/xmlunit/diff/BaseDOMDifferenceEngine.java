@@ -14,11 +14,9 @@
 
 package net.sf.xmlunit.diff;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeSet;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
@@ -27,7 +25,6 @@ import net.sf.xmlunit.exceptions.XMLUnitException;
 import net.sf.xmlunit.util.Convert;
 import net.sf.xmlunit.util.IterableNodeList;
 import net.sf.xmlunit.util.Linqy;
-import net.sf.xmlunit.util.Nodes;
 import org.w3c.dom.Attr;
 import org.w3c.dom.CharacterData;
 import org.w3c.dom.Document;
@@ -37,13 +34,18 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.ProcessingInstruction;
-import scala.Tuple2;
 
 /**
  * Difference engine based on DOM.
  */
 public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
 
+    /**
+     * The tree of the control used by the current comparison if the
+     * control has been prepared.
+     */
+    PreparedControl.View preparedControl;
+
     public void compare(Source control, Source test) {
         if (control == null) {
             throw new IllegalArgumentException("control must not be null");
@@ -51,12 +53,68 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
         if (test == null) {
             throw new IllegalArgumentException("test must not be null");
         }
+        NodeInfoCache.begin();
+        Throwable failure = null;
+        try {
+            Map<String, String> uri2Prefix = getUri2Prefix();
+            compareNodes(Convert.toNode(control), new XPathContext(uri2Prefix),
+                         Convert.toNode(test), new XPathContext(uri2Prefix));
+        } catch (Exception ex) {
+            XMLUnitException e =
+                new XMLUnitException("Caught exception during comparison",
+                                     ex);
+            failure = e;
+            throw e;
+        } catch (Error err) {
+            failure = err;
+            throw err;
+        } finally {
+            NodeInfoCache.end();
+            flushListeners(failure);
+        }
+    }
+
+    /**
+     * Compares a prepared control against a piece of XML and invokes
+     * the registered listeners.
+     *
+     * <p>Only the test document has to be analyzed, all information
+     * about the control is taken from the prepared control.</p>
+     */
+    public void compare(PreparedControl control, Source test) {
+        if (control == null) {
+            throw new IllegalArgumentException("control must not be null");
+        }
+        if (test == null) {
+            throw new IllegalArgumentException("test must not be null");
+        }
+        preparedControl = control.checkOut();
+        NodeInfoCache.begin(preparedControl);
+        Throwable failure = null;
         try {
-            compareNodes(Convert.toNode(control), new XPathContext(),
-                         Convert.toNode(test), new XPathContext());
+            Map<String, String> uri2Prefix = getUri2Prefix();
+            compareNodes(preparedControl.node,
+                         preparedControl.newXPathContext(uri2Prefix),
+                         Convert.toNode(test), new XPathContext(uri2Prefix));
         } catch (Exception ex) {
-            throw new XMLUnitException("Caught exception during comparison",
-                                       ex);
+            XMLUnitException e =
+                new XMLUnitException("Caught exception during comparison",
+                                     ex);
+            failure = e;
+            throw e;
+        } catch (Error err) {
+            failure = err;
+            throw err;
+        } finally {
+            PreparedControl.View view = preparedControl;
+            NodeInfoCache.end(view);
+            preparedControl = null;
+            try {
+                // asynchronous listeners may still be reading the tree
+                flushListeners(failure);
+            } finally {
+                control.checkIn(view);
+            }
         }
     }
 
@@ -137,11 +195,14 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                                   XPathContext controlContext,
                                                   CharacterData test,
                                                   XPathContext testContext) {
-        return compare(new Comparison(ComparisonType.TEXT_VALUE, control,
-                                      getXPath(controlContext),
-                                      control.getData(),
-                                      test, getXPath(testContext),
-                                      test.getData()));
+        if (!isEnabled(ComparisonType.TEXT_VALUE)) {
+            return ComparisonResult.EQUAL;
+        }
+        return compare(ComparisonType.TEXT_VALUE,
+                       control, controlContext,
+                       control.getData(),
+                       test, testContext,
+                       test.getData());
     }
 
     /**
@@ -151,20 +212,22 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                               XPathContext controlContext,
                                               Document test,
                                               XPathContext testContext) {
+        final boolean prepared =
+            preparedControl != null && preparedControl.node == control;
         DocumentType controlDt = control.getDoctype();
         DocumentType testDt = test.getDoctype();
 
         ComparisonResult lastResult =
-            compare(new Comparison(ComparisonType.HAS_DOCTYPE_DECLARATION,
-                                   control, getXPath(controlContext),
-                                   Boolean.valueOf(controlDt != null),
-                                   test, getXPath(testContext),
-                                   Boolean.valueOf(testDt != null)));
+            compare(ComparisonType.HAS_DOCTYPE_DECLARATION,
+                    control, controlContext,
+                    Boolean.valueOf(controlDt != null),
+                    test, testContext,
+                    Boolean.valueOf(testDt != null));
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        if (controlDt != null && testDt != null) {
+        if (controlDt != null && testDt != null && compareDocTypesEnabled()) {
             lastResult = compareNodes(controlDt, controlContext,
                                       testDt, testContext);
             if (lastResult == ComparisonResult.CRITICAL) {
@@ -173,31 +236,44 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
         }
 
         lastResult =
-            compare(new Comparison(ComparisonType.XML_VERSION,
-                                   control, getXPath(controlContext),
-                                   control.getXmlVersion(),
-                                   test, getXPath(testContext),
-                                   test.getXmlVersion()));
+            compare(ComparisonType.XML_VERSION,
+                    control, controlContext,
+                    prepared ? preparedControl.xmlVersion
+                    : control.getXmlVersion(),
+                    test, testContext,
+                    test.getXmlVersion());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
 
         lastResult =
-            compare(new Comparison(ComparisonType.XML_STANDALONE,
-                                   control, getXPath(controlContext),
-                                   control.getXmlStandalone(),
-                                   test, getXPath(testContext),
-                                   test.getXmlStandalone()));
+            compare(ComparisonType.XML_STANDALONE,
+                    control, controlContext,
+                    prepared ? preparedControl.xmlStandalone
+                    : control.getXmlStandalone(),
+                    test, testContext,
+                    test.getXmlStandalone());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        return compare(new Comparison(ComparisonType.XML_ENCODING,
-                                      control, getXPath(controlContext),
-                                      control.getXmlEncoding(),
-                                      test, getXPath(testContext),
-                                      test.getXmlEncoding()));
+        return compare(ComparisonType.XML_ENCODING,
+                       control, controlContext,
+                       prepared ? preparedControl.xmlEncoding
+                       : control.getXmlEncoding(),
+                       test, testContext,
+                       test.getXmlEncoding());
+    }
+
+    /**
+     * Whether any of the doctype's properties takes part in the
+     * comparison, otherwise the doctypes are not visited at all.
+     */
+    private boolean compareDocTypesEnabled() {
+        return isEnabled(ComparisonType.DOCTYPE_NAME)
+            || isEnabled(ComparisonType.DOCTYPE_PUBLIC_ID)
+            || isEnabled(ComparisonType.DOCTYPE_SYSTEM_ID);
     }
 
     /**
@@ -208,28 +284,28 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                              DocumentType test,
                                              XPathContext testContext) {
         ComparisonResult lastResult =
-            compare(new Comparison(ComparisonType.DOCTYPE_NAME,
-                                   control, getXPath(controlContext),
-                                   control.getName(),
-                                   test, getXPath(testContext),
-                                   test.getName()));
+            compare(ComparisonType.DOCTYPE_NAME,
+                    control, controlContext,
+                    control.getName(),
+                    test, testContext,
+                    test.getName());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
         lastResult =
-            compare(new Comparison(ComparisonType.DOCTYPE_PUBLIC_ID,
-                                   control, getXPath(controlContext),
-                                   control.getPublicId(),
-                                   test, getXPath(testContext),
-                                   test.getPublicId()));
+            compare(ComparisonType.DOCTYPE_PUBLIC_ID,
+                    control, controlContext,
+                    control.getPublicId(),
+                    test, testContext,
+                    test.getPublicId());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        return compare(new Comparison(ComparisonType.DOCTYPE_SYSTEM_ID,
-                                      control, null, control.getSystemId(),
-                                      test, null, test.getSystemId()));
+        return compare(ComparisonType.DOCTYPE_SYSTEM_ID,
+                       control, null, control.getSystemId(),
+                       test, null, test.getSystemId());
     }
 
     /**
@@ -241,54 +317,62 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                              Element test,
                                              XPathContext testContext) {
         ComparisonResult lastResult =
-            compare(new Comparison(ComparisonType.ELEMENT_TAG_NAME,
-                                   control, getXPath(controlContext),
-                                   Nodes.getQName(control).getLocalPart(),
-                                   test, getXPath(testContext),
-                                   Nodes.getQName(test).getLocalPart()));
+            compare(ComparisonType.ELEMENT_TAG_NAME,
+                    control, controlContext,
+                    getControlQName(control).getLocalPart(),
+                    test, testContext,
+                    NodeInfoCache.getQName(test).getLocalPart());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        Attributes controlAttributes = splitAttributes(control.getAttributes());
-        controlContext
-            .addAttributes(Linqy.map(controlAttributes.remainingAttributes,
-                                     QNAME_MAPPER));
-        Attributes testAttributes = splitAttributes(test.getAttributes());
+        Attributes controlAttributes = getControlAttributes(control);
+        if (!isControlPrepared(control)) {
+            controlContext
+                .addAttributes(Linqy.map(controlAttributes.remainingAttributes,
+                                         QNAME_MAPPER));
+        }
+        Attributes testAttributes =
+            splitAttributes(test.getAttributes(),
+                            isEnabled(ComparisonType.SCHEMA_LOCATION),
+                            isEnabled(ComparisonType
+                                      .NO_NAMESPACE_SCHEMA_LOCATION));
         testContext
             .addAttributes(Linqy.map(testAttributes.remainingAttributes,
                                      QNAME_MAPPER));
-        Set<Attr> foundTestAttributes = new HashSet<Attr>();
+        boolean[] foundTestAttributes =
+            new boolean[testAttributes.remainingAttributes.size()];
 
         lastResult =
-            compare(new Comparison(ComparisonType.ELEMENT_NUM_ATTRIBUTES,
-                                   control, getXPath(controlContext),
-                                   controlAttributes.remainingAttributes.size(),
-                                   test, getXPath(testContext),
-                                   testAttributes.remainingAttributes.size()));
+            compareCounts(ComparisonType.ELEMENT_NUM_ATTRIBUTES,
+                          control, controlContext,
+                          controlAttributes.remainingAttributes.size(),
+                          test, testContext,
+                          testAttributes.remainingAttributes.size());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
         for (Attr controlAttr : controlAttributes.remainingAttributes) {
-            final Attr testAttr =
-                findMatchingAttr(testAttributes.remainingAttributes,
-                                 controlAttr);
+            final int testIndex = testAttributes.indexOf(controlAttr);
+            final Attr testAttr = testIndex < 0 ? null
+                : testAttributes.remainingAttributes.get(testIndex);
 
-            controlContext.navigateToAttribute(Nodes.getQName(controlAttr));
+            controlContext.navigateToAttribute(getControlQName(controlAttr));
             try {
                 lastResult =
-                    compare(new Comparison(ComparisonType.ATTR_NAME_LOOKUP,
-                                           control, getXPath(controlContext),
-                                           Boolean.TRUE,
-                                           test, getXPath(testContext),
-                                           Boolean.valueOf(testAttr != null)));
+                    compare(ComparisonType.ATTR_NAME_LOOKUP,
+                            control, controlContext,
+                            Boolean.TRUE,
+                            test, testContext,
+                            Boolean.valueOf(testAttr != null));
                 if (lastResult == ComparisonResult.CRITICAL) {
                     return lastResult;
                 }
 
                 if (testAttr != null) {
-                    testContext.navigateToAttribute(Nodes.getQName(testAttr));
+                    testContext
+                        .navigateToAttribute(NodeInfoCache.getQName(testAttr));
                     try {
                         lastResult = compareNodes(controlAttr, controlContext,
                                                   testAttr, testContext);
@@ -296,7 +380,7 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                             return lastResult;
                         }
 
-                        foundTestAttributes.add(testAttr);
+                        foundTestAttributes[testIndex] = true;
                     } finally {
                         testContext.navigateToParent();
                     }
@@ -306,15 +390,17 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
             }
         }
 
-        for (Attr testAttr : testAttributes.remainingAttributes) {
-            testContext.navigateToAttribute(Nodes.getQName(testAttr));
+        final int testAttrCount = testAttributes.remainingAttributes.size();
+        for (int i = 0; i < testAttrCount; i++) {
+            Attr testAttr = testAttributes.remainingAttributes.get(i);
+            testContext.navigateToAttribute(NodeInfoCache.getQName(testAttr));
             try {
                 lastResult =
-                    compare(new Comparison(ComparisonType.ATTR_NAME_LOOKUP,
-                                           control, getXPath(controlContext),
-                                           Boolean.valueOf(foundTestAttributes.contains(testAttr)),
-                                           test, getXPath(testContext),
-                                           Boolean.TRUE));
+                    compare(ComparisonType.ATTR_NAME_LOOKUP,
+                            control, controlContext,
+                            Boolean.valueOf(foundTestAttributes[i]),
+                            test, testContext,
+                            Boolean.TRUE);
                 if (lastResult == ComparisonResult.CRITICAL) {
                     return lastResult;
                 }
@@ -324,29 +410,29 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
         }
 
         lastResult =
-            compare(new Comparison(ComparisonType.SCHEMA_LOCATION,
-                                   control, getXPath(controlContext),
-                                   controlAttributes.schemaLocation != null
-                                   ? controlAttributes.schemaLocation.getValue()
-                                   : null,
-                                   test, getXPath(testContext),
-                                   testAttributes.schemaLocation != null
-                                   ? testAttributes.schemaLocation.getValue()
-                                   : null));
+            compare(ComparisonType.SCHEMA_LOCATION,
+                    control, controlContext,
+                    controlAttributes.schemaLocation != null
+                    ? controlAttributes.schemaLocation.getValue()
+                    : null,
+                    test, testContext,
+                    testAttributes.schemaLocation != null
+                    ? testAttributes.schemaLocation.getValue()
+                    : null);
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
         return
-            compare(new Comparison(ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
-                                   control, getXPath(controlContext),
-                                   controlAttributes.noNamespaceSchemaLocation != null ?
-                                   controlAttributes.noNamespaceSchemaLocation.getValue()
-                                   : null,
-                                   test, getXPath(testContext),
-                                   testAttributes.noNamespaceSchemaLocation != null
-                                   ? testAttributes.noNamespaceSchemaLocation.getValue()
-                                   : null));
+            compare(ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
+                    control, controlContext,
+                    controlAttributes.noNamespaceSchemaLocation != null ?
+                    controlAttributes.noNamespaceSchemaLocation.getValue()
+                    : null,
+                    test, testContext,
+                    testAttributes.noNamespaceSchemaLocation != null
+                    ? testAttributes.noNamespaceSchemaLocation.getValue()
+                    : null);
     }
 
     /**
@@ -358,112 +444,20 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                       ProcessingInstruction test,
                                       XPathContext testContext) {
         ComparisonResult lastResult =
-            compare(new Comparison(ComparisonType.PROCESSING_INSTRUCTION_TARGET,
-                                   control, getXPath(controlContext),
-                                   control.getTarget(),
-                                   test, getXPath(testContext),
-                                   test.getTarget()));
+            compare(ComparisonType.PROCESSING_INSTRUCTION_TARGET,
+                    control, controlContext,
+                    control.getTarget(),
+                    test, testContext,
+                    test.getTarget());
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        return compare(new Comparison(ComparisonType.PROCESSING_INSTRUCTION_DATA,
-                                      control, getXPath(controlContext),
-                                      control.getData(),
-                                      test, getXPath(testContext),
-                                      test.getData()));
-    }
-
-    /**
-     * Matches nodes of two node lists and invokes compareNode on each pair.
-     *
-     * <p>Also performs CHILD_LOOKUP comparisons for each node that
-     * couldn't be matched to one of the "other" list.</p>
-     */
-    protected ComparisonResult compareNodeLists(Iterable<Node> controlSeq,
-                                              XPathContext controlContext,
-                                              Iterable<Node> testSeq,
-                                              XPathContext testContext) {
-        // if there are no children on either Node, the result is equal
-        ComparisonResult lastResult = ComparisonResult.EQUAL;
-
-        Iterable<Tuple2<Node, Node>> matches =
-            getNodeMatcher().getMatches(controlSeq, testSeq);
-        List<Node> controlList = Linqy.asList(controlSeq);
-        List<Node> testList = Linqy.asList(testSeq);
-        Set<Node> seen = new HashSet<Node>();
-        for (Tuple2<Node, Node> pair : matches) {
-            Node control = pair._1();
-            seen.add(control);
-            Node test = pair._2();
-            seen.add(test);
-            int controlIndex = controlList.indexOf(control);
-            int testIndex = testList.indexOf(test);
-
-            controlContext.navigateToChild(controlIndex);
-            testContext.navigateToChild(testIndex);
-            try {
-                lastResult =
-                    compare(new Comparison(ComparisonType.CHILD_NODELIST_SEQUENCE,
-                                           control, getXPath(controlContext),
-                                           Integer.valueOf(controlIndex),
-                                           test, getXPath(testContext),
-                                           Integer.valueOf(testIndex)));
-                if (lastResult == ComparisonResult.CRITICAL) {
-                    return lastResult;
-                }
-
-                lastResult = compareNodes(control, controlContext,
-                                          test, testContext);
-                if (lastResult == ComparisonResult.CRITICAL) {
-                    return lastResult;
-                }
-            } finally {
-                testContext.navigateToParent();
-                controlContext.navigateToParent();
-            }
-        }
-
-        final int controlSize = controlList.size();
-        for (int i = 0; i < controlSize; i++) {
-            if (!seen.contains(controlList.get(i))) {
-                controlContext.navigateToChild(i);
-                try {
-                    lastResult =
-                        compare(new Comparison(ComparisonType.CHILD_LOOKUP,
-                                               controlList.get(i),
-                                               getXPath(controlContext),
-                                               controlList.get(i),
-                                               null, null, null));
-                    if (lastResult == ComparisonResult.CRITICAL) {
-                        return lastResult;
-                    }
-                } finally {
-                    controlContext.navigateToParent();
-                }
-            }
-        }
-
-        final int testSize = testList.size();
-        for (int i = 0; i < testSize; i++) {
-            if (!seen.contains(testList.get(i))) {
-                testContext.navigateToChild(i);
-                try {
-                    lastResult =
-                        compare(new Comparison(ComparisonType.CHILD_LOOKUP,
-                                               null, null, null,
-                                               testList.get(i),
-                                               getXPath(testContext),
-                                               testList.get(i)));
-                    if (lastResult == ComparisonResult.CRITICAL) {
-                        return lastResult;
-                    }
-                } finally {
-                    testContext.navigateToParent();
-                }
-            }
-        }
-        return lastResult;
+        return compare(ComparisonType.PROCESSING_INSTRUCTION_DATA,
+                       control, controlContext,
+                       control.getData(),
+                       test, testContext,
+                       test.getData());
     }
 
     /**
@@ -474,34 +468,132 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
                                                Attr test,
                                                XPathContext testContext) {
         ComparisonResult lastResult =
-            compare(new Comparison(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
-                                   control, getXPath(controlContext),
-                                   control.getSpecified(),
-                                   test, getXPath(testContext),
-                                   test.getSpecified()));
+            compare(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+                    control, controlContext,
+                    isControlSpecified(control),
+                    test, testContext,
+                    isSpecified(test));
         if (lastResult == ComparisonResult.CRITICAL) {
             return lastResult;
         }
 
-        return compare(new Comparison(ComparisonType.ATTR_VALUE,
-                                      control, getXPath(controlContext),
-                                      control.getValue(),
-                                      test, getXPath(testContext),
-                                      test.getValue()));
+        return compare(ComparisonType.ATTR_VALUE,
+                       control, controlContext,
+                       control.getValue(),
+                       test, testContext,
+                       test.getValue());
+    }
+
+    /**
+     * Whether an attribute has been specified explicitly.
+     *
+     * <p>Subclasses comparing copies of the original documents may
+     * override this since copying loses the flag.</p>
+     */
+    protected boolean isSpecified(Attr attr) {
+        return attr.getSpecified();
+    }
+
+    /**
+     * Whether a control attribute has been specified explicitly,
+     * taken from the prepared control if the attribute is part of
+     * it.
+     */
+    boolean isControlSpecified(Attr control) {
+        PreparedControl.Info info = getPreparedInfo(control);
+        return info != null ? info.specified : isSpecified(control);
+    }
+
+    /**
+     * Whether the given control node is part of a prepared control.
+     */
+    protected boolean isControlPrepared(Node control) {
+        return preparedControl != null
+            && preparedControl.getInfo(control) != null;
+    }
+
+    /**
+     * The children of a control node that take part in the
+     * comparison.
+     */
+    protected List<Node> getControlChildren(Node control) {
+        PreparedControl.Info info = getPreparedInfo(control);
+        return info != null ? info.children : getChildren(control);
+    }
+
+    /**
+     * The fingerprint of a control node, taken from the prepared
+     * control if the node is part of it.
+     */
+    long getControlFingerprint(SubtreeFingerprinter fingerprinter,
+                               Node control, Map<Node, Long> cache) {
+        PreparedControl.Info info = getPreparedInfo(control);
+        return info != null
+            ? preparedControl.getFingerprint(fingerprinter, info)
+            : fingerprinter.getFingerprint(control, cache);
+    }
+
+    private QName getControlQName(Node control) {
+        PreparedControl.Info info = getPreparedInfo(control);
+        return info != null ? info.name : NodeInfoCache.getQName(control);
+    }
+
+    private Attributes getControlAttributes(Element control) {
+        PreparedControl.Info info = getPreparedInfo(control);
+        return info != null ? info.attributes
+            : splitAttributes(control.getAttributes(),
+                              isEnabled(ComparisonType.SCHEMA_LOCATION),
+                              isEnabled(ComparisonType
+                                        .NO_NAMESPACE_SCHEMA_LOCATION));
+    }
+
+    private PreparedControl.Info getPreparedInfo(Node control) {
+        return preparedControl == null ? null
+            : preparedControl.getInfo(control);
+    }
+
+    /**
+     * The children of a node that take part in the comparison - all
+     * but the doctype declaration.
+     */
+    static List<Node> getChildren(Node n) {
+        NodeList nl = n.getChildNodes();
+        final int len = nl.getLength();
+        List<Node> children = new ArrayList<Node>(len);
+        for (int i = 0; i < len; i++) {
+            Node child = nl.item(i);
+            if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                children.add(child);
+            }
+        }
+        return children;
     }
 
     /**
      * Separates XML namespace related attributes from "normal" attributes.xb
      */
-    private static Attributes splitAttributes(final NamedNodeMap map) {
-        Attr sLoc = (Attr) map.getNamedItemNS(XMLConstants
-                                              .W3C_XML_SCHEMA_INSTANCE_NS_URI,
-                                              "schemaLocation");
-        Attr nNsLoc = (Attr) map.getNamedItemNS(XMLConstants
-                                                .W3C_XML_SCHEMA_INSTANCE_NS_URI,
-                                                "noNamespaceSchemaLocation");
-        List<Attr> rest = new LinkedList<Attr>();
+    static Attributes splitAttributes(final NamedNodeMap map) {
+        return splitAttributes(map, true, true);
+    }
+
+    /**
+     * Separates XML namespace related attributes from "normal"
+     * attributes, only looks up the schema location attributes if
+     * asked to.
+     */
+    static Attributes splitAttributes(final NamedNodeMap map,
+                                      boolean withSchemaLocation,
+                                      boolean withNoNamespaceSchemaLocation) {
+        Attr sLoc = !withSchemaLocation ? null
+            : (Attr) map.getNamedItemNS(XMLConstants
+                                        .W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                                        "schemaLocation");
+        Attr nNsLoc = !withNoNamespaceSchemaLocation ? null
+            : (Attr) map.getNamedItemNS(XMLConstants
+                                        .W3C_XML_SCHEMA_INSTANCE_NS_URI,
+                                        "noNamespaceSchemaLocation");
         final int len = map.getLength();
+        List<Attr> rest = new ArrayList<Attr>(len);
         for (int i = 0; i < len; i++) {
             Attr a = (Attr) map.item(i);
             if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI())
@@ -514,41 +606,71 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
         return new Attributes(sLoc, nNsLoc, rest);
     }
 
-    private static class Attributes {
-        private final Attr schemaLocation;
-        private final Attr noNamespaceSchemaLocation;
-        private final List<Attr> remainingAttributes;
+    static class Attributes {
+        final Attr schemaLocation;
+        final Attr noNamespaceSchemaLocation;
+        final List<Attr> remainingAttributes;
+        /**
+         * Open addressing hash table of the remaining attributes
+         * keyed by namespace URI and local name, holds index + 1 of
+         * the attribute or 0 for empty slots.
+         */
+        private final int[] table;
+
         private Attributes(Attr schemaLocation, Attr noNamespaceSchemaLocation,
                            List<Attr> remainingAttributes) {
             this.schemaLocation = schemaLocation;
             this.noNamespaceSchemaLocation = noNamespaceSchemaLocation;
             this.remainingAttributes = remainingAttributes;
+            final int size = remainingAttributes.size();
+            int capacity = 2;
+            while (capacity < 2 * size) {
+                capacity <<= 1;
+            }
+            table = new int[capacity];
+            for (int i = 0; i < size; i++) {
+                int slot = slot(remainingAttributes.get(i));
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = i + 1;
+            }
         }
-    }
 
-    /**
-     * Find the attribute with the same namespace and local name as a
-     * given attribute in a list of attributes.
-     */
-    private static Attr findMatchingAttr(final List<Attr> attrs,
-                                         final Attr attrToMatch) {
-        final boolean hasNs = attrToMatch.getNamespaceURI() != null;
-        final String nsToMatch = attrToMatch.getNamespaceURI();
-        final String nameToMatch = hasNs ? attrToMatch.getLocalName()
-            : attrToMatch.getName();
-        for (Attr a : attrs) {
-            if (((!hasNs && a.getNamespaceURI() == null)
-                 ||
-                 (hasNs && nsToMatch.equals(a.getNamespaceURI())))
-                &&
-                ((hasNs && nameToMatch.equals(a.getLocalName()))
-                 ||
-                 (!hasNs && nameToMatch.equals(a.getName())))
-                ) {
-                return a;
+        /**
+         * Finds the index of the attribute with the same namespace
+         * and local name as the given attribute, -1 if there is
+         * none.
+         */
+        int indexOf(Attr attrToMatch) {
+            for (int slot = slot(attrToMatch); table[slot] != 0;
+                 slot = (slot + 1) & (table.length - 1)) {
+                Attr a = remainingAttributes.get(table[slot] - 1);
+                if (sameName(a, attrToMatch)) {
+                    return table[slot] - 1;
+                }
             }
+            return -1;
+        }
+
+        private int slot(Attr a) {
+            String ns = a.getNamespaceURI();
+            int h = 31 * (ns == null ? 0 : ns.hashCode())
+                + localName(a).hashCode();
+            h ^= h >>> 16;
+            return h & (table.length - 1);
+        }
+
+        private static boolean sameName(Attr a1, Attr a2) {
+            String ns = a1.getNamespaceURI();
+            return (ns == null ? a2.getNamespaceURI() == null
+                    : ns.equals(a2.getNamespaceURI()))
+                && localName(a1).equals(localName(a2));
+        }
+
+        private static String localName(Attr a) {
+            return a.getNamespaceURI() != null ? a.getLocalName() : a.getName();
         }
-        return null;
     }
 
     /**
@@ -556,7 +678,7 @@ public abstract class BaseDOMDifferenceEngine extends AbstractDifferenceEngine {
      */
     private static final Linqy.Mapper<Node, QName> QNAME_MAPPER =
         new Linqy.Mapper<Node, QName>() {
-        public QName map(Node n) { return Nodes.getQName(n); }
+        public QName map(Node n) { return NodeInfoCache.getQName(n); }
     };
 }
 
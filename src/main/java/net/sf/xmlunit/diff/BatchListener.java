@@ -0,0 +1,27 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+/**
+ * Is notified each time a test document of a batch has been compared
+ * to the control.
+ */
+public interface BatchListener {
+    /**
+     * Receives the result of comparing a single test document.
+     *
+     * <p>Invoked on whichever thread performed the comparison.</p>
+     */
+    void testCompared(BatchResult result);
+}
@@ -16,18 +16,57 @@ package net.sf.xmlunit.diff;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Encapsulates support for DifferenceListeners so it can be reused by
  * different implementations of IDifferenceEngine.
+ *
+ * <p>Listeners are notified synchronously on the thread that fires
+ * the comparison unless {@link #dispatchAsynchronously asynchronous
+ * dispatch} has been enabled.</p>
  */
 public class ComparisonListenerSupport {
+    /**
+     * What to do with a comparison if the buffer of asynchronous
+     * dispatch is full.
+     */
+    public static enum Backpressure {
+        /**
+         * Wait until the listeners have caught up.
+         */
+        BLOCK,
+        /**
+         * Don't pass the comparison to any listener.
+         */
+        DROP
+    }
+
+    /**
+     * How threads of asynchronous dispatch wait for each other.
+     */
+    public static enum WaitStrategy {
+        /**
+         * Block on a monitor until woken up.
+         */
+        BLOCKING,
+        /**
+         * Spin and yield the processor for a while before blocking,
+         * lower latency at the cost of keeping a core busy while
+         * comparisons keep coming.
+         */
+        YIELDING
+    }
+
+
     private final List<ComparisonListener> compListeners =
         new CopyOnWriteArrayList<ComparisonListener>();
     private final List<ComparisonListener> matchListeners =
         new CopyOnWriteArrayList<ComparisonListener>();
     private final List<ComparisonListener> diffListeners =
         new CopyOnWriteArrayList<ComparisonListener>();
+    private AsyncComparisonDispatcher dispatcher;
+    private long dropped = 0;
 
     /**
      * Registers a listener that is notified of each comparison.
@@ -52,26 +91,189 @@ public class ComparisonListenerSupport {
         diffListeners.add(l);
     }
 
+    /**
+     * Makes a task run by the given Executor notify the listeners.
+     *
+     * <p>Same as {@link #dispatchAsynchronously(Executor, int,
+     * Backpressure, WaitStrategy, int) dispatchAsynchronously} with a
+     * single consumer.</p>
+     */
+    public void dispatchAsynchronously(Executor executor, int capacity,
+                                       Backpressure backpressure,
+                                       WaitStrategy waitStrategy) {
+        dispatchAsynchronously(executor, capacity, backpressure,
+                               waitStrategy, 1);
+    }
+
+    /**
+     * Makes tasks run by the given Executor notify the listeners.
+     *
+     * <p>Fired comparisons are put into a ring buffer holding at
+     * least capacity comparisons and passed to the listeners in the
+     * same order in batches.  Each of the consumer tasks notifies a
+     * fixed share of the listeners, so a slow listener only delays
+     * the listeners sharing its consumer - as long as the buffer
+     * isn't full.  {@link #fireComparisonPerformed
+     * fireComparisonPerformed} must not be invoked concurrently while
+     * asynchronous dispatch is enabled.</p>
+     *
+     * <p>Exceptions thrown by listeners are rethrown by the next
+     * {@link #flush flush} or {@link #close close}, no further
+     * comparisons are passed to any listener until then.</p>
+     *
+     * <p>If the executor runs the task on the calling thread instead
+     * of a thread of its own, listeners keep being notified
+     * synchronously.  The executor must be able to run all consumer
+     * tasks at the same time, executors that block the calling thread
+     * until the task has finished on a different thread must not be
+     * used.</p>
+     *
+     * <p>If a consumer task terminates unexpectedly - for example
+     * because its thread is interrupted while it is waiting - {@link
+     * #fireComparisonPerformed fireComparisonPerformed}, {@link #flush
+     * flush} and {@link #close close} throw an exception rather than
+     * waiting for it.</p>
+     */
+    public void dispatchAsynchronously(Executor executor, int capacity,
+                                       Backpressure backpressure,
+                                       WaitStrategy waitStrategy,
+                                       final int consumers) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be positive"
+                                               + " and at most 2^30");
+        }
+        if (backpressure == null) {
+            throw new IllegalArgumentException("backpressure must not be"
+                                               + " null");
+        }
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("waitStrategy must not be"
+                                               + " null");
+        }
+        if (consumers <= 0) {
+            throw new IllegalArgumentException("consumers must be"
+                                               + " positive");
+        }
+        if (dispatcher != null) {
+            throw new IllegalStateException("already dispatching"
+                                            + " asynchronously");
+        }
+        ComparisonListener[] targets = new ComparisonListener[consumers];
+        for (int i = 0; i < consumers; i++) {
+            final int consumer = i;
+            targets[i] = new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        notifyListeners(comparison, outcome, consumer,
+                                        consumers);
+                    }
+                };
+        }
+        AsyncComparisonDispatcher d =
+            new AsyncComparisonDispatcher(targets, capacity, backpressure,
+                                          waitStrategy);
+        if (d.start(executor)) {
+            dispatcher = d;
+        }
+    }
+
+    /**
+     * Whether listeners are notified asynchronously.
+     */
+    public boolean isDispatchingAsynchronously() {
+        return dispatcher != null;
+    }
+
+    /**
+     * Waits until all fired comparisons have been passed to the
+     * listeners, does nothing unless dispatching asynchronously.
+     */
+    public void flush() {
+        if (dispatcher != null) {
+            dispatcher.flush();
+        }
+    }
+
+    /**
+     * Flushes and stops asynchronous dispatch, listeners will be
+     * notified synchronously again.
+     */
+    public void close() {
+        AsyncComparisonDispatcher d = dispatcher;
+        dispatcher = null;
+        if (d != null) {
+            try {
+                d.close();
+            } finally {
+                dropped += d.getDropped();
+            }
+        }
+    }
+
+    /**
+     * Number of comparisons that have not been passed to any listener
+     * because the buffer of asynchronous dispatch was full.
+     */
+    public long getDroppedComparisons() {
+        return dispatcher != null ? dropped + dispatcher.getDropped()
+            : dropped;
+    }
+
+    /**
+     * Whether any listener wants to be notified of comparisons with
+     * the given outcome.
+     */
+    public boolean hasListenersFor(ComparisonResult outcome) {
+        return !compListeners.isEmpty()
+            || !(outcome == ComparisonResult.EQUAL ? matchListeners
+                 : diffListeners).isEmpty();
+    }
+
     /**
      * Propagates the result of a comparision to all registered
      * listeners.
      */
     public <A, B> void fireComparisonPerformed(Comparison<A, B> comparison,
                                         ComparisonResult outcome) {
-        fire(comparison, outcome, compListeners);
+        if (dispatcher != null) {
+            dispatcher.publish(comparison, outcome);
+        } else {
+            notifyListeners(comparison, outcome, 0, 1);
+        }
+    }
+
+    /**
+     * Notifies the listeners whose position inside their list
+     * modulo the number of consumers is the given consumer.
+     *
+     * <p>Listeners are never removed, so each listener is always
+     * notified by the same consumer.</p>
+     */
+    private <A, B> void notifyListeners(Comparison<A, B> comparison,
+                                        ComparisonResult outcome,
+                                        int consumer, int consumers) {
+        fire(comparison, outcome, compListeners, consumer, consumers);
         if (outcome == ComparisonResult.EQUAL) {
-            fire(comparison, outcome, matchListeners);
+            fire(comparison, outcome, matchListeners, consumer, consumers);
         } else {
-            fire(comparison, outcome, diffListeners);
+            fire(comparison, outcome, diffListeners, consumer, consumers);
         }
     }
 
     private static <A, B> void fire(Comparison<A, B> comparison, ComparisonResult outcome,
-                             List<ComparisonListener> listeners) {
+                             List<ComparisonListener> listeners,
+                             int consumer, int consumers) {
         if (!listeners.isEmpty()) {
+            int i = 0;
             for (Iterator<ComparisonListener> it = listeners.iterator();
-                 it.hasNext(); ) {
-                it.next().comparisonPerformed(comparison, outcome);
+                 it.hasNext(); i++) {
+                ComparisonListener l = it.next();
+                if (i % consumers == consumer) {
+                    l.comparisonPerformed(comparison, outcome);
+                }
             }
         }
     }
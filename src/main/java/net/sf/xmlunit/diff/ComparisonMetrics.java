@@ -0,0 +1,241 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.xml.namespace.QName;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Node;
+
+/**
+ * Listener that counts comparisons per type and outcome as well as
+ * differences per depth and per element name.
+ *
+ * <p>May be shared by engines running concurrently.  Counters are
+ * striped so threads rarely update the same memory location, a
+ * {@link #snapshot snapshot} sums up the stripes.</p>
+ *
+ * <p>Depth and element name of a difference are taken from the
+ * control target - or the test target if there is no control target
+ * - and are only known if the target is a DOM Node.  The depth of
+ * the document node is 0, differences deeper than maxDepth are
+ * counted at maxDepth.  The element of an attribute is its owner
+ * element, that of any other node but an element its parent.</p>
+ */
+public class ComparisonMetrics implements ComparisonListener {
+    private static final int TYPES = ComparisonType.values().length;
+    private static final int RESULTS = ComparisonResult.values().length;
+    /**
+     * Number of longs in a cache line, used to keep the stripes of
+     * small counters apart.
+     */
+    private static final int PADDING = 8;
+
+    private final int stripes;
+    private final int maxDepth;
+    private final int depthStride;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray depths;
+    private final ConcurrentMap<QName, AtomicLongArray> elements =
+        new ConcurrentHashMap<QName, AtomicLongArray>();
+
+    /**
+     * Creates metrics with a depth histogram of 64 buckets and as many
+     * stripes as there are processors.
+     */
+    public ComparisonMetrics() {
+        this(64, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates metrics with a depth histogram of maxDepth + 1 buckets
+     * and at least the given number of stripes.
+     */
+    public ComparisonMetrics(int maxDepth, int stripes) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must not be"
+                                               + " negative");
+        }
+        if (stripes <= 0 || stripes > 1 << 16) {
+            throw new IllegalArgumentException("stripes must be positive"
+                                               + " and at most 2^16");
+        }
+        int s = Integer.highestOneBit(stripes);
+        this.stripes = s < stripes ? s << 1 : s;
+        this.maxDepth = maxDepth;
+        depthStride = (maxDepth + PADDING) / PADDING * PADDING;
+        counts = new AtomicLongArray(this.stripes * TYPES * RESULTS);
+        depths = new AtomicLongArray(this.stripes * depthStride);
+    }
+
+    public void comparisonPerformed(Comparison comparison,
+                                    ComparisonResult outcome) {
+        final int stripe = stripe();
+        counts.incrementAndGet(stripe * TYPES * RESULTS
+                               + comparison.getType().ordinal() * RESULTS
+                               + outcome.ordinal());
+        if (outcome == ComparisonResult.EQUAL) {
+            return;
+        }
+        // the targets themselves, the details would compute XPaths
+        Object target = comparison.controlTarget();
+        if (target == null) {
+            target = comparison.testTarget();
+        }
+        if (!(target instanceof Node)) {
+            return;
+        }
+        Node n = (Node) target;
+        depths.incrementAndGet(stripe * depthStride
+                               + Math.min(depth(n), maxDepth));
+        Node element = n.getNodeType() == Node.ELEMENT_NODE ? n
+            : n instanceof Attr ? ((Attr) n).getOwnerElement()
+            : n.getParentNode();
+        if (element != null && element.getNodeType() == Node.ELEMENT_NODE) {
+            elementCounter(NodeInfoCache.getQName(element))
+                .incrementAndGet(stripe * PADDING);
+        }
+    }
+
+    /**
+     * Sums up all counters.
+     *
+     * <p>Counters are read one after the other while other threads
+     * may still update them, so the snapshot is not necessarily
+     * consistent.</p>
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[TYPES * RESULTS];
+        for (int i = 0; i < counts.length(); i++) {
+            c[i % c.length] += counts.get(i);
+        }
+        long[] d = new long[maxDepth + 1];
+        for (int s = 0; s < stripes; s++) {
+            for (int i = 0; i <= maxDepth; i++) {
+                d[i] += depths.get(s * depthStride + i);
+            }
+        }
+        Map<QName, Long> e = new HashMap<QName, Long>();
+        for (Map.Entry<QName, AtomicLongArray> entry : elements.entrySet()) {
+            long sum = 0;
+            for (int s = 0; s < stripes; s++) {
+                sum += entry.getValue().get(s * PADDING);
+            }
+            e.put(entry.getKey(), sum);
+        }
+        return new Snapshot(c, d, Collections.unmodifiableMap(e));
+    }
+
+    /**
+     * Sets all counters to zero.
+     *
+     * <p>Updates performed concurrently may or may not survive the
+     * reset.</p>
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < depths.length(); i++) {
+            depths.set(i, 0);
+        }
+        elements.clear();
+    }
+
+    private AtomicLongArray elementCounter(QName name) {
+        AtomicLongArray counter = elements.get(name);
+        if (counter == null) {
+            AtomicLongArray created = new AtomicLongArray(stripes * PADDING);
+            counter = elements.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (stripes - 1);
+    }
+
+    private static int depth(Node n) {
+        int depth = 0;
+        Node p = n instanceof Attr ? ((Attr) n).getOwnerElement()
+            : n.getParentNode();
+        for (; p != null; p = p.getParentNode()) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Counter values at the time of a {@link #snapshot snapshot}.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long[] depths;
+        private final Map<QName, Long> elements;
+
+        private Snapshot(long[] counts, long[] depths,
+                         Map<QName, Long> elements) {
+            this.counts = counts;
+            this.depths = depths;
+            this.elements = elements;
+        }
+
+        /**
+         * Number of comparisons of the given type with the given
+         * outcome.
+         */
+        public long getCount(ComparisonType type, ComparisonResult outcome) {
+            return counts[type.ordinal() * RESULTS + outcome.ordinal()];
+        }
+
+        /**
+         * Number of comparisons of the given type with an outcome other
+         * than EQUAL.
+         */
+        public long getDifferences(ComparisonType type) {
+            long sum = 0;
+            for (ComparisonResult r : ComparisonResult.values()) {
+                if (r != ComparisonResult.EQUAL) {
+                    sum += getCount(type, r);
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Number of differences found at the given depth, the last
+         * bucket includes all deeper differences.
+         */
+        public long getDifferencesAtDepth(int depth) {
+            return depths[Math.min(depth, depths.length - 1)];
+        }
+
+        /**
+         * Number of differences by name of the element they have
+         * been found in.
+         */
+        public Map<QName, Long> getDifferencesByElement() {
+            return elements;
+        }
+    }
+}
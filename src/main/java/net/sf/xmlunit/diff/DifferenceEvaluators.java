@@ -13,6 +13,8 @@
 */
 package net.sf.xmlunit.diff;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.w3c.dom.Node;
 
 /**
@@ -121,4 +123,109 @@ public final class DifferenceEvaluators {
             }
         };
     }
+
+    /**
+     * Creates a builder for an evaluator that only consults the
+     * evaluators registered for the type - and optionally the
+     * outcome - of the comparison at hand.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builds an evaluator that dispatches on the comparison's type
+     * and outcome.
+     *
+     * <p>All evaluators registered for a given combination of type
+     * and outcome are combined like {@link #first first} does in
+     * the order of their registration.  Comparisons without any
+     * evaluator keep their outcome.</p>
+     */
+    public static final class Builder {
+        private static final int OUTCOMES = ComparisonResult.values().length;
+
+        private final List<DifferenceEvaluator>[] registered;
+
+        @SuppressWarnings("unchecked")
+        private Builder() {
+            registered =
+                new List[ComparisonType.values().length * OUTCOMES];
+        }
+
+        /**
+         * Registers an evaluator for comparisons of the given types
+         * regardless of their outcome.
+         */
+        public Builder withEvaluator(DifferenceEvaluator evaluator,
+                                     ComparisonType... types) {
+            for (ComparisonResult outcome : ComparisonResult.values()) {
+                withEvaluator(evaluator, outcome, types);
+            }
+            return this;
+        }
+
+        /**
+         * Registers an evaluator for comparisons of the given types
+         * that have the given outcome.
+         */
+        public Builder withEvaluator(DifferenceEvaluator evaluator,
+                                     ComparisonResult outcome,
+                                     ComparisonType... types) {
+            if (evaluator == null) {
+                throw new IllegalArgumentException("evaluator must not be"
+                                                   + " null");
+            }
+            if (outcome == null) {
+                throw new IllegalArgumentException("outcome must not be null");
+            }
+            if (types.length == 0) {
+                throw new IllegalArgumentException("types must not be empty");
+            }
+            for (ComparisonType type : types) {
+                if (type == null) {
+                    throw new IllegalArgumentException("types must not"
+                                                       + " contain null");
+                }
+            }
+            for (ComparisonType type : types) {
+                int slot = slot(type, outcome);
+                if (registered[slot] == null) {
+                    registered[slot] = new ArrayList<DifferenceEvaluator>();
+                }
+                registered[slot].add(evaluator);
+            }
+            return this;
+        }
+
+        /**
+         * Creates the evaluator, later registrations don't affect
+         * it.
+         */
+        public DifferenceEvaluator build() {
+            final DifferenceEvaluator[] table =
+                new DifferenceEvaluator[registered.length];
+            for (int i = 0; i < registered.length; i++) {
+                List<DifferenceEvaluator> l = registered[i];
+                if (l != null) {
+                    table[i] = l.size() == 1 ? l.get(0)
+                        : first(l.toArray(new DifferenceEvaluator[l.size()]));
+                }
+            }
+            return new DifferenceEvaluator() {
+                public ComparisonResult evaluate(Comparison comparison,
+                                                 ComparisonResult outcome) {
+                    DifferenceEvaluator ev =
+                        table[slot(comparison.getType(), outcome)];
+                    return ev == null ? outcome
+                        : ev.evaluate(comparison, outcome);
+                }
+            };
+        }
+
+        private static int slot(ComparisonType type,
+                                ComparisonResult outcome) {
+            return type.ordinal() * OUTCOMES + outcome.ordinal();
+        }
+    }
 }
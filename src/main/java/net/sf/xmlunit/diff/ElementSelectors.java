@@ -13,13 +13,20 @@
 */
 package net.sf.xmlunit.diff;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.xml.namespace.QName;
-import net.sf.xmlunit.util.Nodes;
 import org.w3c.dom.CDATASection;
 import org.w3c.dom.Element;
 import org.w3c.dom.Text;
@@ -50,13 +57,17 @@ public final class ElementSelectors {
      * Elements with the same local name (and namespace URI - if any)
      * can be compared.
      */
-    public static final ElementSelector byName = new ElementSelector() {
+    public static final KeyedElementSelector byName =
+        new KeyedElementSelector() {
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 return controlElement != null
                     && testElement != null
-                    && bothNullOrEqual(Nodes.getQName(controlElement),
-                                       Nodes.getQName(testElement));
+                    && bothNullOrEqual(NodeInfoCache.getQName(controlElement),
+                                       NodeInfoCache.getQName(testElement));
+            }
+            public Object getKey(Element element) {
+                return NodeInfoCache.getQName(element);
             }
         };
 
@@ -64,12 +75,17 @@ public final class ElementSelectors {
      * Elements with the same local name (and namespace URI - if any)
      * and nested text (if any) can be compared.
      */
-    public static final ElementSelector byNameAndText = new ElementSelector() {
+    public static final KeyedElementSelector byNameAndText =
+        new KeyedElementSelector() {
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 return byName.canBeCompared(controlElement, testElement)
-                    && bothNullOrEqual(Nodes.getMergedNestedText(controlElement),
-                                       Nodes.getMergedNestedText(testElement));
+                    && bothNullOrEqual(NodeInfoCache.getMergedNestedText(controlElement),
+                                       NodeInfoCache.getMergedNestedText(testElement));
+            }
+            public Object getKey(Element element) {
+                return key(NodeInfoCache.getQName(element),
+                           NodeInfoCache.getMergedNestedText(element));
             }
         };
 
@@ -80,7 +96,7 @@ public final class ElementSelectors {
      *
      * <p>Attributes are only searched for in the null namespace.</p>
      */
-    public static ElementSelector byNameAndAttributes(String... attribs) {
+    public static KeyedElementSelector byNameAndAttributes(String... attribs) {
         if (attribs == null) {
             throw new IllegalArgumentException("attributes must not be null");
         }
@@ -107,13 +123,13 @@ public final class ElementSelectors {
             throw new IllegalArgumentException("attributes must not be null");
         }
         final HashSet<String> as = new HashSet(Arrays.asList(attribs));
-        return new ElementSelector() {
+        return new NamedElementSelector() {
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 if (!byName.canBeCompared(controlElement, testElement)) {
                     return false;
                 }
-                Map<QName, String> cAttrs = Nodes.getAttributes(controlElement);
+                Map<QName, String> cAttrs = NodeInfoCache.getAttributes(controlElement);
                 Map<String, QName> qNameByLocalName =
                     new HashMap<String, QName>();
                 for (QName q : cAttrs.keySet()) {
@@ -129,7 +145,7 @@ public final class ElementSelectors {
                     }
                 }
                 return mapsEqualForKeys(cAttrs,
-                                        Nodes.getAttributes(testElement),
+                                        NodeInfoCache.getAttributes(testElement),
                                         qNameByLocalName.values());
             }
         };
@@ -140,21 +156,31 @@ public final class ElementSelectors {
      * and attribute values for the given attribute names can be
      * compared.
      */
-    public static ElementSelector byNameAndAttributes(final QName... attribs) {
+    public static KeyedElementSelector
+        byNameAndAttributes(final QName... attribs) {
         if (attribs == null) {
             throw new IllegalArgumentException("attributes must not be null");
         }
         final Collection<QName> qs = Arrays.asList(attribs);
-        return new ElementSelector() {
+        return new KeyedElementSelector() {
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 if (!byName.canBeCompared(controlElement, testElement)) {
                     return false;
                 }
-                return mapsEqualForKeys(Nodes.getAttributes(controlElement),
-                                        Nodes.getAttributes(testElement),
+                return mapsEqualForKeys(NodeInfoCache.getAttributes(controlElement),
+                                        NodeInfoCache.getAttributes(testElement),
                                         qs);
             }
+            public Object getKey(Element element) {
+                Map<QName, String> attrs = NodeInfoCache.getAttributes(element);
+                Object[] values = new Object[attribs.length + 1];
+                values[0] = NodeInfoCache.getQName(element);
+                for (int i = 0; i < attribs.length; i++) {
+                    values[i + 1] = attrs.get(attribs[i]);
+                }
+                return key(values);
+            }
         };
     }
 
@@ -162,20 +188,24 @@ public final class ElementSelectors {
      * Elements with the same local name (and namespace URI - if any)
      * and attribute values for all attributes can be compared.
      */
-    public static final ElementSelector byNameAndAllAttributes =
-        new ElementSelector() {
+    public static final KeyedElementSelector byNameAndAllAttributes =
+        new KeyedElementSelector() {
             public boolean canBeCompared(Element controlElement,
                                          Element testElement) {
                 if (!byName.canBeCompared(controlElement, testElement)) {
                     return false;
                 }
-                Map<QName, String> cAttrs = Nodes.getAttributes(controlElement);
-                Map<QName, String> tAttrs = Nodes.getAttributes(testElement);
+                Map<QName, String> cAttrs = NodeInfoCache.getAttributes(controlElement);
+                Map<QName, String> tAttrs = NodeInfoCache.getAttributes(testElement);
                 if (cAttrs.size() != tAttrs.size()) {
                     return false;
                 }
                 return mapsEqualForKeys(cAttrs, tAttrs, cAttrs.keySet());
             }
+            public Object getKey(Element element) {
+                return key(NodeInfoCache.getQName(element),
+                           NodeInfoCache.getAttributes(element));
+            }
         };
 
     /**
@@ -184,7 +214,7 @@ public final class ElementSelectors {
      * be compared.
      */
     public static final ElementSelector
-        byNameAndTextRec = new ElementSelector() {
+        byNameAndTextRec = new NamedElementSelector() {
                 public boolean canBeCompared(Element controlElement,
                                              Element testElement) {
                     if (!byNameAndText.canBeCompared(controlElement,
@@ -256,6 +286,232 @@ public final class ElementSelectors {
                 }
             };
 
+    /**
+     * Considers the same elements comparable as {@link
+     * #byNameAndTextRec} but only walks each element's subtree once.
+     *
+     * <p>The first time an element is seen its signature - made up
+     * of its name, its nested text and the signatures of its non-text
+     * children - is computed bottom-up and remembered, comparing two
+     * elements only compares their signatures afterwards.  Equal
+     * signatures share a single instance so they can be compared in
+     * constant time.</p>
+     *
+     * <p>The returned selector remembers the signature of every
+     * element it has seen for as long as the element is reachable -
+     * and each signature only for as long as an element having it is
+     * - and assumes documents are not modified once their elements
+     * have been seen.  Use a new selector for each set of
+     * documents.</p>
+     *
+     * <p>The selector may be used by concurrent comparisons without
+     * any locking.  Threads that see the same element at the same
+     * time may both compute its signature, they end up with the same
+     * shared instance.</p>
+     */
+    public static KeyedElementSelector memoizedByNameAndTextRec() {
+        return new MemoizedByNameAndTextRec();
+    }
+
+    private static class MemoizedByNameAndTextRec
+        implements KeyedElementSelector {
+        private final ConcurrentMap<WeakKey<Node>, Signature> signatures =
+            new ConcurrentHashMap<WeakKey<Node>, Signature>();
+        private final ConcurrentMap<WeakKey<Signature>, WeakKey<Signature>>
+            interned =
+            new ConcurrentHashMap<WeakKey<Signature>, WeakKey<Signature>>();
+        // keys of both maps whose referents have been collected
+        private final ReferenceQueue<Object> collected =
+            new ReferenceQueue<Object>();
+
+        public boolean canBeCompared(Element controlElement,
+                                     Element testElement) {
+            return controlElement != null
+                && testElement != null
+                && getKey(controlElement) == getKey(testElement);
+        }
+
+        public Object getKey(Element element) {
+            Signature known = lookup(element);
+            if (known != null) {
+                return known;
+            }
+            expunge();
+            // children are visited before their parents without
+            // recursion so deeply nested documents don't overflow
+            // the stack
+            LinkedList<Pending> stack = new LinkedList<Pending>();
+            stack.addFirst(new Pending(element));
+            Signature signature = null;
+            while (!stack.isEmpty()) {
+                Pending p = stack.getFirst();
+                Element child = null;
+                while (child == null && p.next < p.childCount) {
+                    Node n = p.children.item(p.next++);
+                    if (n instanceof Element) {
+                        Signature s = lookup(n);
+                        if (s == null) {
+                            child = (Element) n;
+                        } else {
+                            p.parts.add(s);
+                        }
+                    } else if (!isText(n)) {
+                        p.parts.add(Short.valueOf(n.getNodeType()));
+                    }
+                }
+                if (child != null) {
+                    stack.addFirst(new Pending(child));
+                    continue;
+                }
+                stack.removeFirst();
+                signature = intern(new Signature(p.parts));
+                // a racing thread computes the same interned instance
+                signatures.put(new WeakKey<Node>(p.element, true, collected),
+                               signature);
+                if (!stack.isEmpty()) {
+                    stack.getFirst().parts.add(signature);
+                }
+            }
+            return signature;
+        }
+
+        private Signature lookup(Node n) {
+            return signatures.get(new WeakKey<Node>(n, true, null));
+        }
+
+        private Signature intern(Signature s) {
+            WeakKey<Signature> key = new WeakKey<Signature>(s, false,
+                                                            collected);
+            while (true) {
+                WeakKey<Signature> ref = interned.putIfAbsent(key, key);
+                Signature known = ref == null ? s : ref.get();
+                if (known != null) {
+                    return known;
+                }
+                // collected since it has been found
+                interned.remove(ref, ref);
+            }
+        }
+
+        /**
+         * Removes the entries of elements and signatures that have
+         * been garbage collected.
+         */
+        private void expunge() {
+            Reference<?> r;
+            while ((r = collected.poll()) != null) {
+                WeakKey<?> key = (WeakKey<?>) r;
+                if (key.identity) {
+                    signatures.remove(key);
+                } else {
+                    interned.remove(key, key);
+                }
+            }
+        }
+
+        private static class Pending {
+            private final Element element;
+            private final NodeList children;
+            private final int childCount;
+            private final List<Object> parts = new ArrayList<Object>();
+            private int next;
+            private Pending(Element element) {
+                this.element = element;
+                children = element.getChildNodes();
+                childCount = children.getLength();
+                parts.add(NodeInfoCache.getQName(element));
+                parts.add(NodeInfoCache.getMergedNestedText(element));
+            }
+        }
+    }
+
+    /**
+     * Weak reference usable as key of a ConcurrentMap.
+     *
+     * <p>Compares the referents by identity or by equals.  A key
+     * whose referent has been collected is only equal to itself, so
+     * it can still be removed from the map.</p>
+     */
+    private static final class WeakKey<T> extends WeakReference<T> {
+        private final boolean identity;
+        private final int hash;
+
+        private WeakKey(T referent, boolean identity,
+                        ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.identity = identity;
+            hash = identity ? System.identityHashCode(referent)
+                : referent.hashCode();
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof WeakKey)) {
+                return false;
+            }
+            WeakKey<?> other = (WeakKey<?>) o;
+            Object referent = get();
+            if (referent == null || identity != other.identity
+                || hash != other.hash) {
+                return false;
+            }
+            return identity ? referent == other.get()
+                : referent.equals(other.get());
+        }
+    }
+
+    /**
+     * Signature of an element.
+     *
+     * <p>Signatures of child elements are always interned so they are
+     * compared by identity, which keeps equals and hashCode from
+     * recursing.</p>
+     */
+    private static final class Signature {
+        private final Object[] parts;
+        private final int hash;
+
+        private Signature(List<Object> parts) {
+            this.parts = parts.toArray();
+            int h = 1;
+            for (Object o : this.parts) {
+                h = 31 * h + (o == null ? 0 : o.hashCode());
+            }
+            hash = h;
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) o;
+            if (hash != other.hash || parts.length != other.parts.length) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                Object p = parts[i];
+                if (p instanceof Signature ? p != other.parts[i]
+                    : !bothNullOrEqual(p, other.parts[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     private static boolean bothNullOrEqual(Object o1, Object o2) {
         return o1 == null ? o2 == null : o1.equals(o2);
     }
@@ -271,6 +527,13 @@ public final class ElementSelectors {
         return true;
     }
 
+    /**
+     * Combines the given values into a key with value semantics.
+     */
+    private static List<Object> key(Object... values) {
+        return Arrays.asList(values);
+    }
+
     private static boolean isText(Node n) {
         return n instanceof Text || n instanceof CDATASection;
     }
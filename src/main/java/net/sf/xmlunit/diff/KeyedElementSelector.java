@@ -0,0 +1,33 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import org.w3c.dom.Element;
+
+/**
+ * ElementSelector that can describe the elements it considers
+ * comparable by a key.
+ *
+ * <p>Implementations must make sure two elements can be compared
+ * if and only if their keys are equal, this allows NodeMatchers to
+ * look up matching elements in a hash table rather than scanning
+ * all candidates.</p>
+ */
+public interface KeyedElementSelector extends ElementSelector {
+    /**
+     * Extracts the key of an element, the key must implement equals
+     * and hashCode.
+     */
+    Object getKey(Element element);
+}
@@ -0,0 +1,24 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+/**
+ * ElementSelector that never considers elements comparable unless
+ * their local names and namespace URIs are equal.
+ *
+ * <p>Allows NodeMatchers to skip all candidates of a different name
+ * without asking the selector at all.</p>
+ */
+public interface NamedElementSelector extends ElementSelector {
+}
@@ -0,0 +1,188 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import net.sf.xmlunit.util.Nodes;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Remembers names, attributes and merged nested text of the nodes
+ * taking part in a comparison.
+ *
+ * <p>While a difference engine is comparing documents on the
+ * current thread each node's QName, attribute map and merged nested
+ * text is only computed once and shared by the engine and the
+ * ElementSelectors - for the nodes of a {@link PreparedControl} it
+ * has been computed up front.  The cache is cleared once the
+ * comparison is done.  Outside of a comparison nothing is cached at
+ * all.</p>
+ *
+ * <p>The returned attribute maps are not modifiable.</p>
+ */
+public final class NodeInfoCache {
+    private NodeInfoCache() { }
+
+    private static final ThreadLocal<NodeInfoCache> CURRENT =
+        new ThreadLocal<NodeInfoCache>();
+
+    private final Map<Node, QName> names = new IdentityHashMap<Node, QName>();
+    private final Map<Node, Map<QName, String>> attributes =
+        new IdentityHashMap<Node, Map<QName, String>>();
+    private final Map<Node, String> texts = new IdentityHashMap<Node, String>();
+    private final List<PreparedControl.View> views =
+        new ArrayList<PreparedControl.View>();
+    private int depth;
+
+    /**
+     * The QName of a node.
+     *
+     * @see Nodes#getQName
+     */
+    public static QName getQName(Node n) {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache == null) {
+            return Nodes.getQName(n);
+        }
+        PreparedControl.Info info = cache.getPreparedInfo(n);
+        if (info != null) {
+            return info.name;
+        }
+        QName name = cache.names.get(n);
+        if (name == null) {
+            name = Nodes.getQName(n);
+            cache.names.put(n, name);
+        }
+        return name;
+    }
+
+    /**
+     * The attributes of a node as map.
+     *
+     * @see Nodes#getAttributes
+     */
+    public static Map<QName, String> getAttributes(Node n) {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache == null) {
+            return readAttributes(n);
+        }
+        PreparedControl.Info info = cache.getPreparedInfo(n);
+        if (info != null && info.attributeMap != null) {
+            return info.attributeMap;
+        }
+        Map<QName, String> attrs = cache.attributes.get(n);
+        if (attrs == null) {
+            attrs = readAttributes(n);
+            cache.attributes.put(n, attrs);
+        }
+        return attrs;
+    }
+
+    /**
+     * The merged text of a node's direct Text and CDATA children.
+     *
+     * @see Nodes#getMergedNestedText
+     */
+    public static String getMergedNestedText(Node n) {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache == null) {
+            return Nodes.getMergedNestedText(n);
+        }
+        PreparedControl.Info info = cache.getPreparedInfo(n);
+        if (info != null && info.mergedText != null) {
+            return info.mergedText;
+        }
+        String text = cache.texts.get(n);
+        if (text == null) {
+            text = Nodes.getMergedNestedText(n);
+            cache.texts.put(n, text);
+        }
+        return text;
+    }
+
+    /**
+     * Starts caching on the current thread, calls may be nested.
+     */
+    static void begin() {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache == null) {
+            cache = new NodeInfoCache();
+            CURRENT.set(cache);
+        }
+        cache.depth++;
+    }
+
+    /**
+     * Starts caching on the current thread and answers queries for
+     * the nodes of the given tree from the prepared control.
+     */
+    static void begin(PreparedControl.View view) {
+        begin();
+        CURRENT.get().views.add(view);
+    }
+
+    /**
+     * Ends a comparison started by {@link #begin(PreparedControl.View)}.
+     */
+    static void end(PreparedControl.View view) {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache != null) {
+            cache.views.remove(view);
+        }
+        end();
+    }
+
+    /**
+     * Ends caching on the current thread once the outermost
+     * comparison is done.
+     */
+    static void end() {
+        NodeInfoCache cache = CURRENT.get();
+        if (cache != null && --cache.depth == 0) {
+            CURRENT.remove();
+        }
+    }
+
+    private PreparedControl.Info getPreparedInfo(Node n) {
+        for (int i = views.size() - 1; i >= 0; i--) {
+            PreparedControl.Info info = views.get(i).getInfo(n);
+            if (info != null) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    private static Map<QName, String> readAttributes(Node n) {
+        NamedNodeMap attrs = n.getAttributes();
+        if (attrs == null || attrs.getLength() == 0) {
+            return Collections.emptyMap();
+        }
+        final int len = attrs.getLength();
+        Map<QName, String> map = new HashMap<QName, String>();
+        for (int i = 0; i < len; i++) {
+            Attr a = (Attr) attrs.item(i);
+            map.put(getQName(a), a.getValue());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+}
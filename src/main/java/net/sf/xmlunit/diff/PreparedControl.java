@@ -0,0 +1,622 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import net.sf.xmlunit.exceptions.XMLUnitException;
+import net.sf.xmlunit.util.Convert;
+import net.sf.xmlunit.util.Linqy;
+import net.sf.xmlunit.util.Nodes;
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * A control document that has been analyzed once so it can be
+ * compared against many test documents.
+ *
+ * <p>Holds the parsed control together with everything the {@link
+ * DOMDifferenceEngine} and the ElementSelectors would otherwise
+ * compute for each control node over and over again: QNames,
+ * attribute maps, merged nested text, the children taking part in
+ * the comparison, the split up attributes and the XPath levels of
+ * all nodes.  The per node data is computed once when the instance
+ * is created and never changes afterwards, fingerprints are computed
+ * the first time a {@link SubtreeFingerprinter} asks for them.</p>
+ *
+ * <p>DOM implementations like Xerces' don't support concurrent
+ * access, not even for reading, and NodeMatchers, ElementSelectors
+ * and SubtreeFingerprinters read the control nodes they are given.
+ * Therefore each comparison gets exclusive use of a DOM tree of the
+ * control for as long as it runs.  If the control passed in isn't
+ * in use, it is that one - so listeners see the caller's nodes
+ * unless comparisons overlap.  Otherwise a copy is built from the
+ * data computed up front (without touching the caller's DOM) and
+ * kept for later comparisons, at most maxCopies copies are built
+ * and comparisons wait for a tree to become available once all are
+ * in use.  Nodes passed to listeners must not be read after the
+ * comparison has finished since another comparison may be using
+ * them by then.</p>
+ *
+ * <p>The instance can be shared by engines running on different
+ * threads as long as nobody modifies the control DOM tree and
+ * nobody but the instance reads it while engines are using the
+ * instance.</p>
+ */
+public final class PreparedControl {
+    private final Node node;
+    private final String xmlVersion;
+    private final boolean xmlStandalone;
+    private final String xmlEncoding;
+    private final DOMImplementation implementation;
+    private final NodeData[] data;
+    /**
+     * Whether all nodes of the control can be recreated, no copies
+     * are built otherwise.
+     */
+    private final boolean copyable;
+    private final int maxCopies;
+    private final ConcurrentMap<SubtreeFingerprinter, long[]> fingerprints =
+        new ConcurrentHashMap<SubtreeFingerprinter, long[]>();
+
+    private final Object lock = new Object();
+    private final View original;
+    private final Deque<View> idle = new ArrayDeque<View>();
+    private int copies;
+
+    public PreparedControl(Source control) {
+        this(Convert.toNode(control));
+    }
+
+    public PreparedControl(Node control) {
+        this(control, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param control the control node
+     * @param maxCopies maximum number of copies of the control that
+     * are built if comparisons overlap, zero means comparisons take
+     * turns using the original control.
+     */
+    public PreparedControl(Node control, int maxCopies) {
+        if (control == null) {
+            throw new IllegalArgumentException("control must not be null");
+        }
+        if (maxCopies < 0) {
+            throw new IllegalArgumentException("maxCopies must not be"
+                                               + " negative");
+        }
+        node = control;
+        this.maxCopies = maxCopies;
+        Document doc = control instanceof Document ? (Document) control
+            : control.getOwnerDocument();
+        implementation = doc.getImplementation();
+        if (control instanceof Document) {
+            xmlVersion = doc.getXmlVersion();
+            xmlStandalone = doc.getXmlStandalone();
+            xmlEncoding = doc.getXmlEncoding();
+        } else {
+            xmlVersion = null;
+            xmlStandalone = false;
+            xmlEncoding = null;
+        }
+
+        List<Node> nodes = new ArrayList<Node>();
+        List<NodeData> collected = new ArrayList<NodeData>();
+        copyable = collect(control, nodes, collected);
+        data = collected.toArray(new NodeData[collected.size()]);
+        original = new View(this, nodes.toArray(new Node[nodes.size()]));
+        idle.push(original);
+    }
+
+    /**
+     * The control node as it has been passed in.
+     */
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Obtains exclusive use of a DOM tree of the control, waits if
+     * none is available.
+     *
+     * <p>Must be returned using {@link #checkIn checkIn}.</p>
+     */
+    View checkOut() {
+        synchronized (lock) {
+            while (idle.isEmpty() && (copies >= maxCopies || !copyable)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new XMLUnitException("Interrupted while waiting for"
+                                               + " the prepared control", ex);
+                }
+            }
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            copies++;
+        }
+        try {
+            return new View(this, rebuild());
+        } catch (RuntimeException ex) {
+            synchronized (lock) {
+                copies--;
+                lock.notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Makes a tree obtained by {@link #checkOut checkOut} available
+     * to other comparisons.
+     */
+    void checkIn(View view) {
+        synchronized (lock) {
+            // the original is handed out first whenever it is idle
+            if (view == original) {
+                idle.push(view);
+            } else {
+                idle.addLast(view);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Fingerprints of all nodes in the order of the snapshot.
+     *
+     * <p>Copies lose the XML declaration and the specified flags of
+     * attributes, so fingerprints are always computed for the
+     * original - after waiting for it if the given view is a
+     * copy.</p>
+     */
+    private long[] getFingerprints(SubtreeFingerprinter fingerprinter,
+                                   View view) {
+        long[] fps = fingerprints.get(fingerprinter);
+        if (fps != null) {
+            return fps;
+        }
+        if (view == original) {
+            fps = computeFingerprints(fingerprinter);
+        } else {
+            synchronized (lock) {
+                while (!idle.remove(original)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new XMLUnitException("Interrupted while waiting"
+                                                   + " for the prepared"
+                                                   + " control", ex);
+                    }
+                }
+            }
+            try {
+                fps = computeFingerprints(fingerprinter);
+            } finally {
+                checkIn(original);
+            }
+        }
+        long[] other = fingerprints.putIfAbsent(fingerprinter, fps);
+        return other != null ? other : fps;
+    }
+
+    private long[] computeFingerprints(SubtreeFingerprinter fingerprinter) {
+        Map<Node, Long> cache = new IdentityHashMap<Node, Long>();
+        fingerprinter.getFingerprint(original.node, cache);
+        long[] fps = new long[data.length];
+        for (int i = 0; i < fps.length; i++) {
+            Long fp = cache.get(original.nodes[i]);
+            fps[i] = fp != null ? fp.longValue() : 0;
+        }
+        return fps;
+    }
+
+    /**
+     * A DOM tree of the control and everything that has been
+     * computed for it, only used by one comparison at a time.
+     */
+    static final class View {
+        /**
+         * The control node of this tree.
+         */
+        final Node node;
+        /**
+         * XML declaration of the original control if it is a
+         * Document, copies don't have it.
+         */
+        final String xmlVersion;
+        final boolean xmlStandalone;
+        final String xmlEncoding;
+        private final PreparedControl owner;
+        private final Node[] nodes;
+        private final XPathContext context;
+        private final Map<Node, Info> infos;
+        // contexts for non-empty namespace contexts, created on demand
+        private final ConcurrentMap<Map<String, String>, XPathContext>
+            prefixedContexts =
+            new ConcurrentHashMap<Map<String, String>, XPathContext>();
+
+        private View(PreparedControl owner, Node[] nodes) {
+            this.owner = owner;
+            this.nodes = nodes;
+            node = nodes[0];
+            xmlVersion = owner.xmlVersion;
+            xmlStandalone = owner.xmlStandalone;
+            xmlEncoding = owner.xmlEncoding;
+            infos = Collections.unmodifiableMap(prepare(nodes, owner.data));
+            context = createContext(node, infos, new XPathContext());
+        }
+
+        /**
+         * A context positioned at the control node that already
+         * knows all descendants.
+         */
+        XPathContext newXPathContext() {
+            return context.copy();
+        }
+
+        /**
+         * A context positioned at the control node that already
+         * knows all descendants and uses the given prefixes.
+         */
+        XPathContext newXPathContext(Map<String, String> uri2Prefix) {
+            if (uri2Prefix.isEmpty()) {
+                return newXPathContext();
+            }
+            XPathContext c = prefixedContexts.get(uri2Prefix);
+            if (c == null) {
+                Map<String, String> key =
+                    new HashMap<String, String>(uri2Prefix);
+                c = createContext(node, infos, new XPathContext(key));
+                XPathContext old = prefixedContexts.putIfAbsent(key, c);
+                if (old != null) {
+                    c = old;
+                }
+            }
+            return c.copy();
+        }
+
+        /**
+         * Information about a node of this tree, null if the node
+         * doesn't belong to it.
+         */
+        Info getInfo(Node n) {
+            return infos.get(n);
+        }
+
+        /**
+         * The fingerprint of a node of this tree.
+         */
+        long getFingerprint(SubtreeFingerprinter fingerprinter, Info info) {
+            return owner.getFingerprints(fingerprinter, this)[info.index];
+        }
+    }
+
+    /**
+     * What is known about a node of a {@link View}.
+     */
+    static final class Info {
+        /**
+         * Position of the node in the snapshot.
+         */
+        final int index;
+        final QName name;
+        final List<Node> children;
+        final BaseDOMDifferenceEngine.Attributes attributes;
+        /**
+         * Whether an attribute has been specified explicitly.
+         */
+        final boolean specified;
+        /**
+         * Attributes of an element, null for other nodes.
+         */
+        final Map<QName, String> attributeMap;
+        /**
+         * Merged nested text of an element, null for other nodes.
+         */
+        final String mergedText;
+        private Info(NodeData[] data, int index, List<Node> children,
+                     BaseDOMDifferenceEngine.Attributes attributes) {
+            this.index = index;
+            name = data[index].name;
+            specified = data[index].specified;
+            attributeMap = data[index].attributeMap;
+            mergedText = data[index].mergedText;
+            this.children = children;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Immutable snapshot of a single node of the control.
+     */
+    private static final class NodeData {
+        private final short type;
+        private final int parent;
+        private final String namespaceURI;
+        private final String nodeName;
+        private final boolean namespaceAware;
+        private final String value;
+        private final String publicId;
+        private final String systemId;
+        private final QName name;
+        private final boolean specified;
+        private final Map<QName, String> attributeMap;
+        private final String mergedText;
+
+        private NodeData(Node n, int parent) {
+            type = n.getNodeType();
+            this.parent = parent;
+            namespaceURI = n.getNamespaceURI();
+            nodeName = n.getNodeName();
+            namespaceAware = n.getLocalName() != null;
+            name = Nodes.getQName(n);
+            specified = !(n instanceof Attr) || ((Attr) n).getSpecified();
+            if (n instanceof DocumentType) {
+                publicId = ((DocumentType) n).getPublicId();
+                systemId = ((DocumentType) n).getSystemId();
+            } else {
+                publicId = null;
+                systemId = null;
+            }
+            if (n instanceof Element) {
+                value = null;
+                attributeMap = Collections.unmodifiableMap(Nodes
+                                                           .getAttributes(n));
+                mergedText = Nodes.getMergedNestedText(n);
+            } else {
+                value = n instanceof ProcessingInstruction
+                    ? ((ProcessingInstruction) n).getData() : n.getNodeValue();
+                attributeMap = null;
+                mergedText = null;
+            }
+        }
+    }
+
+    /**
+     * Collects the snapshots of all nodes (including attributes and
+     * the doctype) in breadth first order so parents precede their
+     * attributes and children.
+     *
+     * @return whether all nodes can be recreated.
+     */
+    private static boolean collect(Node root, List<Node> nodes,
+                                   List<NodeData> data) {
+        boolean copyable = true;
+        LinkedList<Node> pending = new LinkedList<Node>();
+        LinkedList<Integer> parents = new LinkedList<Integer>();
+        pending.add(root);
+        parents.add(Integer.valueOf(-1));
+        while (!pending.isEmpty()) {
+            Node n = pending.removeFirst();
+            int parent = parents.removeFirst().intValue();
+            int index = nodes.size();
+            nodes.add(n);
+            data.add(new NodeData(n, parent));
+            switch (n.getNodeType()) {
+            case Node.ENTITY_REFERENCE_NODE:
+                // can't be recreated with the same children
+                copyable = false;
+                break;
+            case Node.ELEMENT_NODE:
+                NamedNodeMap attrs = n.getAttributes();
+                final int attrCount = attrs.getLength();
+                for (int i = 0; i < attrCount; i++) {
+                    pending.add(attrs.item(i));
+                    parents.add(Integer.valueOf(index));
+                }
+                break;
+            case Node.ATTRIBUTE_NODE:
+                // only the value is recreated
+                continue;
+            default:
+                break;
+            }
+            NodeList children = n.getChildNodes();
+            final int len = children.getLength();
+            for (int i = 0; i < len; i++) {
+                pending.add(children.item(i));
+                parents.add(Integer.valueOf(index));
+            }
+        }
+        return copyable;
+    }
+
+    /**
+     * Builds a new DOM tree from the snapshot, the returned array
+     * holds the nodes in the order of the snapshot.
+     */
+    private Node[] rebuild() {
+        Node[] nodes = new Node[data.length];
+        Document doc;
+        synchronized (lock) {
+            doc = implementation.createDocument(null, null, null);
+            if (data[0].type == Node.DOCUMENT_NODE) {
+                for (int i = 1; i < data.length && data[i].parent == 0; i++) {
+                    if (data[i].type == Node.DOCUMENT_TYPE_NODE) {
+                        nodes[i] = implementation
+                            .createDocumentType(data[i].nodeName,
+                                                data[i].publicId,
+                                                data[i].systemId);
+                    }
+                }
+            }
+        }
+        doc.setStrictErrorChecking(false);
+        if (data[0].type == Node.DOCUMENT_NODE) {
+            nodes[0] = doc;
+            if (xmlVersion != null) {
+                doc.setXmlVersion(xmlVersion);
+            }
+            doc.setXmlStandalone(xmlStandalone);
+        } else {
+            nodes[0] = create(doc, data[0]);
+        }
+        for (int i = 1; i < data.length; i++) {
+            NodeData d = data[i];
+            Node n = nodes[i] != null ? nodes[i] : create(doc, d);
+            nodes[i] = n;
+            Node parent = nodes[d.parent];
+            if (n instanceof Attr) {
+                if (d.namespaceAware) {
+                    ((Element) parent).setAttributeNodeNS((Attr) n);
+                } else {
+                    ((Element) parent).setAttributeNode((Attr) n);
+                }
+            } else {
+                parent.appendChild(n);
+            }
+        }
+        doc.setStrictErrorChecking(true);
+        return nodes;
+    }
+
+    private static Node create(Document doc, NodeData d) {
+        switch (d.type) {
+        case Node.ELEMENT_NODE:
+            return d.namespaceAware
+                ? doc.createElementNS(d.namespaceURI, d.nodeName)
+                : doc.createElement(d.nodeName);
+        case Node.ATTRIBUTE_NODE:
+            Attr a = d.namespaceAware
+                ? doc.createAttributeNS(d.namespaceURI, d.nodeName)
+                : doc.createAttribute(d.nodeName);
+            a.setValue(d.value);
+            return a;
+        case Node.TEXT_NODE:
+            return doc.createTextNode(d.value);
+        case Node.CDATA_SECTION_NODE:
+            return doc.createCDATASection(d.value);
+        case Node.COMMENT_NODE:
+            return doc.createComment(d.value);
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            return doc.createProcessingInstruction(d.nodeName, d.value);
+        case Node.DOCUMENT_FRAGMENT_NODE:
+            return doc.createDocumentFragment();
+        default:
+            throw new IllegalStateException("can't copy node of type "
+                                            + d.type);
+        }
+    }
+
+    private static Map<Node, Info> prepare(Node[] nodes, NodeData[] data) {
+        Map<Node, Integer> indices = new IdentityHashMap<Node, Integer>();
+        for (int i = 0; i < nodes.length; i++) {
+            indices.put(nodes[i], Integer.valueOf(i));
+        }
+
+        Map<Node, Info> infos = new IdentityHashMap<Node, Info>();
+        LinkedList<Node> pending = new LinkedList<Node>();
+        pending.add(nodes[0]);
+        while (!pending.isEmpty()) {
+            Node n = pending.removeFirst();
+            List<Node> children =
+                Collections.unmodifiableList(BaseDOMDifferenceEngine
+                                             .getChildren(n));
+
+            BaseDOMDifferenceEngine.Attributes attributes = null;
+            if (n instanceof Element) {
+                attributes = BaseDOMDifferenceEngine
+                    .splitAttributes(n.getAttributes());
+                for (Attr a : attributes.remainingAttributes) {
+                    infos.put(a, new Info(data, indices.get(a).intValue(),
+                                          null, null));
+                }
+            }
+            infos.put(n, new Info(data, indices.get(n).intValue(),
+                                  children, attributes));
+            pending.addAll(children);
+            if (n.getNodeType() == Node.DOCUMENT_NODE) {
+                Node dt = ((Document) n).getDoctype();
+                if (dt != null) {
+                    infos.put(dt, new Info(data, indices.get(dt).intValue(),
+                                           Collections.<Node>emptyList(),
+                                           null));
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Makes the given context positioned at root know all of root's
+     * descendants and their attributes.
+     *
+     * <p>The doctype is compared using the document's context and
+     * doesn't get a context of its own.</p>
+     */
+    private static XPathContext createContext(Node root, Map<Node, Info> infos,
+                                              XPathContext rootContext) {
+        LinkedList<Pending> pending = new LinkedList<Pending>();
+        pending.add(new Pending(root, rootContext));
+        while (!pending.isEmpty()) {
+            Pending p = pending.removeFirst();
+            Info info = infos.get(p.node);
+            p.context.setChildren(Linqy.map(info.children, DOM_NODE_INFO));
+            if (info.attributes != null) {
+                List<QName> names = new ArrayList<QName>();
+                for (Attr a : info.attributes.remainingAttributes) {
+                    names.add(infos.get(a).name);
+                }
+                p.context.addAttributes(names);
+            }
+
+            final int len = info.children.size();
+            for (int i = 0; i < len; i++) {
+                XPathContext c = p.context.copy();
+                c.navigateToChild(i);
+                pending.add(new Pending(info.children.get(i), c));
+            }
+        }
+        return rootContext;
+    }
+
+    private static class Pending {
+        private final Node node;
+        private final XPathContext context;
+        private Pending(Node node, XPathContext context) {
+            this.node = node;
+            this.context = context;
+        }
+    }
+
+    private static final Linqy.Mapper<Node, XPathContext.NodeInfo>
+        DOM_NODE_INFO = new Linqy.Mapper<Node, XPathContext.NodeInfo>() {
+        public XPathContext.NodeInfo map(Node n) {
+            return new XPathContext.DOMNodeInfo(n);
+        }
+    };
+}
@@ -16,16 +16,14 @@ package net.sf.xmlunit.diff;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import javax.xml.namespace.QName;
-import net.sf.xmlunit.util.Nodes;
 import org.w3c.dom.Node;
 
 public class XPathContext {
-    // that would be Deque<Level> in Java 6+
-    private final LinkedList<Level> path = new LinkedList<Level>();
+    // each Level knows its parent, so the current Level is the path
+    private Level current;
     private final Map<String, String> uri2Prefix;
 
     private static final String COMMENT = "comment()";
@@ -37,6 +35,17 @@ public class XPathContext {
     private static final String ATTR = "@";
     private static final String EMPTY = "";
 
+    /**
+     * Ancestors whose XPath is longer than this are only cached at
+     * every {@link #CHECKPOINT_DISTANCE}-th level.
+     */
+    static final int MAX_CACHED_LENGTH = 1024;
+    /**
+     * Maximum number of steps needed to compute an XPath from an
+     * ancestor's cached one.
+     */
+    static final int CHECKPOINT_DISTANCE = 32;
+
     public XPathContext() {
         this(null);
     }
@@ -47,92 +56,181 @@ public class XPathContext {
         } else {
             this.uri2Prefix = Collections.unmodifiableMap(uri2Prefix);
         }
-        path.addLast(new Level(EMPTY));
+        current = new Level(null, Level.ROOT, null, 0, this.uri2Prefix);
+    }
+
+    private XPathContext(Map<String, String> uri2Prefix, Level current) {
+        this.uri2Prefix = uri2Prefix;
+        this.current = current;
+    }
+
+    /**
+     * Creates a new context positioned at the current node of this
+     * context that can be navigated independently of this one.
+     *
+     * <p>Both contexts share the information about nodes already
+     * known, so only one of them may set the children or add the
+     * attributes of any given node afterwards.</p>
+     */
+    public XPathContext copy() {
+        return new XPathContext(uri2Prefix, current);
     }
 
     public void navigateToChild(int index) {
-        path.addLast(path.getLast().children.get(index));
+        List<Level> children = current.children;
+        current = (children == null ? Collections.<Level>emptyList()
+                   : children).get(index);
     }
 
     public void navigateToAttribute(QName attribute) {
-        path.addLast(path.getLast().attributes.get(attribute));
+        Map<QName, Level> attributes = current.attributes;
+        current = attributes == null ? null : attributes.get(attribute);
     }
 
     public void navigateToParent() {
-        path.removeLast();
+        current = current.parent;
     }
 
     public void addAttributes(Iterable<? extends QName> attributes) {
-        Level current = path.getLast();
         for (QName attribute : attributes) {
+            if (current.attributes == null) {
+                current.attributes = new HashMap<QName, Level>();
+            }
             current.attributes.put(attribute,
-                                   new Level(ATTR + getName(attribute)));
+                                   new Level(current, Node.ATTRIBUTE_NODE,
+                                             attribute, 0, uri2Prefix));
         }
     }
 
     public void setChildren(Iterable<? extends NodeInfo> children) {
-        Level current = path.getLast();
-        current.children.clear();
+        current.children = null;
+        current.comments = current.pis = current.texts = 0;
+        current.elements = null;
         appendChildren(children);
     }
 
+    /**
+     * Adds children to the current node, indices continue where the
+     * existing children left off.
+     *
+     * <p>Each Level keeps running counts of its children per node
+     * type and element name, so appending takes constant time per
+     * child regardless of how many children exist already.  Only
+     * the type, name and index of each child are recorded, its XPath
+     * expression is rendered if somebody asks for it.</p>
+     */
     public void appendChildren(Iterable<? extends NodeInfo> children) {
-        Level current = path.getLast();
-        int comments, pis, texts;
-        comments = pis = texts = 0;
-        Map<String, Integer> elements = new HashMap<String, Integer>();
-
-        for (Level l : current.children) {
-            String childName = l.expression;
-            if (childName.startsWith(COMMENT)) {
-                comments++;
-            } else if (childName.startsWith(PI)) {
-                pis++;
-            } else if (childName.startsWith(TEXT)) {
-                texts++;
-            } else {
-                childName = childName.substring(0, childName.indexOf(OPEN));
-                add1OrIncrement(childName, elements);
-            }
-        }
-
         for (NodeInfo child : children) {
-            Level l = null;
-            switch (child.getType()) {
+            short type = child.getType();
+            QName name = null;
+            int index = 0;
+            switch (type) {
             case Node.COMMENT_NODE:
-                l = new Level(COMMENT + OPEN + (++comments) + CLOSE);
+                index = ++current.comments;
                 break;
             case Node.PROCESSING_INSTRUCTION_NODE:
-                l = new Level(PI + OPEN + (++pis) + CLOSE);
+                index = ++current.pis;
                 break;
             case Node.CDATA_SECTION_NODE:
             case Node.TEXT_NODE:
-                l = new Level(TEXT + OPEN + (++texts) + CLOSE);
+                type = Node.TEXT_NODE;
+                index = ++current.texts;
                 break;
             case Node.ELEMENT_NODE:
-                String name = getName(child.getName());
-                l = new Level(name + OPEN + add1OrIncrement(name, elements)
-                              + CLOSE);
+                if (current.elements == null) {
+                    current.elements = new HashMap<Object, Integer>();
+                }
+                name = child.getName();
+                index = add1OrIncrement(nameKey(name), current.elements);
                 break;
             default:
                 // more or less ignore
                 // FIXME: is this a good thing?
-                l = new Level(EMPTY);
                 break;
             }
-            current.children.add(l);
+            if (current.children == null) {
+                current.children = new ArrayList<Level>();
+            }
+            current.children.add(new Level(current, type, name, index,
+                                           uri2Prefix));
         }
     }
 
     public String getXPath() {
-        StringBuilder sb = new StringBuilder();
-        for (Level l : path) {
-            sb.append(SEP).append(l.expression);
+        return getXPath(current);
+    }
+
+    /**
+     * The Level the context currently points to.
+     *
+     * <p>Levels never change their position once created, so the
+     * returned object can be used to compute the XPath of the current
+     * node later even if the context has moved on since.</p>
+     */
+    Level getCurrentLevel() {
+        return current;
+    }
+
+    /**
+     * The XPath expression leading to the given Level.
+     *
+     * <p>The expression is computed once per Level when it is first
+     * requested, starting from the closest ancestor whose expression
+     * is already known.  The expressions of the ancestors visited on
+     * the way are remembered as well, so the XPaths of siblings and
+     * cousins only need the steps below their common ancestor.  For
+     * very deep documents only every {@link #CHECKPOINT_DISTANCE}-th
+     * ancestor with a long XPath is remembered, caching all of them
+     * would require memory quadratic in the depth of the
+     * document.</p>
+     */
+    static String getXPath(Level level) {
+        String xpath = level.xpath;
+        if (xpath == null) {
+            ArrayList<Level> path = new ArrayList<Level>();
+            Level l = level;
+            for (; l != null && l.xpath == null; l = l.parent) {
+                path.add(l);
+            }
+            StringBuilder sb = new StringBuilder();
+            if (l != null) {
+                sb.append(l.xpath);
+            }
+            // Strings are immutable, a racing thread at worst computes
+            // the same expressions again
+            for (int i = path.size() - 1; i >= 0; i--) {
+                l = path.get(i);
+                appendStep(sb, l.getExpression());
+                if (i == 0 || isWorthCaching(sb.length(), l.depth)) {
+                    l.xpath = sb.toString();
+                }
+            }
+            xpath = level.xpath;
+        }
+        return xpath;
+    }
+
+    /**
+     * Whether the XPath of an ancestor at the given depth should be
+     * remembered while computing the XPath of one of its descendants.
+     */
+    static boolean isWorthCaching(int xpathLength, int depth) {
+        return xpathLength <= MAX_CACHED_LENGTH
+            || depth % CHECKPOINT_DISTANCE == 0;
+    }
+
+    /**
+     * Appends a single step to an XPath under construction, an empty
+     * builder starts the XPath of a root.
+     */
+    static void appendStep(StringBuilder xpath, String expression) {
+        if (xpath.length() == 0 || xpath.charAt(xpath.length() - 1) != '/') {
+            xpath.append(SEP);
         }
-        return sb.toString().replace(SEP + SEP, SEP);
+        xpath.append(expression);
     }
 
-    private String getName(QName name) {
+    private static String getName(QName name, Map<String, String> uri2Prefix) {
         String ns = name.getNamespaceURI();
         String p = null;
         if (ns != null) {
@@ -141,25 +239,86 @@ public class XPathContext {
         return (p == null ? EMPTY : p + ":") + name.getLocalPart();
     }
 
+    /**
+     * Elements are counted by the name they are rendered with, this
+     * returns an object with the same equality without rendering the
+     * name.
+     */
+    private Object nameKey(QName name) {
+        String ns = name.getNamespaceURI();
+        String p = ns == null ? null : uri2Prefix.get(ns);
+        return p == null ? name.getLocalPart()
+            : new QName(p, name.getLocalPart());
+    }
+
     /**
      * Increments the value name maps to or adds 1 as value if name
      * isn't present inside the map.
      *
      * @return the new mapping for name
      */
-    private static int add1OrIncrement(String name, Map<String, Integer> map) {
+    private static int add1OrIncrement(Object name, Map<Object, Integer> map) {
         Integer old = map.get(name);
         int index = old == null ? 1 : (old.intValue() + 1);
         map.put(name, Integer.valueOf(index));
         return index;
     }
 
-    private static class Level {
-        private final String expression;
-        private List<Level> children = new ArrayList<Level>();
-        private Map<QName, Level> attributes = new HashMap<QName, Level>();
-        private Level(String expression) {
-            this.expression = expression;
+    /**
+     * A node known to the context.
+     *
+     * <p>Only stores the node's type, name and index among its
+     * siblings of the same type (and name), collections are only
+     * created for nodes that have children or attributes.</p>
+     */
+    static class Level {
+        private static final short ROOT = 0;
+
+        private final Level parent;
+        private final short type;
+        private final QName name;
+        private final int index;
+        private final Map<String, String> uri2Prefix;
+        private final int depth;
+        private String xpath;
+        private List<Level> children;
+        private Map<QName, Level> attributes;
+        // number of children per node type and element name
+        private int comments, pis, texts;
+        private Map<Object, Integer> elements;
+
+        private Level(Level parent, short type, QName name, int index,
+                      Map<String, String> uri2Prefix) {
+            this.parent = parent;
+            this.type = type;
+            this.name = name;
+            this.index = index;
+            this.uri2Prefix = uri2Prefix;
+            depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        /**
+         * The XPath if it has been computed already, null otherwise.
+         */
+        String getKnownXPath() {
+            return xpath;
+        }
+
+        private String getExpression() {
+            switch (type) {
+            case Node.COMMENT_NODE:
+                return COMMENT + OPEN + index + CLOSE;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return PI + OPEN + index + CLOSE;
+            case Node.TEXT_NODE:
+                return TEXT + OPEN + index + CLOSE;
+            case Node.ELEMENT_NODE:
+                return getName(name, uri2Prefix) + OPEN + index + CLOSE;
+            case Node.ATTRIBUTE_NODE:
+                return ATTR + getName(name, uri2Prefix);
+            default:
+                return EMPTY;
+            }
         }
     }
 
@@ -172,7 +331,7 @@ public class XPathContext {
         private QName name;
         private short type;
         public DOMNodeInfo(Node n) {
-            name = Nodes.getQName(n);
+            name = NodeInfoCache.getQName(n);
             type = n.getNodeType();
         }
         public QName getName() { return name; }
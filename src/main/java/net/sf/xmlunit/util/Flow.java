@@ -0,0 +1,84 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.util;
+
+/**
+ * Interfaces for publishers of items that honor the demand of their
+ * subscribers.
+ *
+ * <p>Mirror the interfaces of the same names in
+ * java.util.concurrent.Flow (and Reactive Streams) for runtimes that
+ * don't provide them.</p>
+ */
+public final class Flow {
+    private Flow() { }
+
+    /**
+     * Produces items for the subscribers that have requested them.
+     */
+    public static interface Publisher<T> {
+        /**
+         * Adds a subscriber, invokes its onSubscribe method before
+         * any other method.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items of a publisher, never more items than it has
+     * requested.
+     */
+    public static interface Subscriber<T> {
+        /**
+         * Invoked before any other method, no items will be
+         * published before items have been requested through the
+         * subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Receives the next item.
+         */
+        void onNext(T item);
+
+        /**
+         * Invoked when the publisher failed, no other method will be
+         * invoked afterwards.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Invoked when there are no more items, no other method will
+         * be invoked afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Links a publisher to a subscriber.
+     */
+    public static interface Subscription {
+        /**
+         * Adds n to the number of items the subscriber is willing to
+         * receive, n must be positive.
+         */
+        void request(long n);
+
+        /**
+         * Tells the publisher to stop sending items, it may still
+         * send some items that have already been requested.
+         */
+        void cancel();
+    }
+}
@@ -13,6 +13,7 @@
 */
 package net.sf.xmlunit.diff
 
+import javax.xml.transform.Source
 import scala.reflect.BeanProperty
 
 /**
@@ -24,6 +25,15 @@ abstract class AbstractDifferenceEngine extends DifferenceEngine {
   @BeanProperty var nodeMatcher: NodeMatcher = new DefaultNodeMatcher
   @BeanProperty var differenceEvaluator = DifferenceEvaluators.Default
   @BeanProperty var namespaceContext = Map.empty[String, String] 
+  private val disabledComparisonTypes =
+    java.util.EnumSet.noneOf(classOf[ComparisonType])
+
+  /**
+   * Lowest outcome that decides the verdict while isIdentical or
+   * isSimilar is running, null otherwise.
+   */
+  private var verdictThreshold: ComparisonResult = null
+  private var verdictReached = false
 
   def addComparisonListener(listener: ComparisonListener) {
     require(Option(listener).isDefined, "listener must not be null")
@@ -40,22 +50,305 @@ abstract class AbstractDifferenceEngine extends DifferenceEngine {
     this.listeners.addDifferenceListener(listener)
   }
 
+  /**
+   * Disables comparisons of the given types.
+   *
+   * <p>The engine doesn't perform disabled comparisons at all -
+   * where possible it doesn't even look up the values to compare -
+   * so they reach neither the difference evaluator nor any
+   * listener.</p>
+   */
+  def setDisabledComparisonTypes(types: java.util.Set[ComparisonType]) {
+    require(Option(types).isDefined, "types must not be null")
+    this.disabledComparisonTypes.clear()
+    this.disabledComparisonTypes.addAll(types)
+  }
+
+  def getDisabledComparisonTypes: java.util.Set[ComparisonType] =
+    java.util.Collections.unmodifiableSet(
+      java.util.EnumSet.copyOf(this.disabledComparisonTypes)
+    )
+
+  /**
+   * Whether comparisons of the given type are performed at all.
+   */
+  protected def isEnabled(comparisonType: ComparisonType) =
+    !this.disabledComparisonTypes.contains(comparisonType)
+
+  /**
+   * Makes a task run by the given Executor notify the listeners.
+   *
+   * <p>Each call to compare waits for the listeners to catch up
+   * before it returns, {@link #close close} switches back to notifying
+   * listeners synchronously.</p>
+   *
+   * @see ComparisonListenerSupport#dispatchAsynchronously
+   */
+  def dispatchAsynchronously(
+    executor: java.util.concurrent.Executor,
+    capacity: Int,
+    backpressure: ComparisonListenerSupport.Backpressure,
+    waitStrategy: ComparisonListenerSupport.WaitStrategy
+  ) {
+    this.listeners.dispatchAsynchronously(
+      executor, capacity, backpressure, waitStrategy
+    )
+  }
+
+  /**
+   * Makes tasks run by the given Executor notify the listeners,
+   * the listeners are shared among the given number of tasks.
+   *
+   * @see ComparisonListenerSupport#dispatchAsynchronously
+   */
+  def dispatchAsynchronously(
+    executor: java.util.concurrent.Executor,
+    capacity: Int,
+    backpressure: ComparisonListenerSupport.Backpressure,
+    waitStrategy: ComparisonListenerSupport.WaitStrategy,
+    consumers: Int
+  ) {
+    this.listeners.dispatchAsynchronously(
+      executor, capacity, backpressure, waitStrategy, consumers
+    )
+  }
+
+  /**
+   * Number of comparisons that haven't been passed to the listeners
+   * because asynchronous dispatch was lagging behind.
+   */
+  def getDroppedComparisons = this.listeners.getDroppedComparisons
+
+  /**
+   * Stops asynchronous dispatch of comparisons.
+   */
+  def close() {
+    this.listeners.close()
+  }
+
+  /**
+   * Whether listeners are notified asynchronously.
+   */
+  protected def isDispatchingAsynchronously =
+    this.listeners.isDispatchingAsynchronously
+
+  /**
+   * Whether any listener wants to be notified of comparisons with
+   * the given outcome.
+   */
+  protected def hasListenersFor(outcome: ComparisonResult) =
+    this.listeners.hasListenersFor(outcome)
+
+  /**
+   * The namespace context as a Java Map from URI to prefix.
+   */
+  protected def getUri2Prefix: java.util.Map[String, String] =
+    scala.collection.JavaConversions.mapAsJavaMap(
+      Option(this.namespaceContext).getOrElse(Map.empty[String, String])
+    )
+
+  /**
+   * Waits until all comparisons have been passed to the listeners.
+   *
+   * <p>Must be invoked at the end of each compare call, even if the
+   * comparison has failed.</p>
+   */
+  protected def flushListeners() {
+    this.listeners.flush()
+  }
+
+  /**
+   * Waits until all comparisons have been passed to the listeners
+   * after a comparison has failed with the given exception.
+   *
+   * <p>Exceptions thrown while flushing must not hide the one of
+   * the comparison, they are added to it as suppressed exceptions
+   * if the runtime supports that.  Does the same as
+   * flushListeners() if pending is null.</p>
+   */
+  protected def flushListeners(pending: Throwable) {
+    if (pending == null) this.flushListeners()
+    else try this.flushListeners() catch {
+      case t: Throwable => AbstractDifferenceEngine.addSuppressed(pending, t)
+    }
+  }
+
+  def isIdentical(control: Source, test: Source) =
+    this.verdict(ComparisonResult.SIMILAR) { this.compare(control, test) }
+
+  def isSimilar(control: Source, test: Source) =
+    this.verdict(ComparisonResult.DIFFERENT) { this.compare(control, test) }
+
+  /**
+   * Runs the given comparison in verdict mode and tells whether no
+   * outcome reached the given threshold.
+   *
+   * <p>In verdict mode comparisons whose values are equal neither
+   * create a Comparison nor consult the difference evaluator, which
+   * assumes the evaluator keeps EQUAL outcomes intact.  No listener
+   * is notified and the first outcome at or above the threshold is
+   * turned into {@link ComparisonResult#CRITICAL} to stop the
+   * comparison.</p>
+   */
+  protected def verdict(threshold: ComparisonResult)(comparison: => Unit) = {
+    this.verdictThreshold = threshold
+    this.verdictReached = false
+    try {
+      comparison
+      !this.verdictReached
+    } finally {
+      this.verdictThreshold = null
+    }
+  }
+
+  /**
+   * Whether the engine is running on behalf of isIdentical or
+   * isSimilar.
+   */
+  protected def isVerdictMode = this.verdictThreshold != null
+
+  /**
+   * Whether the engine is running on behalf of isSimilar so SIMILAR
+   * outcomes don't affect the result.
+   */
+  protected def isSimilarityVerdict =
+    this.verdictThreshold == ComparisonResult.DIFFERENT
+
   /**
    * Compares the detail values for object equality, lets the
    * difference evaluator evaluate the result, notifies all
    * listeners and returns the outcome.
+   *
+   * <p>Comparisons of disabled types are EQUAL without further
+   * ado.</p>
    */
-  protected def compare[A, B](comparison: Comparison[A, B]) = {
-    val initial = if (
-      Option(comparison.controlDetails.value) ==
-      Option(comparison.testDetails.value)
-    ) ComparisonResult.EQUAL else ComparisonResult.DIFFERENT
-    val altered = this.differenceEvaluator.evaluate(comparison, initial)
-    this.listeners.fireComparisonPerformed(comparison, altered)
-    altered
+  protected def compare[A, B](comparison: Comparison[A, B]) =
+    if (!this.isEnabled(comparison.getType)) ComparisonResult.EQUAL
+    else {
+      val initial = if (
+        comparison.controlValue == comparison.testValue
+      ) ComparisonResult.EQUAL else ComparisonResult.DIFFERENT
+      val altered = this.differenceEvaluator.evaluate(comparison, initial)
+      if (!this.isVerdictMode) {
+        this.fireComparisonPerformed(comparison, altered)
+        altered
+      } else if (altered.compareTo(this.verdictThreshold) >= 0) {
+        this.verdictReached = true
+        ComparisonResult.CRITICAL
+      } else altered
+    }
+
+  /**
+   * Notifies all listeners of the outcome of a comparison.
+   */
+  protected def fireComparisonPerformed[A, B](
+    comparison: Comparison[A, B],
+    outcome: ComparisonResult
+  ) {
+    this.listeners.fireComparisonPerformed(comparison, outcome)
   }
 
+  /**
+   * Creates a Comparison for the current positions of the given
+   * contexts and compares it.
+   *
+   * <p>The XPaths of the comparison's details are only computed if
+   * someone asks for them.  Nothing at all is allocated if the
+   * comparison can be skipped.</p>
+   */
+  protected def compare[A, B](
+    comparisonType: ComparisonType,
+    controlTarget: A,
+    controlContext: XPathContext,
+    controlValue: B,
+    testTarget: A,
+    testContext: XPathContext,
+    testValue: B
+  ): ComparisonResult = if (
+    this.canSkip(comparisonType, controlValue == testValue)
+  ) ComparisonResult.EQUAL else {
+    val controlLevel = AbstractDifferenceEngine.currentLevel(controlContext)
+    val testLevel = AbstractDifferenceEngine.currentLevel(testContext)
+    this.compareLazily(
+      comparisonType,
+      controlTarget, AbstractDifferenceEngine.getXPath(controlLevel), controlValue,
+      testTarget, AbstractDifferenceEngine.getXPath(testLevel), testValue
+    )
+  }
+
+  /**
+   * Like compare for the current positions of two contexts but for
+   * counts that are only boxed if a Comparison has to be created.
+   */
+  protected def compareCounts[A](
+    comparisonType: ComparisonType,
+    controlTarget: A,
+    controlContext: XPathContext,
+    controlCount: Int,
+    testTarget: A,
+    testContext: XPathContext,
+    testCount: Int
+  ): ComparisonResult = if (
+    this.canSkip(comparisonType, controlCount == testCount)
+  ) ComparisonResult.EQUAL else this.compare(
+    comparisonType,
+    controlTarget, controlContext, Integer.valueOf(controlCount),
+    testTarget, testContext, Integer.valueOf(testCount)
+  )
+
+  /**
+   * Whether a comparison is known to be EQUAL without creating it:
+   * its type is disabled or the engine is in verdict mode and the
+   * values are equal.
+   */
+  private def canSkip(comparisonType: ComparisonType, equalValues: Boolean) =
+    !this.isEnabled(comparisonType) || (this.isVerdictMode && equalValues)
+
+  /**
+   * Creates a Comparison whose XPaths are only computed if someone
+   * asks for them and compares it.
+   *
+   * <p>No Comparison is created at all if the type is disabled or,
+   * in verdict mode, if the values are equal.  The XPath arguments
+   * are passed by name, so callers allocate them in any case.</p>
+   */
+  protected def compareLazily[A, B](
+    comparisonType: ComparisonType,
+    controlTarget: A,
+    controlXPath: => String,
+    controlValue: B,
+    testTarget: A,
+    testXPath: => String,
+    testValue: B
+  ): ComparisonResult = if (
+    this.canSkip(comparisonType, controlValue == testValue)
+  ) ComparisonResult.EQUAL else this.compare(Comparison.lazily(
+    comparisonType,
+    controlTarget, controlXPath, controlValue,
+    testTarget, testXPath, testValue
+  ))
+
   protected def getXPath(context: XPathContext) =
     Option(context).map(_.getXPath).orNull
 }
 
+private object AbstractDifferenceEngine {
+  def currentLevel(context: XPathContext) =
+    if (context == null) null else context.getCurrentLevel
+
+  def getXPath(level: XPathContext.Level) =
+    if (level == null) null else XPathContext.getXPath(level)
+
+  /**
+   * Throwable.addSuppressed if the runtime provides it (Java 7 and
+   * later).
+   */
+  private val addSuppressedMethod =
+    try Some(classOf[Throwable].getMethod("addSuppressed", classOf[Throwable]))
+    catch { case e: NoSuchMethodException => None }
+
+  def addSuppressed(primary: Throwable, suppressed: Throwable) {
+    this.addSuppressedMethod.foreach(_.invoke(primary, suppressed))
+  }
+}
+
@@ -0,0 +1,194 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicReference
+import javax.xml.transform.Source
+import net.sf.xmlunit.exceptions.XMLUnitException
+import net.sf.xmlunit.util.Convert
+import scala.collection.JavaConversions._
+import scala.reflect.BeanProperty
+
+/**
+ * Compares a single control document against many test documents
+ * concurrently.
+ *
+ * <p>The control is {@link PreparedControl prepared} once and shared
+ * by all comparisons, each test document is parsed and compared by a
+ * fresh DOMDifferenceEngine inside a task run by the given Executor.
+ * At most maxInFlight tests are taken from the Iterable before their
+ * results have been passed to the BatchListener, so huge or lazily
+ * produced batches don't need to be held in memory.</p>
+ *
+ * <p>Overlapping comparisons need copies of the control, these are
+ * only built when comparisons actually overlap - at most
+ * maxInFlight - 1 of them - and reused by later tasks no matter
+ * which thread runs them.  The nodes of the control referenced by
+ * the differences of a BatchResult must not be read while the batch
+ * is running.</p>
+ *
+ * <p>NodeMatcher, DifferenceEvaluator and BatchListener are used by
+ * several threads concurrently and must be thread-safe.</p>
+ */
+class BatchDifferenceEngine(executor: Executor, maxInFlight: Int) {
+  require(Option(executor).isDefined, "executor must not be null")
+  require(maxInFlight > 0, "maxInFlight must be positive")
+
+  @BeanProperty var nodeMatcher: NodeMatcher = new DefaultNodeMatcher
+  @BeanProperty var differenceEvaluator = DifferenceEvaluators.Default
+  @BeanProperty var namespaceContext = Map.empty[String, String]
+  @BeanProperty var subtreeFingerprinter: SubtreeFingerprinter = null
+  @BeanProperty var disabledComparisonTypes: java.util.Set[ComparisonType] =
+    java.util.Collections.emptySet[ComparisonType]
+
+  /**
+   * Compares the control against each of the tests and passes the
+   * results to the listener.
+   *
+   * <p>Returns once all results have been passed to the listener.
+   * Exceptions thrown while comparing a test are recorded as the
+   * failure of its result.  If the listener throws an exception - or
+   * a comparison throws an Error - no further tests are submitted and
+   * the exception is rethrown wrapped into an XMLUnitException.</p>
+   */
+  def compare(
+    control: Source,
+    tests: java.lang.Iterable[_ <: Source],
+    listener: BatchListener
+  ) {
+    require(Option(control).isDefined, "control must not be null")
+    require(Option(tests).isDefined, "tests must not be null")
+    require(Option(listener).isDefined, "listener must not be null")
+
+    val prepared = new PreparedControl(Convert.toNode(control), this.maxInFlight - 1)
+    val config = this.configuration
+    val permits = new Semaphore(this.maxInFlight)
+    val failure = new AtomicReference[XMLUnitException]
+    try {
+      val it = tests.iterator.zipWithIndex
+      while (failure.get == null && it.hasNext) {
+        permits.acquire()
+        val (test, index) = it.next()
+        val task = new Runnable {
+          def run() {
+            try {
+              val result = try {
+                BatchDifferenceEngine.compare(config, prepared, test, index)
+              } catch {
+                case t: Throwable => throw new XMLUnitException(
+                  "Caught exception comparing test " + index, t
+                )
+              }
+              try listener.testCompared(result) catch {
+                case t: Throwable =>
+                  throw new XMLUnitException("Caught exception in BatchListener", t)
+              }
+            } catch {
+              case e: XMLUnitException => failure.compareAndSet(null, e)
+            } finally permits.release()
+          }
+        }
+        try this.executor.execute(task) catch {
+          case e: RejectedExecutionException =>
+            permits.release()
+            throw e
+        }
+      }
+    } finally {
+      permits.acquireUninterruptibly(this.maxInFlight)
+      permits.release(this.maxInFlight)
+    }
+    Option(failure.get).foreach { e => throw e }
+  }
+
+  /**
+   * Captures the current configuration so later changes don't
+   * affect a running batch.
+   */
+  private def configuration = DiffConfig.builder
+    .withNodeMatcher(this.nodeMatcher)
+    .withDifferenceEvaluator(this.differenceEvaluator)
+    .withNamespaceContext(this.namespaceContext)
+    .withSubtreeFingerprinter(this.subtreeFingerprinter)
+    .disableComparisonTypes(this.disabledComparisonTypes.toSeq: _*)
+    .build
+}
+
+private object BatchDifferenceEngine {
+  def compare(
+    config: DiffConfig,
+    control: PreparedControl,
+    test: Source,
+    index: Int
+  ) = {
+    val engine = config.newEngine
+    val differences = new java.util.ArrayList[Difference]
+    engine.addDifferenceListener(new ComparisonListener {
+      def comparisonPerformed[A, B](
+        comparison: Comparison[A, B],
+        outcome: ComparisonResult
+      ) {
+        differences.add(new Difference(comparison, outcome))
+      }
+    })
+    val failure = try {
+      engine.compare(control, test)
+      null
+    } catch {
+      case e: XMLUnitException => e
+      case e: Exception =>
+        new XMLUnitException("Caught exception during comparison", e)
+    }
+    new BatchResult(index, test, differences, failure)
+  }
+}
+
+/**
+ * The result of comparing a single test document of a batch.
+ */
+class BatchResult(
+  /**
+   * Position of the test document inside the batch.
+   */
+  @BeanProperty val index: Int,
+  /**
+   * The test document.
+   */
+  @BeanProperty val test: Source,
+  /**
+   * All differences found in document order.
+   */
+  @BeanProperty val differences: java.util.List[Difference],
+  /**
+   * The exception that prevented the comparison from completing, if
+   * any.
+   */
+  @BeanProperty val failure: XMLUnitException
+) {
+  /**
+   * The most severe outcome of all comparisons.
+   */
+  def getOutcome = this.differences.foldLeft(ComparisonResult.EQUAL) {
+    (worst, d) => if (d.result.compareTo(worst) > 0) d.result else worst
+  }
+
+  def isIdentical = this.failure == null &&
+    this.getOutcome == ComparisonResult.EQUAL
+
+  def isSimilar = this.failure == null &&
+    this.getOutcome.compareTo(ComparisonResult.SIMILAR) <= 0
+}
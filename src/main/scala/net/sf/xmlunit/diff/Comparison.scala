@@ -23,12 +23,12 @@ class Comparison[A, B](
    * The kind of comparison performed.
    */
   @BeanProperty val `type`: ComparisonType,
-  controlTarget: A,
+  private[diff] val controlTarget: A,
   controlXPath: String,
-  controlValue: B,
-  testTarget: A,
+  private[diff] val controlValue: B,
+  private[diff] val testTarget: A,
   testXPath: String,
-  testValue: B
+  private[diff] val testValue: B
 ) {
     /**
      * The details of a target (usually some representation of an XML
@@ -49,13 +49,56 @@ class Comparison[A, B](
         @BeanProperty value: B
     )
 
+    /**
+     * Compute the XPaths of a comparison created by {@link
+     * Comparison#lazily lazily}, dropped once they have been used.
+     */
+    private var controlXPathSource: () => String = null
+    private var testXPathSource: () => String = null
+
     /**
      * Details of the control target.
      */
-    @BeanProperty val controlDetails = Detail(controlTarget, controlXPath, controlValue)
+    lazy val controlDetails = {
+        val xPath =
+            if (this.controlXPathSource == null) controlXPath
+            else this.controlXPathSource()
+        this.controlXPathSource = null
+        Detail(controlTarget, xPath, controlValue)
+    }
+    def getControlDetails = this.controlDetails
+
     /**
      * Details of the test target.
      */
-    @BeanProperty val testDetails = Detail(testTarget, testXPath, testValue)
+    lazy val testDetails = {
+        val xPath =
+            if (this.testXPathSource == null) testXPath
+            else this.testXPathSource()
+        this.testXPathSource = null
+        Detail(testTarget, xPath, testValue)
+    }
+    def getTestDetails = this.testDetails
 }
 
+object Comparison {
+  /**
+   * Creates a Comparison whose XPaths are only computed if someone
+   * asks for its details.
+   */
+  private[diff] def lazily[A, B](
+    `type`: ComparisonType,
+    controlTarget: A,
+    controlXPath: => String,
+    controlValue: B,
+    testTarget: A,
+    testXPath: => String,
+    testValue: B
+  ) = {
+    val c = new Comparison(`type`, controlTarget, null, controlValue,
+                           testTarget, null, testValue)
+    c.controlXPathSource = () => controlXPath
+    c.testXPathSource = () => testXPath
+    c
+  }
+}
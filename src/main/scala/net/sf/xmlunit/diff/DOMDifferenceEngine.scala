@@ -31,11 +31,81 @@ import org.w3c.dom.Node
 import org.w3c.dom.NodeList
 import org.w3c.dom.ProcessingInstruction
 import scala.collection.JavaConversions._
+import scala.reflect.BeanProperty
 
 /**
  * Difference engine based on DOM.
  */
 class DOMDifferenceEngine extends BaseDOMDifferenceEngine {
+  /**
+   * Creates an engine using the given configuration.
+   */
+  def this(config: DiffConfig) = {
+    this()
+    config.configure(this)
+  }
+
+  /**
+   * When set, matched nodes whose subtrees share the same
+   * fingerprint are considered equal without comparing them (or any
+   * of their descendants) at all.
+   *
+   * <p>Fingerprints are computed once per document and cached for
+   * the duration of a {@link #compare compare} call, those of a
+   * {@link PreparedControl} are cached with the prepared control.
+   * This assumes the NodeMatcher pairs up identical child lists in
+   * order and the DifferenceEvaluator keeps EQUAL outcomes
+   * intact.</p>
+   *
+   * <p>A fingerprinter that ignores some comparison types (like
+   * {@link SubtreeFingerprinter#Similar}) is only used by isSimilar
+   * where SIMILAR differences don't matter, all other comparisons
+   * use {@link SubtreeFingerprinter#Identical} instead so no
+   * difference goes unreported.</p>
+   *
+   * <p>Defaults to null which means no fingerprints are used.</p>
+   */
+  @BeanProperty var subtreeFingerprinter: SubtreeFingerprinter = null
+
+  private[diff] val fingerprints = new java.util.IdentityHashMap[Node, java.lang.Long]
+
+  override def compare(control: Source, test: Source) {
+    try super.compare(control, test) finally this.fingerprints.clear()
+  }
+
+  override def compare(control: PreparedControl, test: Source) {
+    try super.compare(control, test) finally this.fingerprints.clear()
+  }
+
+  /**
+   * Like {@link #isIdentical(Source, Source) isIdentical} for a
+   * prepared control.
+   */
+  def isIdentical(control: PreparedControl, test: Source) =
+    this.verdict(ComparisonResult.SIMILAR) { this.compare(control, test) }
+
+  /**
+   * Like {@link #isSimilar(Source, Source) isSimilar} for a prepared
+   * control.
+   */
+  def isSimilar(control: PreparedControl, test: Source) =
+    this.verdict(ComparisonResult.DIFFERENT) { this.compare(control, test) }
+
+  /**
+   * The fingerprinter used by the current comparison, if any.
+   */
+  private[diff] def activeFingerprinter = this.subtreeFingerprinter match {
+    case f: SubtreeFingerprinter if !f.isExact && !this.isSimilarityVerdict =>
+      SubtreeFingerprinter.Identical
+    case f => f
+  }
+
+  private[diff] def haveSameFingerprint(control: Node, test: Node) = {
+    val f = this.activeFingerprinter
+    f != null && control.getNodeType != Node.ATTRIBUTE_NODE &&
+      this.getControlFingerprint(f, control, this.fingerprints) ==
+        f.getFingerprint(test, this.fingerprints)
+  }
 
     /*public void compare(Source control, Source test) {
         if (control == null) {
@@ -54,11 +124,14 @@ class DOMDifferenceEngine extends BaseDOMDifferenceEngine {
     }*/
 
   /**
-   * Recursively compares two XML nodes.
+   * Compares two XML nodes and all their descendants.
    *
    * <p>Performs comparisons common to all node types, then performs
-   * the node type specific comparisons and finally recurses into
-   * the node's child lists.</p>
+   * the node type specific comparisons and finally descends into
+   * the node's child lists.  Descendants are visited in document
+   * order using an explicit stack rather than recursion, so the depth
+   * of the documents is not limited by the size of the call
+   * stack.</p>
    *
    * <p>Stops as soon as any comparison returns
    * ComparisonResult.CRITICAL.</p>
@@ -71,46 +144,190 @@ class DOMDifferenceEngine extends BaseDOMDifferenceEngine {
     test: Node,
     testContext: XPathContext
   ): ComparisonResult = {
-    val controlXPath = this.getXPath(controlContext)
-    val testXPath = this.getXPath(testContext)
+    val pending = new java.util.ArrayDeque[ChildLists]
+    try {
+      val last = this.compareNode(control, controlContext, test, testContext, pending)
+      var result = last
+      while (result != ComparisonResult.CRITICAL && !pending.isEmpty) {
+        result = pending.peek.step(pending)
+      }
+      result match {
+        case ComparisonResult.CRITICAL => result
+        case _ => last
+      }
+    } finally {
+      while (!pending.isEmpty) pending.pop().leaveChild()
+    }
+  }
 
+  /**
+   * Invoked for each pair of matched children before the engine
+   * descends into them.
+   *
+   * <p>Subclasses may take over the comparison of the pair and
+   * return its outcome, the default implementation returns null which
+   * makes the engine compare the pair itself.</p>
+   */
+  protected def compareMatchedChildren(
+    control: Node,
+    controlContext: XPathContext,
+    test: Node,
+    testContext: XPathContext
+  ): ComparisonResult = null
+
+  /**
+   * Compares two nodes without descending into their children,
+   * instead the comparison of the child lists is pushed to pending.
+   */
+  private def compareNode(
+    control: Node,
+    controlContext: XPathContext,
+    test: Node,
+    testContext: XPathContext,
+    pending: java.util.Deque[ChildLists]
+  ): ComparisonResult = {
     def compareValues[A](comparisonType: ComparisonType, controlValue: A, testValue: A) =
-      this.compare(new Comparison(
+      this.compare(
         comparisonType,
-        control, controlXPath, controlValue,
-        test, testXPath, testValue
-      )) == ComparisonResult.CRITICAL
+        control, controlContext, controlValue,
+        test, testContext, testValue
+      ) == ComparisonResult.CRITICAL
 
-    if (
+    if (this.haveSameFingerprint(control, test)) ComparisonResult.EQUAL
+    else if (
       compareValues(ComparisonType.NODE_TYPE, control.getNodeType, test.getNodeType) ||
       compareValues(ComparisonType.NAMESPACE_URI, control.getNamespaceURI, test.getNamespaceURI) ||
       compareValues(ComparisonType.NAMESPACE_PREFIX, control.getPrefix, test.getPrefix)
-    ) ComparisonResult.CRITICAL else {
-      val controlChildren = asJavaIterable(new IterableNodeList(control.getChildNodes).filter(
-        _.getNodeType != Node.DOCUMENT_TYPE_NODE
-      ))
-
-      val testChildren = asJavaIterable(new IterableNodeList(test.getChildNodes).filter(
-        _.getNodeType != Node.DOCUMENT_TYPE_NODE
-      ))
-
-      if (control.getNodeType != Node.ATTRIBUTE_NODE && compareValues(
+    ) ComparisonResult.CRITICAL
+    else if (control.getNodeType == Node.ATTRIBUTE_NODE)
+      this.nodeTypeSpecificComparison(control, controlContext, test, testContext)
+    else {
+      val controlChildren = this.getControlChildren(control)
+      val testChildren = BaseDOMDifferenceEngine.getChildren(test)
+
+      if (this.compareCounts(
         ComparisonType.CHILD_NODELIST_LENGTH,
-        controlChildren.size,
-        testChildren.size
-      )) ComparisonResult.CRITICAL else {
+        control, controlContext, controlChildren.size,
+        test, testContext, testChildren.size
+      ) == ComparisonResult.CRITICAL) ComparisonResult.CRITICAL else {
         val last = this.nodeTypeSpecificComparison(control, controlContext, test, testContext)
         if (last == ComparisonResult.CRITICAL) last else {
-          if (control.getNodeType == Node.ATTRIBUTE_NODE) last else {
+          if (!this.isControlPrepared(control))
             controlContext.setChildren(asJavaIterable(controlChildren.map(new XPathContext.DOMNodeInfo(_))))
-            testContext.setChildren(asJavaIterable(testChildren.map(new XPathContext.DOMNodeInfo(_))))
-            if (this.compareNodeLists(controlChildren, controlContext, testChildren, testContext) == ComparisonResult.CRITICAL)
-              ComparisonResult.CRITICAL else last
+          testContext.setChildren(asJavaIterable(testChildren.map(new XPathContext.DOMNodeInfo(_))))
+          if (!controlChildren.isEmpty || !testChildren.isEmpty) {
+            pending.push(new ChildLists(
+              controlChildren, controlContext, testChildren, testContext
+            ))
           }
+          last
         }
       }
     }
   }
+
+  /**
+   * The comparison of two child lists in progress.
+   *
+   * <p>Matches nodes of the two lists and compares each pair, then
+   * performs CHILD_LOOKUP comparisons for each node that couldn't be
+   * matched to one of the "other" list.</p>
+   */
+  private class ChildLists(
+    controlList: java.util.List[Node],
+    controlContext: XPathContext,
+    testList: java.util.List[Node],
+    testContext: XPathContext
+  ) {
+    private val matches = DOMDifferenceEngine.getIndexedMatches(
+      getNodeMatcher, this.controlList, this.testList
+    ).iterator
+    private val controlSeen = new java.util.BitSet(this.controlList.size)
+    private val testSeen = new java.util.BitSet(this.testList.size)
+    private var inChild = false
+
+    /**
+     * Navigates back from the child compared last, if any.
+     */
+    def leaveChild() {
+      if (this.inChild) {
+        this.testContext.navigateToParent()
+        this.controlContext.navigateToParent()
+        this.inChild = false
+      }
+    }
+
+    /**
+     * Compares the next pair of matched children - possibly pushing
+     * their child lists - or the unmatched children once all pairs
+     * have been compared.
+     */
+    def step(pending: java.util.Deque[ChildLists]): ComparisonResult = {
+      this.leaveChild()
+      if (this.matches.hasNext) {
+        val (controlIndex, testIndex) = this.matches.next()
+        this.controlSeen.set(controlIndex)
+        this.testSeen.set(testIndex)
+        val control = this.controlList.get(controlIndex)
+        val test = this.testList.get(testIndex)
+
+        this.controlContext.navigateToChild(controlIndex)
+        this.testContext.navigateToChild(testIndex)
+        this.inChild = true
+        val result = compareCounts(
+          ComparisonType.CHILD_NODELIST_SEQUENCE,
+          control, this.controlContext, controlIndex,
+          test, this.testContext, testIndex
+        )
+        if (result == ComparisonResult.CRITICAL) result
+        else {
+          val taken = compareMatchedChildren(
+            control, this.controlContext, test, this.testContext
+          )
+          if (taken != null) taken
+          else compareNode(
+            control, this.controlContext, test, this.testContext, pending
+          )
+        }
+      } else {
+        pending.pop()
+        this.compareUnmatched()
+      }
+    }
+
+    private def compareUnmatched(): ComparisonResult = {
+      var lastResult = ComparisonResult.EQUAL
+      var i = this.controlSeen.nextClearBit(0)
+      while (i < this.controlList.size) {
+        val control = this.controlList.get(i)
+        this.controlContext.navigateToChild(i)
+        try {
+          lastResult = compare(
+            ComparisonType.CHILD_LOOKUP,
+            control, this.controlContext, control,
+            null, null, null
+          )
+          if (lastResult == ComparisonResult.CRITICAL) return lastResult
+        } finally this.controlContext.navigateToParent()
+        i = this.controlSeen.nextClearBit(i + 1)
+      }
+      i = this.testSeen.nextClearBit(0)
+      while (i < this.testList.size) {
+        val test = this.testList.get(i)
+        this.testContext.navigateToChild(i)
+        try {
+          lastResult = compare(
+            ComparisonType.CHILD_LOOKUP,
+            null, null, null,
+            test, this.testContext, test
+          )
+          if (lastResult == ComparisonResult.CRITICAL) return lastResult
+        } finally this.testContext.navigateToParent()
+        i = this.testSeen.nextClearBit(i + 1)
+      }
+      lastResult
+    }
+  }
 /*
     /**
      * Dispatches to the node type specific comparison if one is
@@ -599,3 +816,34 @@ class DOMDifferenceEngine extends BaseDOMDifferenceEngine {
 */
 }
 
+
+object DOMDifferenceEngine {
+  /**
+   * Obtains the indices of the matching nodes from the given
+   * matcher.
+   *
+   * <p>Matchers that don't provide indices themselves have their
+   * nodes looked up in an index built once per pair of lists.</p>
+   */
+  private def getIndexedMatches(
+    matcher: NodeMatcher,
+    controlList: java.util.List[Node],
+    testList: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = matcher match {
+    case indexed: IndexedNodeMatcher =>
+      indexed.getIndexedMatches(controlList, testList)
+    case _ =>
+      val controlIndices = indicesOf(controlList)
+      val testIndices = indicesOf(testList)
+      asJavaIterable(matcher.getMatches(controlList, testList).map {
+        case (control, test) =>
+          (controlIndices.get(control).intValue, testIndices.get(test).intValue)
+      })
+  }
+
+  private def indicesOf(nodes: java.util.List[Node]) = {
+    val indices = new java.util.IdentityHashMap[Node, Integer]
+    for (i <- 0 until nodes.size) indices.put(nodes.get(i), i)
+    indices
+  }
+}
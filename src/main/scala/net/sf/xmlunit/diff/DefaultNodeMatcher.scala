@@ -13,9 +13,14 @@
 */
 package net.sf.xmlunit.diff
 
+import javax.xml.namespace.QName
 import org.w3c.dom.Element
 import org.w3c.dom.Node
 import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import scala.collection.mutable.LinkedHashMap
+import scala.collection.mutable.Queue
 
 /**
  * Strategy that matches control and tests nodes for comparison.
@@ -31,6 +36,24 @@ trait NodeMatcher {
   ): java.lang.Iterable[(Node, Node)]
 }
 
+/**
+ * NodeMatcher that can tell the positions of the matching nodes
+ * inside the lists it has been given.
+ *
+ * <p>Allows the difference engine to avoid searching the lists for
+ * the nodes of each matching pair.</p>
+ */
+trait IndexedNodeMatcher extends NodeMatcher {
+  /**
+   * Matches control and test nodes against each other, returns the
+   * indices of the matching pairs.
+   */
+  def getIndexedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)]
+}
+
 trait NodeTypeMatcher {
   def canBeCompared(controlType: Short, testType: Short): Boolean
 }
@@ -50,7 +73,7 @@ object DefaultNodeTypeMatcher extends NodeTypeMatcher {
 class DefaultNodeMatcher(
   private val elementSelector: ElementSelector,
   private val nodeTypeMatcher: NodeTypeMatcher
-) extends NodeMatcher {
+) extends IndexedNodeMatcher {
   def this(elementSelector: ElementSelector) =
     this(elementSelector, DefaultNodeTypeMatcher)
   def this() = this(ElementSelectors.Default)
@@ -58,36 +81,168 @@ class DefaultNodeMatcher(
   def getMatches(
     controlNodes: java.lang.Iterable[Node],
     testNodes: java.lang.Iterable[Node]
-  ): java.lang.Iterable[(Node, Node)] = controlNodes.foldLeft(
-    List.empty[(Node, Node)],
-    Set(0 until testNodes.size: _*),
-    None: Option[Int]
-  ) {
-    case ((matches, unmatched, last), control) =>
-      this.findMatchingNode(control, testNodes, last, unmatched).map {
-        case (m, i) => ((control, m) :: matches, unmatched - i, last)
-      }.getOrElse((matches, unmatched, last))
-  }._1.reverse
-
-  private def findMatchingNode(
-    searchFor: Node,
-    searchIn: Iterable[Node],
-    indexOfLastMatch: Option[Int],
-    availableIndices: Set[Int]
-  ) = {
-    indexOfLastMatch.map { i =>
-      val (before, after) = searchIn.zipWithIndex.splitAt(i)
-      (after.tail ++ before)
-    }.getOrElse(searchIn.zipWithIndex)
-      .filter(p => availableIndices(p._2))
-      .find(p => nodesMatch(searchFor, p._1))
+  ): java.lang.Iterable[(Node, Node)] = {
+    val controls = new java.util.ArrayList[Node]
+    controlNodes.foreach(controls.add)
+    val tests = new java.util.ArrayList[Node]
+    testNodes.foreach(tests.add)
+    asJavaIterable(this.getIndexedMatches(controls, tests).map {
+      case (c, t) => (controls.get(c), tests.get(t))
+    })
+  }
+
+  def getIndexedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = this.elementSelector match {
+    case keyed: KeyedElementSelector =>
+      this.getKeyedMatches(controlNodes, testNodes, keyed)
+    case _ => this.getScannedMatches(controlNodes, testNodes)
+  }
+
+  /**
+   * Matches each control node with the first still available test
+   * node that can be compared to it.
+   *
+   * <p>Test nodes are grouped by their node type - and test
+   * elements by their QName if the selector is a
+   * NamedElementSelector - each group in document order.  Only
+   * groups whose nodes could match a control node are searched and
+   * the ElementSelector is only asked for test elements that come
+   * before the first available candidate of all other groups.</p>
+   */
+  private def getScannedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = {
+    val named = this.elementSelector.isInstanceOf[NamedElementSelector]
+    val used = new java.util.BitSet(testNodes.size)
+    val byType = LinkedHashMap.empty[Short, CandidateGroup]
+    val byName = HashMap.empty[QName, CandidateGroup]
+    for (i <- 0 until testNodes.size) {
+      val test = testNodes.get(i)
+      byType.getOrElseUpdate(test.getNodeType, new CandidateGroup(used)) += i
+      if (named && test.isInstanceOf[Element]) {
+        val name = NodeInfoCache.getQName(test)
+        byName.getOrElseUpdate(name, new CandidateGroup(used)) += i
+      }
+    }
+    val compatibleTypes = HashMap.empty[Short, Iterable[CandidateGroup]]
+
+    (0 until controlNodes.size).flatMap { c =>
+      val control = controlNodes.get(c)
+      val isElement = control.isInstanceOf[Element]
+      val others = compatibleTypes.getOrElseUpdate(
+        control.getNodeType,
+        byType.filter { case (testType, _) =>
+          !(isElement && testType == Node.ELEMENT_NODE) &&
+          this.nodeTypeMatcher.canBeCompared(control.getNodeType, testType)
+        }.values.toList
+      )
+      val fromOthers = others.flatMap(_.firstAvailable).reduceOption(_ min _)
+      val fromSelector = control match {
+        case e: Element =>
+          val group =
+            if (named) byName.get(NodeInfoCache.getQName(e))
+            else byType.get(Node.ELEMENT_NODE)
+          group.flatMap { g =>
+            val bound = fromOthers.getOrElse(Int.MaxValue)
+            g.available.takeWhile(_ < bound).find { t =>
+              this.elementSelector.canBeCompared(
+                e, testNodes.get(t).asInstanceOf[Element]
+              )
+            }
+          }
+        case _ => None
+      }
+      (fromSelector ++ fromOthers).reduceOption(_ min _).map { t =>
+        used.set(t)
+        (c, t)
+      }
+    }.toList
   }
 
-  private def nodesMatch(n1: Node, n2: Node): Boolean = (n1, n2) match {
-    case (e1: Element, e2: Element) =>
-      this.elementSelector.canBeCompared(e1, e2)
-    case (n1, n2) =>
-      this.nodeTypeMatcher.canBeCompared(n1.getNodeType, n2.getNodeType)
+  /**
+   * Produces the same matches as getScannedMatches but only needs a
+   * single pass over the test nodes.
+   *
+   * <p>Test elements are grouped by their keys and all test nodes
+   * by their node type, each group in document order.  For each
+   * control node the first still available node of each group that
+   * could match it is a candidate and the candidate that comes first
+   * in document order wins.</p>
+   */
+  private def getKeyedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node],
+    selector: KeyedElementSelector
+  ): java.lang.Iterable[(Int, Int)] = {
+    val used = new java.util.BitSet(testNodes.size)
+    val byKey = new java.util.HashMap[AnyRef, Queue[Int]]
+    val byType = HashMap.empty[Short, Queue[Int]]
+    for (i <- 0 until testNodes.size) {
+      val test = testNodes.get(i)
+      byType.getOrElseUpdate(test.getNodeType, Queue.empty) += i
+      test match {
+        case e: Element =>
+          val key = selector.getKey(e)
+          val queue = Option(byKey.get(key)).getOrElse {
+            val q = Queue.empty[Int]
+            byKey.put(key, q)
+            q
+          }
+          queue += i
+        case _ =>
+      }
+    }
+
+    def firstAvailable(queue: Queue[Int]) = {
+      while (!queue.isEmpty && used.get(queue.head)) queue.dequeue()
+      queue.headOption
+    }
+
+    (0 until controlNodes.size).flatMap { c =>
+      val control = controlNodes.get(c)
+      val fromKey = control match {
+        case e: Element =>
+          Option(byKey.get(selector.getKey(e))).flatMap(firstAvailable)
+        case _ => None
+      }
+      val fromType = byType.flatMap { case (testType, queue) =>
+        if (
+          (testType == Node.ELEMENT_NODE && control.isInstanceOf[Element]) ||
+          !this.nodeTypeMatcher.canBeCompared(control.getNodeType, testType)
+        ) None else firstAvailable(queue)
+      }
+      (fromKey ++ fromType).reduceOption(_ min _).map { t =>
+        used.set(t)
+        (c, t)
+      }
+    }.toList
+  }
+
+}
+
+/**
+ * Indices of test nodes in document order, some of which may
+ * already be used.
+ */
+private class CandidateGroup(used: java.util.BitSet) {
+  private val indices = ArrayBuffer.empty[Int]
+  private var head = 0
+
+  def +=(index: Int) {
+    this.indices += index
   }
+
+  def firstAvailable: Option[Int] = {
+    while (
+      this.head < this.indices.size && this.used.get(this.indices(this.head))
+    ) this.head += 1
+    if (this.head < this.indices.size) Some(this.indices(this.head)) else None
+  }
+
+  def available: Iterator[Int] =
+    this.indices.iterator.drop(this.head).filterNot(this.used.get)
 }
 
@@ -0,0 +1,206 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import javax.xml.transform.Source
+import scala.annotation.varargs
+import scala.reflect.BeanProperty
+
+/**
+ * Immutable configuration of a difference engine.
+ *
+ * <p>A DiffConfig is validated when it is built and never changes
+ * afterwards, so a single instance can be shared by any number of
+ * threads.  Engines created from it are cheap, {@link #compare
+ * compare}, {@link #isIdentical isIdentical} and {@link #isSimilar
+ * isSimilar} use a fresh engine for each invocation and are
+ * thread-safe as long as the configured strategies and listeners
+ * are.</p>
+ */
+final class DiffConfig private (
+  /**
+   * The strategy for selecting nodes to compare.
+   */
+  @BeanProperty val nodeMatcher: NodeMatcher,
+  /**
+   * Evaluates the outcomes of all enabled comparisons.
+   */
+  @BeanProperty val differenceEvaluator: DifferenceEvaluator,
+  /**
+   * Maps from namespace URI to prefix for XPath expressions.
+   */
+  @BeanProperty val namespaceContext: Map[String, String],
+  /**
+   * Comparisons of these types are not performed at all.
+   */
+  @BeanProperty val disabledComparisonTypes: java.util.Set[ComparisonType],
+  /**
+   * Fingerprinter used to skip identical subtrees, may be null.
+   */
+  @BeanProperty val subtreeFingerprinter: SubtreeFingerprinter,
+  listeners: List[(DiffConfig.ListenerKind, ComparisonListener)]
+) {
+  /**
+   * Creates a new engine using this configuration.
+   */
+  def newEngine: DOMDifferenceEngine = new DOMDifferenceEngine(this)
+
+  /**
+   * Compares two pieces of XML using a fresh engine.
+   */
+  def compare(control: Source, test: Source) {
+    this.newEngine.compare(control, test)
+  }
+
+  /**
+   * Compares a prepared control against a piece of XML using a
+   * fresh engine.
+   */
+  def compare(control: PreparedControl, test: Source) {
+    this.newEngine.compare(control, test)
+  }
+
+  def isIdentical(control: Source, test: Source) =
+    this.newEngine.isIdentical(control, test)
+
+  def isIdentical(control: PreparedControl, test: Source) =
+    this.newEngine.isIdentical(control, test)
+
+  def isSimilar(control: Source, test: Source) =
+    this.newEngine.isSimilar(control, test)
+
+  def isSimilar(control: PreparedControl, test: Source) =
+    this.newEngine.isSimilar(control, test)
+
+  /**
+   * Applies this configuration to an engine.
+   */
+  private[diff] def configure(engine: AbstractDifferenceEngine) {
+    engine.setNodeMatcher(this.nodeMatcher)
+    engine.setDifferenceEvaluator(this.differenceEvaluator)
+    engine.setDisabledComparisonTypes(this.disabledComparisonTypes)
+    engine.setNamespaceContext(this.namespaceContext)
+    engine match {
+      case d: DOMDifferenceEngine =>
+        d.setSubtreeFingerprinter(this.subtreeFingerprinter)
+      case _ =>
+    }
+    this.listeners.foreach {
+      case (DiffConfig.Comparisons, l) => engine.addComparisonListener(l)
+      case (DiffConfig.Matches, l) => engine.addMatchListener(l)
+      case (DiffConfig.Differences, l) => engine.addDifferenceListener(l)
+    }
+  }
+}
+
+object DiffConfig {
+  private[diff] sealed trait ListenerKind
+  private[diff] case object Comparisons extends ListenerKind
+  private[diff] case object Matches extends ListenerKind
+  private[diff] case object Differences extends ListenerKind
+
+  /**
+   * The configuration of a DOMDifferenceEngine that hasn't been
+   * configured at all.
+   */
+  val Default = builder.build
+
+  /**
+   * Starts building a configuration.
+   */
+  def builder = new Builder
+
+  /**
+   * Collects the parts of a configuration, not thread-safe.
+   */
+  class Builder private[DiffConfig] {
+    private var nodeMatcher: NodeMatcher = new DefaultNodeMatcher
+    private var differenceEvaluator = DifferenceEvaluators.Default
+    private var namespaceContext = Map.empty[String, String]
+    private val disabled = java.util.EnumSet.noneOf(classOf[ComparisonType])
+    private var subtreeFingerprinter: SubtreeFingerprinter = null
+    private var listeners = List.empty[(ListenerKind, ComparisonListener)]
+
+    def withNodeMatcher(matcher: NodeMatcher) = {
+      require(Option(matcher).isDefined, "matcher must not be null")
+      this.nodeMatcher = matcher
+      this
+    }
+
+    def withDifferenceEvaluator(evaluator: DifferenceEvaluator) = {
+      require(Option(evaluator).isDefined, "evaluator must not be null")
+      this.differenceEvaluator = evaluator
+      this
+    }
+
+    def withNamespaceContext(uri2Prefix: Map[String, String]) = {
+      require(Option(uri2Prefix).isDefined, "uri2Prefix must not be null")
+      require(uri2Prefix.forall { case (uri, prefix) =>
+        uri != null && prefix != null
+      }, "uri2Prefix must not contain null keys or values")
+      this.namespaceContext = uri2Prefix
+      this
+    }
+
+    /**
+     * Makes the engine skip comparisons of the given types, they
+     * neither reach the DifferenceEvaluator nor any listener.
+     */
+    @varargs def disableComparisonTypes(types: ComparisonType*) = {
+      types.foreach { t =>
+        require(Option(t).isDefined, "types must not contain null")
+        this.disabled.add(t)
+      }
+      this
+    }
+
+    /**
+     * Sets the fingerprinter used to skip identical subtrees, null
+     * disables fingerprinting.
+     */
+    def withSubtreeFingerprinter(fingerprinter: SubtreeFingerprinter) = {
+      this.subtreeFingerprinter = fingerprinter
+      this
+    }
+
+    def withComparisonListener(listener: ComparisonListener) =
+      this.withListener(Comparisons, listener)
+
+    def withMatchListener(listener: ComparisonListener) =
+      this.withListener(Matches, listener)
+
+    def withDifferenceListener(listener: ComparisonListener) =
+      this.withListener(Differences, listener)
+
+    private def withListener(kind: ListenerKind, listener: ComparisonListener) = {
+      require(Option(listener).isDefined, "listener must not be null")
+      this.listeners = (kind, listener) :: this.listeners
+      this
+    }
+
+    /**
+     * Creates the immutable configuration.
+     */
+    def build = new DiffConfig(
+      this.nodeMatcher,
+      this.differenceEvaluator,
+      this.namespaceContext,
+      java.util.Collections.unmodifiableSet(
+        java.util.EnumSet.copyOf(this.disabled)
+      ),
+      this.subtreeFingerprinter,
+      this.listeners.reverse
+    )
+  }
+}
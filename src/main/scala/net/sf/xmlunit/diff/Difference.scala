@@ -0,0 +1,35 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import scala.reflect.BeanProperty
+
+/**
+ * A comparison together with its outcome other than {@link
+ * ComparisonResult#EQUAL}.
+ */
+class Difference(
+  /**
+   * The comparison that found the difference.
+   */
+  @BeanProperty val comparison: Comparison[_, _],
+  /**
+   * The outcome of the comparison as evaluated by the
+   * DifferenceEvaluator.
+   */
+  @BeanProperty val result: ComparisonResult
+) {
+  override def toString = this.result + " " + this.comparison.getType +
+    " at " + this.comparison.getControlDetails.getXPath
+}
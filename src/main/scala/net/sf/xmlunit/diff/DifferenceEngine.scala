@@ -63,5 +63,24 @@ trait DifferenceEngine {
    * Compares two pieces of XML and invokes the registered listeners.
    */
   def compare(control: Source, test: Source): Unit
+
+  /**
+   * Compares two pieces of XML and tells whether no comparison
+   * yielded an outcome other than {@link ComparisonResult#EQUAL}.
+   *
+   * <p>Stops at the first difference and doesn't invoke any
+   * listener.</p>
+   */
+  def isIdentical(control: Source, test: Source): Boolean
+
+  /**
+   * Compares two pieces of XML and tells whether no comparison
+   * yielded an outcome of {@link ComparisonResult#DIFFERENT} or
+   * {@link ComparisonResult#CRITICAL}.
+   *
+   * <p>Stops at the first such difference and doesn't invoke any
+   * listener.</p>
+   */
+  def isSimilar(control: Source, test: Source): Boolean
 }
 
@@ -0,0 +1,172 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.xml.transform.Source
+import net.sf.xmlunit.util.Flow
+import org.w3c.dom.Node
+
+/**
+ * Publishes the differences found by comparing a control and a test
+ * document, pausing the comparison while the subscriber has no
+ * outstanding demand.
+ *
+ * <p>The comparison is performed by a DOMDifferenceEngine using the
+ * given configuration inside a task run by the given Executor once
+ * the publisher has been subscribed to.  Comparisons with outcome
+ * {@link ComparisonResult#EQUAL} are not published.  The engine
+ * waits inside the difference listener until the subscriber has
+ * requested more differences.  Once the subscription has been
+ * cancelled it stops before the next difference is evaluated or the
+ * next pair of child nodes is compared, whichever comes first, so
+ * nodes whose comparisons never reach the evaluator - disabled
+ * comparison types or subtrees with equal fingerprints - aren't
+ * traversed either.</p>
+ *
+ * <p>The publisher can only be subscribed to once as the sources
+ * may not be readable a second time, further subscribers receive an
+ * IllegalStateException.</p>
+ */
+class DifferencePublisher(
+  config: DiffConfig,
+  control: Source,
+  test: Source,
+  executor: Executor
+) extends Flow.Publisher[Difference] {
+  require(Option(config).isDefined, "config must not be null")
+  require(Option(control).isDefined, "control must not be null")
+  require(Option(test).isDefined, "test must not be null")
+  require(Option(executor).isDefined, "executor must not be null")
+
+  private val subscribed = new AtomicBoolean
+
+  def subscribe(subscriber: Flow.Subscriber[_ >: Difference]) {
+    require(Option(subscriber).isDefined, "subscriber must not be null")
+    if (this.subscribed.compareAndSet(false, true)) {
+      val subscription = new DifferencePublisher.Demand
+      subscriber.onSubscribe(subscription)
+      this.executor.execute(new Runnable {
+        def run() {
+          DifferencePublisher.this.publish(subscriber, subscription)
+        }
+      })
+    } else {
+      subscriber.onSubscribe(DifferencePublisher.Cancelled)
+      subscriber.onError(new IllegalStateException(
+        "DifferencePublisher only supports a single subscriber"
+      ))
+    }
+  }
+
+  private def publish(
+    subscriber: Flow.Subscriber[_ >: Difference],
+    demand: DifferencePublisher.Demand
+  ) {
+    val engine = new DOMDifferenceEngine(this.config) {
+      override protected def compareMatchedChildren(
+        control: Node,
+        controlContext: XPathContext,
+        test: Node,
+        testContext: XPathContext
+      ) = if (demand.isCancelled) ComparisonResult.CRITICAL else null
+    }
+    val nested = this.config.getDifferenceEvaluator
+    engine.setDifferenceEvaluator(new DifferenceEvaluator {
+      def evaluate[A, B](comparison: Comparison[A, B], outcome: ComparisonResult) =
+        if (demand.isCancelled) ComparisonResult.CRITICAL
+        else nested.evaluate(comparison, outcome)
+    })
+    engine.addDifferenceListener(new ComparisonListener {
+      def comparisonPerformed[A, B](
+        comparison: Comparison[A, B],
+        outcome: ComparisonResult
+      ) {
+        if (demand.take()) subscriber.onNext(new Difference(comparison, outcome))
+      }
+    })
+    val failure = try {
+      engine.compare(this.control, this.test)
+      demand.getFailure
+    } catch {
+      case t: Throwable => Option(demand.getFailure).getOrElse(t)
+    }
+    if (failure != null) subscriber.onError(failure)
+    else if (!demand.isCancelled) subscriber.onComplete()
+  }
+}
+
+private object DifferencePublisher {
+  /**
+   * Outstanding demand of the subscriber.
+   */
+  class Demand extends Flow.Subscription {
+    private var requested = 0L
+    @volatile private var cancelled = false
+    private var failure: Throwable = null
+
+    def request(n: Long) {
+      this.synchronized {
+        if (n <= 0) {
+          if (!this.cancelled) {
+            this.failure = new IllegalArgumentException(
+              "the number of requested items must be positive"
+            )
+          }
+          this.cancelled = true
+        } else {
+          this.requested += n
+          if (this.requested < 0) this.requested = Long.MaxValue
+        }
+        this.notifyAll()
+      }
+    }
+
+    def cancel() {
+      this.synchronized {
+        this.cancelled = true
+        this.notifyAll()
+      }
+    }
+
+    def isCancelled = this.cancelled
+
+    /**
+     * A request that violated the protocol, may be null.
+     */
+    def getFailure = this.synchronized { this.failure }
+
+    /**
+     * Waits until an item may be published, returns false if the
+     * subscription has been cancelled.
+     */
+    def take() = this.synchronized {
+      while (this.requested == 0 && !this.cancelled) this.wait()
+      if (this.cancelled) false
+      else {
+        if (this.requested != Long.MaxValue) this.requested -= 1
+        true
+      }
+    }
+  }
+
+  /**
+   * Subscription handed out to subscribers that have been rejected.
+   */
+  object Cancelled extends Flow.Subscription {
+    def request(n: Long) { }
+    def cancel() { }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import java.util.ArrayDeque
+import java.util.BitSet
+import net.sf.xmlunit.util.IterableNodeList
+import org.w3c.dom.Attr
+import org.w3c.dom.CharacterData
+import org.w3c.dom.Element
+import org.w3c.dom.Node
+import org.w3c.dom.ProcessingInstruction
+import scala.collection.JavaConversions._
+
+/**
+ * Matches nodes of large unordered child lists by the similarity of
+ * their subtrees.
+ *
+ * <p>Each node's subtree is reduced to a set of features - element
+ * names, attribute names and values and shingles of all text - and
+ * the set is summarized by a MinHash signature of bands * rows
+ * values.  Nodes that agree in all values of at least one band share
+ * a bucket.  Only nodes sharing a bucket are considered candidates,
+ * so matching takes time roughly proportional to the number of
+ * nodes rather than its square.</p>
+ *
+ * <p>For each control node in document order the candidate with the
+ * highest estimated similarity that hasn't been matched already and
+ * can be compared according to the ElementSelector (or the
+ * NodeTypeMatcher for non-elements) wins, ties go to the candidate
+ * that comes first in document order.  At most maxCandidates
+ * candidates are examined per control node.</p>
+ *
+ * <p>Unlike DefaultNodeMatcher this matcher may leave nodes
+ * unmatched that the ElementSelector would consider comparable if
+ * their subtrees are too different to ever share a bucket.</p>
+ */
+class MinHashNodeMatcher(
+  private val elementSelector: ElementSelector,
+  private val nodeTypeMatcher: NodeTypeMatcher,
+  private val bands: Int,
+  private val rows: Int,
+  private val maxCandidates: Int
+) extends IndexedNodeMatcher {
+  require(bands > 0, "bands must be positive")
+  require(rows > 0, "rows must be positive")
+  require(maxCandidates > 0, "maxCandidates must be positive")
+
+  def this(elementSelector: ElementSelector) =
+    this(elementSelector, DefaultNodeTypeMatcher, 16, 4, 64)
+  def this() = this(ElementSelectors.Default)
+
+  import MinHashNodeMatcher._
+
+  def getMatches(
+    controlNodes: java.lang.Iterable[Node],
+    testNodes: java.lang.Iterable[Node]
+  ): java.lang.Iterable[(Node, Node)] = {
+    val controls = new java.util.ArrayList[Node]
+    controlNodes.foreach(controls.add)
+    val tests = new java.util.ArrayList[Node]
+    testNodes.foreach(tests.add)
+    asJavaIterable(this.getIndexedMatches(controls, tests).map {
+      case (c, t) => (controls.get(c), tests.get(t))
+    })
+  }
+
+  def getIndexedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = {
+    val testSignatures = testNodes.map(this.signature).toIndexedSeq
+    val buckets = new java.util.HashMap[Bucket, ArrayDeque[Int]]
+    for (t <- 0 until testSignatures.size; b <- 0 until this.bands) {
+      val key = new Bucket(b, testSignatures(t), this.rows)
+      val bucket = Option(buckets.get(key)).getOrElse {
+        val q = new ArrayDeque[Int]
+        buckets.put(key, q)
+        q
+      }
+      bucket.add(t)
+    }
+
+    val used = new BitSet(testNodes.size)
+    // shared by all control nodes, only the bits of the candidates
+    // examined for a control node get cleared afterwards
+    val examined = new BitSet(testNodes.size)
+    val candidatesExamined = new Array[Int](this.maxCandidates)
+    (0 until controlNodes.size).flatMap { c =>
+      val control = controlNodes.get(c)
+      val sig = this.signature(control)
+      var best = -1
+      var bestSimilarity = -1
+      var remaining = this.maxCandidates
+      var b = 0
+      while (b < this.bands && remaining > 0) {
+        val bucket = buckets.get(new Bucket(b, sig, this.rows))
+        if (bucket != null) {
+          while (!bucket.isEmpty && used.get(bucket.peek)) bucket.poll()
+          val candidates = bucket.iterator
+          while (candidates.hasNext && remaining > 0) {
+            val t = candidates.next()
+            if (!used.get(t) && !examined.get(t)) {
+              examined.set(t)
+              candidatesExamined(this.maxCandidates - remaining) = t
+              remaining -= 1
+              val similarity = agreement(sig, testSignatures(t))
+              if (
+                (similarity > bestSimilarity ||
+                 (similarity == bestSimilarity && t < best)) &&
+                this.nodesMatch(control, testNodes.get(t))
+              ) {
+                best = t
+                bestSimilarity = similarity
+              }
+            }
+          }
+        }
+        b += 1
+      }
+      var i = this.maxCandidates - remaining
+      while (i > 0) {
+        i -= 1
+        examined.clear(candidatesExamined(i))
+      }
+      if (best >= 0) {
+        used.set(best)
+        Some((c, best))
+      } else None
+    }.toList
+  }
+
+  private def nodesMatch(n1: Node, n2: Node): Boolean = (n1, n2) match {
+    case (e1: Element, e2: Element) =>
+      this.elementSelector.canBeCompared(e1, e2)
+    case (n1, n2) =>
+      this.nodeTypeMatcher.canBeCompared(n1.getNodeType, n2.getNodeType)
+  }
+
+  /**
+   * Computes the MinHash signature of a node's subtree.
+   */
+  private def signature(node: Node): Array[Int] = {
+    val sig = Array.fill(this.bands * this.rows)(Int.MaxValue)
+    def add(feature: String) {
+      val h = feature.hashCode
+      var i = 0
+      while (i < sig.length) {
+        val v = permute(h, i)
+        if (v < sig(i)) sig(i) = v
+        i += 1
+      }
+    }
+
+    add("#" + typeClass(node.getNodeType))
+    val pending = new ArrayDeque[Node]
+    pending.push(node)
+    while (!pending.isEmpty) {
+      pending.pop() match {
+        case e: Element =>
+          val name = NodeInfoCache.getQName(e)
+          add("<" + name)
+          for ((attrName, value) <- NodeInfoCache.getAttributes(e)) {
+            add("@" + attrName)
+            add("@" + attrName + "=" + value)
+          }
+          new IterableNodeList(e.getChildNodes).foreach(pending.push)
+        case c: CharacterData =>
+          shingles(c.getData).foreach(add)
+        case p: ProcessingInstruction =>
+          add("?" + p.getTarget)
+          shingles(p.getData).foreach(add)
+        case _ =>
+      }
+    }
+    sig
+  }
+}
+
+object MinHashNodeMatcher {
+  private val ShingleLength = 4
+
+  /**
+   * Text and CDATA sections are treated as the same kind of node.
+   */
+  private def typeClass(nodeType: Short) = nodeType match {
+    case Node.CDATA_SECTION_NODE => Node.TEXT_NODE
+    case t => t
+  }
+
+  private def shingles(text: String): Iterator[String] =
+    if (text == null) Iterator.empty
+    else {
+      val normalized = text.trim.replaceAll("\\s+", " ")
+      if (normalized.length <= ShingleLength) Iterator.single("\"" + normalized)
+      else (0 to normalized.length - ShingleLength).iterator.map { i =>
+        "\"" + normalized.substring(i, i + ShingleLength)
+      }
+    }
+
+  /**
+   * The i-th of a family of hash functions (finalizer of MurmurHash3
+   * applied to the feature hash mixed with a seed).
+   */
+  private def permute(h: Int, i: Int) = {
+    var k = h ^ (i * 0x9e3779b9)
+    k ^= k >>> 16
+    k *= 0x85ebca6b
+    k ^= k >>> 13
+    k *= 0xc2b2ae35
+    k ^= k >>> 16
+    k
+  }
+
+  /**
+   * Number of positions two signatures agree in, proportional to
+   * the estimated Jaccard similarity of the feature sets.
+   */
+  private def agreement(s1: Array[Int], s2: Array[Int]) = {
+    var count = 0
+    var i = 0
+    while (i < s1.length) {
+      if (s1(i) == s2(i)) count += 1
+      i += 1
+    }
+    count
+  }
+
+  /**
+   * The values of one band of a signature.
+   */
+  private class Bucket(val band: Int, signature: Array[Int], rows: Int) {
+    private val values = java.util.Arrays.copyOfRange(
+      signature, band * rows, (band + 1) * rows
+    )
+    private val hash = 31 * band + java.util.Arrays.hashCode(this.values)
+
+    override def hashCode = this.hash
+
+    override def equals(other: Any) = other match {
+      case b: Bucket =>
+        b.band == this.band && java.util.Arrays.equals(b.values, this.values)
+      case _ => false
+    }
+  }
+}
@@ -0,0 +1,428 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import java.util.ArrayDeque
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import org.w3c.dom.Attr
+import org.w3c.dom.Element
+import org.w3c.dom.Node
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.forkjoin.ForkJoinPool
+import scala.concurrent.forkjoin.RecursiveTask
+import scala.reflect.BeanProperty
+
+/**
+ * Difference engine based on DOM that compares big subtrees in
+ * parallel.
+ *
+ * <p>Whenever a matched pair of nodes is about to be compared and
+ * the control node as well as one of its siblings have at least
+ * {@link #setForkThreshold forkThreshold} descendants, the
+ * comparison of the pair is forked into a separate task of the
+ * ForkJoinPool using copies of the XPathContexts.</p>
+ *
+ * <p>DOM implementations like Xerces' don't support concurrent
+ * access, not even for reading.  Therefore the task forking a pair
+ * copies both subtrees into documents of their own before it forks,
+ * and the new task (as well as the NodeMatcher, DifferenceEvaluator
+ * and listeners it invokes) only sees these copies - the nodes of
+ * forked comparisons don't belong to the documents that have been
+ * passed in.  XPaths, the specified flag of attributes and
+ * fingerprints are those of the original nodes.</p>
+ *
+ * <p>In deterministic mode (the default) the comparisons of each
+ * task are buffered - unless no listener is interested in them - and
+ * passed to the listeners on the calling thread as soon as all tasks
+ * preceding them in document order are done.  Listeners see exactly
+ * the same sequence of comparisons as with {@link
+ * DOMDifferenceEngine} and nothing after the first comparison
+ * evaluated as CRITICAL, all tasks stop once that comparison has
+ * been passed to the listeners.  The DifferenceEvaluator may see
+ * comparisons the listeners won't see.</p>
+ *
+ * <p>Otherwise listeners are notified as soon as a comparison has
+ * been performed on whichever thread performed it, and all tasks
+ * stop as soon as any of them finds a CRITICAL difference.</p>
+ *
+ * <p>In either case NodeMatcher and DifferenceEvaluator will be
+ * used by several threads concurrently and must be thread-safe, as
+ * must be the listeners in non-deterministic mode.</p>
+ *
+ * <p>{@link #isIdentical isIdentical} and {@link #isSimilar
+ * isSimilar} stop at the first difference anyway and compare
+ * sequentially.</p>
+ *
+ * <p>The engine never shuts down the pool it has been given.
+ * Engines created without a pool share a single pool of daemon
+ * threads.</p>
+ */
+class ParallelDOMDifferenceEngine(pool: ForkJoinPool) extends DOMDifferenceEngine {
+  def this() = this(ParallelDOMDifferenceEngine.sharedPool)
+
+  /**
+   * Whether listeners get notified in document order.
+   *
+   * <p>Defaults to true.</p>
+   */
+  @BeanProperty var deterministic = true
+
+  /**
+   * Minimum number of nodes a control subtree - and one of its
+   * siblings - must contain to get compared in a task of its own.
+   *
+   * <p>Defaults to 1000.</p>
+   */
+  @BeanProperty var forkThreshold = 1000
+
+  override def compareNodes(
+    control: Node,
+    controlContext: XPathContext,
+    test: Node,
+    testContext: XPathContext
+  ): ComparisonResult = if (this.isVerdictMode) {
+    super.compareNodes(control, controlContext, test, testContext)
+  } else {
+    val run = new Run
+    val root = new Task(run, control, controlContext, test, testContext, null)
+    this.pool.execute(root)
+    val critical = try this.deterministic && this.replay(root) catch {
+      case t: Throwable =>
+        run.stopped.set(true)
+        ParallelDOMDifferenceEngine.awaitAll(root)
+        throw t
+    }
+    if (critical) run.stopped.set(true)
+    // the documents must not be touched once compare has returned
+    val failure = ParallelDOMDifferenceEngine.awaitAll(root)
+    if (critical) ComparisonResult.CRITICAL
+    else {
+      failure.foreach { t => throw t }
+      if (run.stopped.get) ComparisonResult.CRITICAL else root.join()
+    }
+  }
+
+  /**
+   * Passes the buffered comparisons of the given task and all tasks
+   * it has forked to the listeners in document order as soon as
+   * they are done, stops after the first CRITICAL one.
+   *
+   * @return whether a CRITICAL comparison has been encountered.
+   */
+  private def replay(task: Task): Boolean = {
+    task.join()
+    val segments = task.worker.segments
+    val critical = segments.exists {
+      case Left(events) =>
+        val critical = events.exists { case (comparison, outcome) =>
+          this.notifyListeners(comparison, outcome)
+          outcome == ComparisonResult.CRITICAL
+        }
+        events.clear()
+        critical
+      case Right(forked) => this.replay(forked)
+    }
+    if (!critical) segments.clear()
+    critical
+  }
+
+  /**
+   * Serializes notifications while dispatching asynchronously as the
+   * dispatcher only supports a single producer.
+   */
+  private def notifyListeners[A, B](
+    comparison: Comparison[A, B],
+    outcome: ComparisonResult
+  ) {
+    if (!this.isDispatchingAsynchronously)
+      this.fireComparisonPerformed(comparison, outcome)
+    else this.producerLock.synchronized {
+      this.fireComparisonPerformed(comparison, outcome)
+    }
+  }
+
+  private val producerLock = new Object
+
+  private def wantsNotification(outcome: ComparisonResult) =
+    this.hasListenersFor(outcome)
+
+  /**
+   * State shared by all tasks of a single comparison.
+   */
+  private class Run {
+    val deterministic = ParallelDOMDifferenceEngine.this.deterministic
+    val forkThreshold = ParallelDOMDifferenceEngine.this.forkThreshold
+    val stopped = new AtomicBoolean
+  }
+
+  /**
+   * Compares a pair of nodes, copies is null for the root task
+   * which compares the documents passed in.
+   */
+  private class Task(
+    run: Run,
+    control: Node,
+    controlContext: XPathContext,
+    test: Node,
+    testContext: XPathContext,
+    copies: ParallelDOMDifferenceEngine.Copies
+  ) extends RecursiveTask[ComparisonResult] {
+    val worker = new Worker(run, copies)
+
+    protected def compute() = {
+      val prepared = this.worker.preparedControl
+      if (prepared != null) NodeInfoCache.begin(prepared) else NodeInfoCache.begin()
+      try {
+        this.worker.forkable =
+          ParallelDOMDifferenceEngine.forkableSubtrees(control, run.forkThreshold)
+        this.worker.compareNodes(control, controlContext, test, testContext)
+      } finally {
+        if (prepared != null) NodeInfoCache.end(prepared) else NodeInfoCache.end()
+      }
+    }
+  }
+
+  /**
+   * Performs the comparisons of a single task.
+   */
+  private class Worker(
+    run: Run,
+    copies: ParallelDOMDifferenceEngine.Copies
+  ) extends DOMDifferenceEngine {
+    private val outer = ParallelDOMDifferenceEngine.this
+    this.setNodeMatcher(outer.getNodeMatcher)
+    this.setDifferenceEvaluator(outer.getDifferenceEvaluator)
+    this.setNamespaceContext(outer.getNamespaceContext)
+    this.setDisabledComparisonTypes(outer.getDisabledComparisonTypes)
+    this.setSubtreeFingerprinter(outer.getSubtreeFingerprinter)
+    if (copies == null) this.preparedControl = outer.preparedControl
+    else this.fingerprints.putAll(copies.fingerprints)
+
+    /**
+     * Control nodes whose comparison is forked.
+     */
+    var forkable: java.util.Set[Node] = Collections.emptySet[Node]
+
+    /**
+     * Buffered comparisons and forked tasks in document order.
+     */
+    val segments =
+      ArrayBuffer.empty[Either[ArrayBuffer[(Comparison[_, _], ComparisonResult)], Task]]
+
+    override protected def isSpecified(attr: Attr) =
+      (this.copies == null || !this.copies.unspecified.contains(attr)) &&
+        attr.getSpecified
+
+    override protected def compareMatchedChildren(
+      control: Node,
+      controlContext: XPathContext,
+      test: Node,
+      testContext: XPathContext
+    ): ComparisonResult =
+      if (!this.forkable.contains(control) || this.haveSameFingerprint(control, test))
+        null
+      else {
+        val copies = new ParallelDOMDifferenceEngine.Copies
+        val f = this.activeFingerprinter
+        val controlCopy = copies.copy(
+          control,
+          this.isControlSpecified(_),
+          if (f == null) null
+          else n => Long.box(this.getControlFingerprint(f, n, this.fingerprints))
+        )
+        val testCopy = if (controlCopy == null) null else copies.copy(
+          test,
+          this.isSpecified(_),
+          if (f == null) null
+          else n => Long.box(f.getFingerprint(n, this.fingerprints))
+        )
+        if (testCopy == null) null
+        else {
+          val task = new Task(
+            this.run, controlCopy, controlContext.copy, testCopy, testContext.copy,
+            copies
+          )
+          task.fork()
+          this.segments += Right(task)
+          ComparisonResult.EQUAL
+        }
+      }
+
+    override protected def compare[A, B](comparison: Comparison[A, B]) =
+      if (this.run.stopped.get) ComparisonResult.CRITICAL
+      else super.compare(comparison)
+
+    override protected def fireComparisonPerformed[A, B](
+      comparison: Comparison[A, B],
+      outcome: ComparisonResult
+    ) {
+      if (this.run.deterministic) {
+        // CRITICAL outcomes tell the replay where to stop
+        if (outer.wantsNotification(outcome) || outcome == ComparisonResult.CRITICAL) {
+          val events = this.segments.lastOption match {
+            case Some(Left(events)) => events
+            case _ =>
+              val events = ArrayBuffer.empty[(Comparison[_, _], ComparisonResult)]
+              this.segments += Left(events)
+              events
+          }
+          events += ((comparison, outcome))
+        }
+      } else {
+        if (outcome == ComparisonResult.CRITICAL) this.run.stopped.set(true)
+        outer.notifyListeners(comparison, outcome)
+      }
+    }
+  }
+}
+
+object ParallelDOMDifferenceEngine {
+  /**
+   * Pool used by engines that haven't been given one.
+   */
+  private lazy val sharedPool = new ForkJoinPool
+
+  /**
+   * Copies of the subtrees compared by a forked task together with
+   * what copying loses.
+   */
+  private class Copies {
+    /**
+     * Copied attributes that haven't been specified explicitly.
+     */
+    val unspecified = Collections.newSetFromMap(new IdentityHashMap[Node, java.lang.Boolean])
+    /**
+     * Fingerprints of the originals of the copied nodes.
+     */
+    val fingerprints = new IdentityHashMap[Node, java.lang.Long]
+
+    /**
+     * Copies a subtree into a new Document.
+     *
+     * @return null if the copy doesn't have the same structure as
+     * the original (for example because of entity references).
+     */
+    def copy(
+      original: Node,
+      isSpecified: Attr => Boolean,
+      fingerprint: Node => java.lang.Long
+    ): Node = {
+      val doc = original.getOwnerDocument.getImplementation.createDocument(null, null, null)
+      val copy = doc.importNode(original, true)
+      val pending = new ArrayDeque[(Node, Node)]
+      pending.add((original, copy))
+      while (!pending.isEmpty) {
+        val (o, c) = pending.poll()
+        if (fingerprint != null) this.fingerprints.put(c, fingerprint(o))
+        o match {
+          case e: Element =>
+            this.copyAttributes(e, c.asInstanceOf[Element], isSpecified)
+          case _ =>
+        }
+        val originalChildren = o.getChildNodes
+        val copiedChildren = c.getChildNodes
+        if (originalChildren.getLength != copiedChildren.getLength) return null
+        for (i <- 0 until originalChildren.getLength)
+          pending.add((originalChildren.item(i), copiedChildren.item(i)))
+      }
+      copy
+    }
+
+    /**
+     * importNode drops attributes defaulted by the DTD, those are
+     * added to the copy again.
+     */
+    private def copyAttributes(original: Element, copy: Element, isSpecified: Attr => Boolean) {
+      val originalAttributes = original.getAttributes
+      val copiedAttributes = copy.getAttributes
+      for (i <- 0 until originalAttributes.getLength) {
+        val a = originalAttributes.item(i).asInstanceOf[Attr]
+        var c = (
+          if (a.getLocalName != null)
+            copiedAttributes.getNamedItemNS(a.getNamespaceURI, a.getLocalName)
+          else copiedAttributes.getNamedItem(a.getName)
+        ).asInstanceOf[Attr]
+        if (c == null) {
+          c = copy.getOwnerDocument.importNode(a, true).asInstanceOf[Attr]
+          if (a.getLocalName != null) copy.setAttributeNodeNS(c)
+          else copy.setAttributeNode(c)
+        }
+        if (!isSpecified(a)) this.unspecified.add(c)
+      }
+    }
+  }
+
+  /**
+   * Waits for the given task and all tasks forked by it or any of
+   * the tasks it has forked.
+   *
+   * @return the first exception thrown by any of the tasks.
+   */
+  private def awaitAll(root: ParallelDOMDifferenceEngine#Task): Option[Throwable] = {
+    var failure: Option[Throwable] = None
+    val tasks = new ArrayDeque[ParallelDOMDifferenceEngine#Task]
+    tasks.push(root)
+    while (!tasks.isEmpty) {
+      val task = tasks.pop()
+      task.quietlyJoin()
+      if (failure.isEmpty && task.isCompletedAbnormally)
+        failure = Option(task.getException)
+      task.worker.segments.foreach {
+        case Right(forked) => tasks.push(forked)
+        case _ =>
+      }
+    }
+    failure
+  }
+
+  /**
+   * Collects all nodes below root that contain at least threshold
+   * nodes (including themselves) and have a sibling that does so as
+   * well - forking a chain of single large children would only add
+   * the cost of copying.
+   */
+  private def forkableSubtrees(root: Node, threshold: Int) = {
+    val largeChildren = new IdentityHashMap[Node, ArrayBuffer[Node]]
+    val nodes = new ArrayDeque[Node]
+    val counts = ArrayBuffer.empty[Int]
+    var next = root
+    while (next != null || !nodes.isEmpty) {
+      if (next != null) {
+        nodes.push(next)
+        counts += 1
+        next = next.getFirstChild
+      } else {
+        val done = nodes.pop()
+        val count = counts.remove(counts.size - 1)
+        if (!nodes.isEmpty) {
+          if (count >= threshold) {
+            val parent = nodes.peek
+            if (!largeChildren.containsKey(parent))
+              largeChildren.put(parent, ArrayBuffer.empty[Node])
+            largeChildren.get(parent) += done
+          }
+          counts(counts.size - 1) += count
+          next = done.getNextSibling
+        }
+      }
+    }
+    val forkable = Collections.newSetFromMap(new IdentityHashMap[Node, java.lang.Boolean])
+    for (children <- scala.collection.JavaConversions.collectionAsScalaIterable(largeChildren.values)
+         if children.size > 1; child <- children)
+      forkable.add(child)
+    forkable
+  }
+}
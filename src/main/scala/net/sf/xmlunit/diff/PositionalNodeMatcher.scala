@@ -0,0 +1,42 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import org.w3c.dom.Node
+import scala.collection.JavaConversions._
+
+/**
+ * Matches the n-th control node with the n-th test node, regardless
+ * of their types or names.
+ *
+ * <p>Surplus nodes of the longer list remain unmatched.  This is
+ * the only NodeMatcher supported by {@link StAXDifferenceEngine},
+ * a {@link DOMDifferenceEngine} using it performs the same
+ * comparisons.</p>
+ */
+class PositionalNodeMatcher extends IndexedNodeMatcher {
+  def getMatches(
+    controlNodes: java.lang.Iterable[Node],
+    testNodes: java.lang.Iterable[Node]
+  ): java.lang.Iterable[(Node, Node)] =
+    asJavaIterable(controlNodes.toIterable.zip(testNodes.toIterable))
+
+  def getIndexedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = {
+    val n = math.min(controlNodes.size, testNodes.size)
+    asJavaIterable((0 until n).map(i => (i, i)))
+  }
+}
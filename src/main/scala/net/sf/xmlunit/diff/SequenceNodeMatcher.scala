@@ -0,0 +1,173 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import org.w3c.dom.Element
+import org.w3c.dom.Node
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Matches nodes of ordered child lists so the order of the matched
+ * pairs is preserved, using Myers' O(ND) difference algorithm.
+ *
+ * <p>Two nodes are considered equal if the ElementSelector (for
+ * elements) or the NodeTypeMatcher (for all other nodes) says they
+ * can be compared.  The matches are a longest common subsequence of
+ * both lists with respect to this equality.  Common prefixes and
+ * suffixes are matched without running the algorithm at all and the
+ * cost of the remainder is proportional to its length times the
+ * number of inserted or removed nodes, so appending or removing a
+ * few nodes of a long list is cheap.</p>
+ *
+ * <p>The algorithm keeps state of size O(D²) for D edits.  If more
+ * than maxEdits insertions and removals are needed the remainder is
+ * matched by a DefaultNodeMatcher with the same ElementSelector and
+ * NodeTypeMatcher instead, which doesn't preserve the order.</p>
+ */
+class SequenceNodeMatcher(
+  private val elementSelector: ElementSelector,
+  private val nodeTypeMatcher: NodeTypeMatcher,
+  private val maxEdits: Int
+) extends IndexedNodeMatcher {
+  require(maxEdits >= 0, "maxEdits must not be negative")
+
+  def this(elementSelector: ElementSelector, maxEdits: Int) =
+    this(elementSelector, DefaultNodeTypeMatcher, maxEdits)
+  def this(elementSelector: ElementSelector) = this(elementSelector, 1000)
+  def this() = this(ElementSelectors.Default)
+
+  def getMatches(
+    controlNodes: java.lang.Iterable[Node],
+    testNodes: java.lang.Iterable[Node]
+  ): java.lang.Iterable[(Node, Node)] = {
+    val controls = new java.util.ArrayList[Node]
+    controlNodes.foreach(controls.add)
+    val tests = new java.util.ArrayList[Node]
+    testNodes.foreach(tests.add)
+    asJavaIterable(this.getIndexedMatches(controls, tests).map {
+      case (c, t) => (controls.get(c), tests.get(t))
+    })
+  }
+
+  def getIndexedMatches(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): java.lang.Iterable[(Int, Int)] = {
+    val n = controlNodes.size
+    val m = testNodes.size
+    def matchAt(c: Int, t: Int) =
+      this.nodesMatch(controlNodes.get(c), testNodes.get(t))
+
+    var prefix = 0
+    while (prefix < n && prefix < m && matchAt(prefix, prefix)) prefix += 1
+    var suffix = 0
+    while (
+      suffix < n - prefix && suffix < m - prefix &&
+      matchAt(n - 1 - suffix, m - 1 - suffix)
+    ) suffix += 1
+
+    val middle = this.diff(
+      controlNodes.subList(prefix, n - suffix),
+      testNodes.subList(prefix, m - suffix)
+    ).map { case (c, t) => (c + prefix, t + prefix) }
+
+    asJavaIterable(
+      (0 until prefix).map(i => (i, i)) ++
+      middle ++
+      (suffix until 0 by -1).map(i => (n - i, m - i))
+    )
+  }
+
+  /**
+   * Myers' greedy algorithm, returns the matching indices in
+   * document order.
+   */
+  private def diff(
+    controlNodes: java.util.List[Node],
+    testNodes: java.util.List[Node]
+  ): Seq[(Int, Int)] = {
+    val n = controlNodes.size
+    val m = testNodes.size
+    if (n == 0 || m == 0) return Seq.empty
+
+    val max = n + m
+    // v(k + offset) is the furthest x reached on diagonal k
+    val offset = max + 1
+    val v = new Array[Int](2 * max + 3)
+    // v as it has been at the start of each round
+    val trace = ArrayBuffer.empty[Array[Int]]
+    var done = false
+    var d = 0
+    while (!done) {
+      if (d > this.maxEdits) {
+        return new DefaultNodeMatcher(this.elementSelector, this.nodeTypeMatcher)
+          .getIndexedMatches(controlNodes, testNodes).toSeq
+      }
+      trace += java.util.Arrays.copyOfRange(v, offset - d - 1, offset + d + 2)
+      var k = -d
+      while (!done && k <= d) {
+        var x =
+          if (k == -d || (k != d && v(offset + k - 1) < v(offset + k + 1)))
+            v(offset + k + 1)
+          else v(offset + k - 1) + 1
+        var y = x - k
+        while (
+          x < n && y < m &&
+          this.nodesMatch(controlNodes.get(x), testNodes.get(y))
+        ) {
+          x += 1
+          y += 1
+        }
+        v(offset + k) = x
+        done = x >= n && y >= m
+        k += 2
+      }
+      d += 1
+    }
+
+    // walk back from (n, m), collecting the diagonal moves
+    val matches = ArrayBuffer.empty[(Int, Int)]
+    var x = n
+    var y = m
+    for (round <- trace.size - 1 to 0 by -1) {
+      val start = trace(round)
+      // start(k + round + 1) is v(k) at the start of the round
+      def at(k: Int) = start(k + round + 1)
+      val k = x - y
+      val prevK =
+        if (k == -round || (k != round && at(k - 1) < at(k + 1))) k + 1
+        else k - 1
+      val prevX = at(prevK)
+      val prevY = prevX - prevK
+      while (x > prevX && y > prevY && x > 0 && y > 0) {
+        x -= 1
+        y -= 1
+        matches += ((x, y))
+      }
+      if (round > 0) {
+        x = prevX
+        y = prevY
+      }
+    }
+    matches.reverse
+  }
+
+  private def nodesMatch(n1: Node, n2: Node): Boolean = (n1, n2) match {
+    case (e1: Element, e2: Element) =>
+      this.elementSelector.canBeCompared(e1, e2)
+    case (n1, n2) =>
+      this.nodeTypeMatcher.canBeCompared(n1.getNodeType, n2.getNodeType)
+  }
+}
@@ -0,0 +1,628 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import javax.xml.XMLConstants
+import javax.xml.namespace.QName
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
+import javax.xml.transform.Source
+import net.sf.xmlunit.exceptions.XMLUnitException
+import net.sf.xmlunit.util.Convert
+import org.w3c.dom.Node
+import scala.collection.mutable.ArrayBuffer
+import scala.collection.mutable.HashMap
+import scala.collection.mutable.Queue
+import scala.reflect.BeanProperty
+
+/**
+ * Difference engine that compares two documents as StAX event
+ * streams without ever building a DOM tree.
+ *
+ * <p>Both documents are read in lockstep and the n-th child of a
+ * control node is compared to the n-th child of the corresponding
+ * test node, which is what the {@link DOMDifferenceEngine} does with
+ * a {@link PositionalNodeMatcher}.  No other NodeMatcher can be used
+ * with this engine.  Only the ancestors of the current nodes are
+ * kept in memory, so documents of arbitrary size can be
+ * compared.</p>
+ *
+ * <p>The engine performs the same comparisons with the same XPaths
+ * as the DOMDifferenceEngine, with two exceptions: comparisons of
+ * type {@link ComparisonType#CHILD_NODELIST_LENGTH} are performed
+ * after the children of a node - the number of children isn't known
+ * before - and the targets of all comparisons are {@link
+ * XPathContext.NodeInfo NodeInfo} instances rather than DOM
+ * nodes.</p>
+ */
+class StAXDifferenceEngine extends AbstractDifferenceEngine {
+  import StAXDifferenceEngine._
+
+  /**
+   * The factory used to create the XMLStreamReaders.
+   *
+   * <p>Defaults to the factory returned by
+   * XMLInputFactory.newInstance that reports CDATA sections as
+   * separate events if it supports that at all.</p>
+   */
+  @BeanProperty var inputFactory: XMLInputFactory = null
+
+  this.nodeMatcher = new PositionalNodeMatcher
+
+  /**
+   * Only accepts a {@link PositionalNodeMatcher}, the engine can't
+   * match children any other way.
+   *
+   * @throws IllegalArgumentException for any other NodeMatcher
+   */
+  override def setNodeMatcher(matcher: NodeMatcher) {
+    require(matcher.isInstanceOf[PositionalNodeMatcher],
+            "StAXDifferenceEngine only supports a PositionalNodeMatcher")
+    super.setNodeMatcher(matcher)
+  }
+
+  def compare(control: Source, test: Source) {
+    require(Option(control).isDefined, "control must not be null")
+    require(Option(test).isDefined, "test must not be null")
+    val factory = Option(this.inputFactory).getOrElse(defaultFactory)
+    var failure: Throwable = null
+    try {
+      val controlSide = new Side(Convert.toXMLStreamReader(control, factory))
+      try {
+        val testSide = new Side(Convert.toXMLStreamReader(test, factory))
+        try new Comparer(controlSide, testSide).run() catch {
+          case ex: Exception =>
+            throw new XMLUnitException("Caught exception during comparison",
+                                       ex)
+        } finally testSide.close()
+      } finally controlSide.close()
+    } catch {
+      case t: Throwable =>
+        failure = t
+        throw t
+    } finally this.flushListeners(failure)
+  }
+
+  /**
+   * A pair of nodes whose children are being compared.
+   */
+  private class Frame(
+    val control: Item,
+    val controlLevel: Level,
+    val test: Item,
+    val testLevel: Level
+  ) {
+    var controlDone = !control.isContainer
+    var testDone = !test.isContainer
+  }
+
+  /**
+   * Performs all comparisons for a single pair of documents.
+   */
+  private class Comparer(control: Side, test: Side) {
+    private val frames = new java.util.ArrayDeque[Frame]
+
+    def run(): ComparisonResult = {
+      val controlDoc = control.readProlog()
+      val testDoc = test.readProlog()
+      val uri2Prefix = Option(namespaceContext).getOrElse(Map.empty[String, String])
+      val controlRoot = new Level(null, "", uri2Prefix)
+      val testRoot = new Level(null, "", uri2Prefix)
+      if (this.compareHeads(controlDoc, controlRoot, testDoc, testRoot) ||
+          this.compareDocuments(controlRoot, testRoot))
+        return ComparisonResult.CRITICAL
+      this.frames.push(new Frame(controlDoc, controlRoot, testDoc, testRoot))
+
+      while (!this.frames.isEmpty) {
+        val frame = this.frames.peek
+        val c = if (frame.controlDone) End else control.next()
+        val t = if (frame.testDone) End else test.next()
+        if (c eq End) frame.controlDone = true
+        if (t eq End) frame.testDone = true
+        if (frame.controlDone && frame.testDone) {
+          this.frames.pop()
+          if (isCritical(compareLazily(
+            ComparisonType.CHILD_NODELIST_LENGTH,
+            frame.control, frame.controlLevel.xPath,
+            Integer.valueOf(frame.controlLevel.children),
+            frame.test, frame.testLevel.xPath,
+            Integer.valueOf(frame.testLevel.children)
+          ))) return ComparisonResult.CRITICAL
+        } else if (frame.controlDone) {
+          if (this.missing(null, null, t, frame.testLevel.child(t), test))
+            return ComparisonResult.CRITICAL
+        } else if (frame.testDone) {
+          if (this.missing(c, frame.controlLevel.child(c), null, null, control))
+            return ComparisonResult.CRITICAL
+        } else if (this.comparePair(c, frame.controlLevel.child(c),
+                                    t, frame.testLevel.child(t)))
+          return ComparisonResult.CRITICAL
+      }
+      ComparisonResult.EQUAL
+    }
+
+    /**
+     * Compares two matched children and pushes a new frame if either
+     * of them has children itself.
+     *
+     * @return true if the comparison must stop.
+     */
+    private def comparePair(c: Item, cl: Level, t: Item, tl: Level): Boolean = {
+      val index = Integer.valueOf(cl.parent.children - 1)
+      if (isCritical(compareLazily(
+        ComparisonType.CHILD_NODELIST_SEQUENCE,
+        c, cl.xPath, index, t, tl.xPath, index
+      )) || this.compareHeads(c, cl, t, tl)) return true
+      if (!c.isContainer && !t.isContainer && isCritical(compareLazily(
+        ComparisonType.CHILD_NODELIST_LENGTH,
+        c, cl.xPath, Integer.valueOf(0), t, tl.xPath, Integer.valueOf(0)
+      ))) return true
+      val result = (c, t) match {
+        case (ce: CharacterItem, te: CharacterItem) =>
+          compareLazily(ComparisonType.TEXT_VALUE,
+                        c, cl.xPath, ce.data, t, tl.xPath, te.data)
+        case (cp: PIItem, tp: PIItem) =>
+          if (isCritical(compareLazily(
+            ComparisonType.PROCESSING_INSTRUCTION_TARGET,
+            c, cl.xPath, cp.target, t, tl.xPath, tp.target
+          ))) ComparisonResult.CRITICAL
+          else compareLazily(ComparisonType.PROCESSING_INSTRUCTION_DATA,
+                             c, cl.xPath, cp.data, t, tl.xPath, tp.data)
+        case (ce: ElementItem, te: ElementItem) =>
+          this.compareElements(ce, cl, te, tl)
+        case _ => ComparisonResult.EQUAL
+      }
+      if (isCritical(result)) return true
+      if (c.isContainer || t.isContainer) {
+        this.frames.push(new Frame(c, cl, t, tl))
+      }
+      false
+    }
+
+    /**
+     * Reports a child without partner and skips its descendants.
+     *
+     * @return true if the comparison must stop.
+     */
+    private def missing(c: Item, cl: Level, t: Item, tl: Level, side: Side) = {
+      val critical = isCritical(compareLazily(
+        ComparisonType.CHILD_LOOKUP,
+        c, if (cl == null) null else cl.xPath, c,
+        t, if (tl == null) null else tl.xPath, t
+      ))
+      if (!critical && Option(c).getOrElse(t).isContainer) side.skip()
+      critical
+    }
+
+    /**
+     * Performs the comparisons common to all node types.
+     *
+     * @return true if the comparison must stop.
+     */
+    private def compareHeads(c: Item, cl: Level, t: Item, tl: Level) =
+      isCritical(compareLazily(
+        ComparisonType.NODE_TYPE,
+        c, cl.xPath, java.lang.Short.valueOf(c.getType),
+        t, tl.xPath, java.lang.Short.valueOf(t.getType)
+      )) || isCritical(compareLazily(
+        ComparisonType.NAMESPACE_URI,
+        c, cl.xPath, c.namespaceURI, t, tl.xPath, t.namespaceURI
+      )) || isCritical(compareLazily(
+        ComparisonType.NAMESPACE_PREFIX,
+        c, cl.xPath, c.prefix, t, tl.xPath, t.prefix
+      ))
+
+    /**
+     * Compares doctype and XML declaration.
+     *
+     * @return true if the comparison must stop.
+     */
+    private def compareDocuments(cl: Level, tl: Level): Boolean = {
+      val c = control.document
+      val t = test.document
+      val cdt = c.doctype
+      val tdt = t.doctype
+      if (isCritical(compareLazily(
+        ComparisonType.HAS_DOCTYPE_DECLARATION,
+        c, cl.xPath, java.lang.Boolean.valueOf(cdt ne null),
+        t, tl.xPath, java.lang.Boolean.valueOf(tdt ne null)
+      ))) return true
+      if ((cdt ne null) && (tdt ne null) && (
+        this.compareHeads(cdt, cl, tdt, tl) || isCritical(compareLazily(
+          ComparisonType.CHILD_NODELIST_LENGTH,
+          cdt, cl.xPath, Integer.valueOf(0), tdt, tl.xPath, Integer.valueOf(0)
+        )) || isCritical(compareLazily(
+          ComparisonType.DOCTYPE_NAME,
+          cdt, cl.xPath, cdt.name, tdt, tl.xPath, tdt.name
+        )) || isCritical(compareLazily(
+          ComparisonType.DOCTYPE_PUBLIC_ID,
+          cdt, cl.xPath, cdt.publicId, tdt, tl.xPath, tdt.publicId
+        )) || isCritical(compareLazily(
+          ComparisonType.DOCTYPE_SYSTEM_ID,
+          cdt, null, cdt.systemId, tdt, null, tdt.systemId
+        ))
+      )) return true
+      isCritical(compareLazily(
+        ComparisonType.XML_VERSION, c, cl.xPath, c.version, t, tl.xPath, t.version
+      )) || isCritical(compareLazily(
+        ComparisonType.XML_STANDALONE,
+        c, cl.xPath, java.lang.Boolean.valueOf(c.standalone),
+        t, tl.xPath, java.lang.Boolean.valueOf(t.standalone)
+      )) || isCritical(compareLazily(
+        ComparisonType.XML_ENCODING, c, cl.xPath, c.encoding, t, tl.xPath, t.encoding
+      ))
+    }
+
+    /**
+     * Compares element names and attributes.
+     */
+    private def compareElements(
+      c: ElementItem, cl: Level, t: ElementItem, tl: Level
+    ): ComparisonResult = {
+      if (isCritical(compareLazily(
+        ComparisonType.ELEMENT_TAG_NAME,
+        c, cl.xPath, c.getName.getLocalPart, t, tl.xPath, t.getName.getLocalPart
+      )) || isCritical(compareLazily(
+        ComparisonType.ELEMENT_NUM_ATTRIBUTES,
+        c, cl.xPath, Integer.valueOf(c.attributes.size),
+        t, tl.xPath, Integer.valueOf(t.attributes.size)
+      ))) return ComparisonResult.CRITICAL
+
+      val found = new Array[Boolean](t.attributes.size)
+      for (ca <- c.attributes) {
+        val i = t.attributes.indexWhere(ta =>
+          ta.namespaceURI == ca.namespaceURI &&
+          ta.getName.getLocalPart == ca.getName.getLocalPart
+        )
+        val cal = cl.attribute(ca)
+        if (isCritical(compareLazily(
+          ComparisonType.ATTR_NAME_LOOKUP,
+          c, cal.xPath, java.lang.Boolean.TRUE,
+          t, tl.xPath, java.lang.Boolean.valueOf(i >= 0)
+        ))) return ComparisonResult.CRITICAL
+        if (i >= 0) {
+          val ta = t.attributes(i)
+          val tal = tl.attribute(ta)
+          if (this.compareHeads(ca, cal, ta, tal) || isCritical(compareLazily(
+            ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+            ca, cal.xPath, java.lang.Boolean.valueOf(ca.specified),
+            ta, tal.xPath, java.lang.Boolean.valueOf(ta.specified)
+          )) || isCritical(compareLazily(
+            ComparisonType.ATTR_VALUE,
+            ca, cal.xPath, ca.value, ta, tal.xPath, ta.value
+          ))) return ComparisonResult.CRITICAL
+          found(i) = true
+        }
+      }
+      for (i <- 0 until t.attributes.size) {
+        val tal = tl.attribute(t.attributes(i))
+        if (isCritical(compareLazily(
+          ComparisonType.ATTR_NAME_LOOKUP,
+          c, cl.xPath, java.lang.Boolean.valueOf(found(i)),
+          t, tal.xPath, java.lang.Boolean.TRUE
+        ))) return ComparisonResult.CRITICAL
+      }
+
+      if (isCritical(compareLazily(
+        ComparisonType.SCHEMA_LOCATION,
+        c, cl.xPath, c.schemaLocation, t, tl.xPath, t.schemaLocation
+      ))) ComparisonResult.CRITICAL
+      else compareLazily(
+        ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
+        c, cl.xPath, c.noNamespaceSchemaLocation,
+        t, tl.xPath, t.noNamespaceSchemaLocation
+      )
+    }
+  }
+}
+
+private object StAXDifferenceEngine {
+  val CDATA_PROPERTY =
+    "http://java.sun.com/xml/stream/properties/report-cdata-event"
+
+  def defaultFactory = {
+    val factory = XMLInputFactory.newInstance
+    if (factory.isPropertySupported(CDATA_PROPERTY)) {
+      factory.setProperty(CDATA_PROPERTY, java.lang.Boolean.TRUE)
+    }
+    factory
+  }
+
+  def isCritical(result: ComparisonResult) = result == ComparisonResult.CRITICAL
+
+  def emptyToNull(s: String) = if (s == null || s.isEmpty) null else s
+
+  /**
+   * A node read from the stream.
+   */
+  abstract class Item(name: QName, nodeType: Short)
+    extends XPathContext.NodeInfo {
+    def getName = name
+    def getType = nodeType
+    def namespaceURI: String = null
+    def prefix: String = null
+    def isContainer = false
+  }
+
+  /**
+   * Marks the end of a child list.
+   */
+  object End extends Item(new QName("#end"), (-1).toShort)
+
+  class DocumentItem(
+    val version: String,
+    val encoding: String,
+    val standalone: Boolean
+  ) extends Item(new QName("#document"), Node.DOCUMENT_NODE) {
+    var doctype: DoctypeItem = null
+    override def isContainer = true
+  }
+
+  /**
+   * The name is null if the reader reported a declaration that
+   * couldn't be parsed, the item itself is named #doctype then.
+   */
+  class DoctypeItem(
+    val name: String,
+    val publicId: String,
+    val systemId: String
+  ) extends Item(new QName(Option(name).getOrElse("#doctype")),
+                 Node.DOCUMENT_TYPE_NODE)
+
+  object DoctypeItem {
+    private val DECLARATION = ("(?s)<!DOCTYPE\\s+([^\\s\\[>]+)(?:\\s+(?:"
+      + "SYSTEM\\s+(?:\"([^\"]*)\"|'([^']*)')|"
+      + "PUBLIC\\s+(?:\"([^\"]*)\"|'([^']*)')\\s+(?:\"([^\"]*)\"|'([^']*)')"
+      + "))?.*").r
+
+    def apply(declaration: String) = declaration.trim match {
+      case DECLARATION(name, s1, s2, p1, p2, s3, s4) =>
+        new DoctypeItem(
+          name,
+          Option(p1).orElse(Option(p2)).orNull,
+          Option(s1).orElse(Option(s2)).orElse(Option(s3))
+            .orElse(Option(s4)).orNull
+        )
+      case _ =>
+        // some readers only report the internal subset, the name and
+        // ids are unknown then
+        new DoctypeItem(null, null, null)
+    }
+  }
+
+  class CharacterItem(nodeType: Short, val data: String)
+    extends Item(new QName(CharacterItem.names(nodeType)), nodeType)
+
+  object CharacterItem {
+    val names = Map[Short, String](
+      Node.TEXT_NODE -> "#text",
+      Node.CDATA_SECTION_NODE -> "#cdata-section",
+      Node.COMMENT_NODE -> "#comment"
+    )
+  }
+
+  class PIItem(val target: String, val data: String)
+    extends Item(new QName(target), Node.PROCESSING_INSTRUCTION_NODE)
+
+  class AttributeItem(
+    name: QName,
+    val value: String,
+    val specified: Boolean
+  ) extends Item(name, Node.ATTRIBUTE_NODE) {
+    override def namespaceURI = emptyToNull(name.getNamespaceURI)
+    override def prefix = emptyToNull(name.getPrefix)
+    def qualifiedName = Option(this.prefix).map(_ + ":").getOrElse("") +
+      name.getLocalPart
+  }
+
+  class ElementItem(reader: XMLStreamReader)
+    extends Item(reader.getName, Node.ELEMENT_NODE) {
+    override def namespaceURI = emptyToNull(this.getName.getNamespaceURI)
+    override def prefix = emptyToNull(this.getName.getPrefix)
+    override def isContainer = true
+
+    var schemaLocation: String = null
+    var noNamespaceSchemaLocation: String = null
+
+    /**
+     * Sorted by qualified name like the attributes of a DOM element.
+     */
+    val attributes = {
+      val all = ArrayBuffer.empty[AttributeItem]
+      for (i <- 0 until reader.getAttributeCount) {
+        val name = reader.getAttributeName(i)
+        if (name.getNamespaceURI == XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI) {
+          if (name.getLocalPart == "schemaLocation")
+            this.schemaLocation = reader.getAttributeValue(i)
+          else if (name.getLocalPart == "noNamespaceSchemaLocation")
+            this.noNamespaceSchemaLocation = reader.getAttributeValue(i)
+        } else {
+          all += new AttributeItem(
+            name, reader.getAttributeValue(i), reader.isAttributeSpecified(i)
+          )
+        }
+      }
+      all.sortBy(_.qualifiedName)
+    }
+  }
+
+  /**
+   * Position of a node inside its document.
+   *
+   * <p>Creates the same XPath expressions as XPathContext does for
+   * the given namespace context but only keeps track of the number
+   * of children seen so far.</p>
+   */
+  class Level(
+    val parent: Level,
+    val expression: String,
+    uri2Prefix: Map[String, String]
+  ) {
+    var children = 0
+    private var texts = 0
+    private var comments = 0
+    private var pis = 0
+    private var elements: HashMap[String, Int] = null
+
+    def child(item: Item) = {
+      this.children += 1
+      new Level(this, item.getType match {
+        case Node.COMMENT_NODE =>
+          this.comments += 1
+          "comment()[" + this.comments + "]"
+        case Node.PROCESSING_INSTRUCTION_NODE =>
+          this.pis += 1
+          "processing-instruction()[" + this.pis + "]"
+        case Node.TEXT_NODE | Node.CDATA_SECTION_NODE =>
+          this.texts += 1
+          "text()[" + this.texts + "]"
+        case Node.ELEMENT_NODE =>
+          if (this.elements == null) this.elements = HashMap.empty
+          val name = this.render(item.getName)
+          val index = this.elements.getOrElse(name, 0) + 1
+          this.elements(name) = index
+          name + "[" + index + "]"
+        case _ => ""
+      }, uri2Prefix)
+    }
+
+    def attribute(item: Item) =
+      new Level(this, "@" + this.render(item.getName), uri2Prefix)
+
+    /**
+     * Prefixes the local name if the namespace context maps its URI.
+     */
+    private def render(name: QName) =
+      Option(emptyToNull(name.getNamespaceURI)).flatMap(uri2Prefix.get)
+        .map(_ + ":").getOrElse("") + name.getLocalPart
+
+    val depth: Int = if (parent == null) 0 else parent.depth + 1
+
+    private var cachedXPath: String = null
+
+    /**
+     * Computed once, starting from the closest ancestor whose XPath
+     * is already known and remembering the XPaths of the ancestors
+     * visited on the way the same way XPathContext does.
+     */
+    def xPath: String = {
+      if (this.cachedXPath == null) {
+        val path = new java.util.ArrayList[Level]
+        var l = this
+        while (l != null && l.cachedXPath == null) {
+          path.add(l)
+          l = l.parent
+        }
+        val sb = new java.lang.StringBuilder
+        if (l != null) sb.append(l.cachedXPath)
+        for (i <- path.size - 1 to 0 by -1) {
+          l = path.get(i)
+          XPathContext.appendStep(sb, l.expression)
+          if (i == 0 || XPathContext.isWorthCaching(sb.length, l.depth)) {
+            l.cachedXPath = sb.toString
+          }
+        }
+      }
+      this.cachedXPath
+    }
+  }
+
+  /**
+   * One of the documents being compared.
+   */
+  class Side(reader: XMLStreamReader) {
+    /**
+     * Whether the reader's current event hasn't been consumed, yet.
+     */
+    private var pending = false
+    private val prolog = Queue.empty[Item]
+    var document: DocumentItem = null
+
+    /**
+     * Reads the XML declaration, the doctype and anything else in
+     * front of the document element.
+     */
+    def readProlog() = {
+      this.document = new DocumentItem(
+        Option(reader.getVersion).getOrElse("1.0"),
+        reader.getCharacterEncodingScheme,
+        reader.isStandalone
+      )
+      var done = false
+      while (!done) {
+        this.read() match {
+          case d: DoctypeItem => this.document.doctype = d
+          case i: Item =>
+            this.prolog += i
+            done = i.isContainer || (i eq End)
+        }
+      }
+      this.document
+    }
+
+    /**
+     * The next child of the current node, End if there is none.
+     */
+    def next(): Item =
+      if (!this.prolog.isEmpty) this.prolog.dequeue() else this.read()
+
+    /**
+     * Skips the descendants of the element just returned by next.
+     */
+    def skip() {
+      var depth = 1
+      while (depth > 0) {
+        val i = this.next()
+        if (i eq End) depth -= 1
+        else if (i.isContainer) depth += 1
+      }
+    }
+
+    def close() {
+      reader.close()
+    }
+
+    private def read(): Item = {
+      val event =
+        if (this.pending) {
+          this.pending = false
+          reader.getEventType
+        } else reader.next()
+      event match {
+        case XMLStreamConstants.START_ELEMENT => new ElementItem(reader)
+        case XMLStreamConstants.END_ELEMENT | XMLStreamConstants.END_DOCUMENT =>
+          End
+        case XMLStreamConstants.CHARACTERS | XMLStreamConstants.SPACE =>
+          val sb = new StringBuilder(reader.getText)
+          var e = reader.next()
+          while (e == XMLStreamConstants.CHARACTERS ||
+                 e == XMLStreamConstants.SPACE) {
+            sb.append(reader.getText)
+            e = reader.next()
+          }
+          this.pending = true
+          new CharacterItem(Node.TEXT_NODE, sb.toString)
+        case XMLStreamConstants.CDATA =>
+          new CharacterItem(Node.CDATA_SECTION_NODE, reader.getText)
+        case XMLStreamConstants.COMMENT =>
+          new CharacterItem(Node.COMMENT_NODE, reader.getText)
+        case XMLStreamConstants.PROCESSING_INSTRUCTION =>
+          new PIItem(reader.getPITarget, reader.getPIData)
+        case XMLStreamConstants.DTD => DoctypeItem(reader.getText)
+        case _ => this.read()
+      }
+    }
+  }
+}
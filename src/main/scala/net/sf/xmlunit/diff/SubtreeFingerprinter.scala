@@ -0,0 +1,242 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff
+
+import java.util.ArrayDeque
+import java.util.EnumSet
+import javax.xml.XMLConstants
+import net.sf.xmlunit.util.IterableNodeList
+import org.w3c.dom.Attr
+import org.w3c.dom.CharacterData
+import org.w3c.dom.Document
+import org.w3c.dom.DocumentType
+import org.w3c.dom.Element
+import org.w3c.dom.Node
+import org.w3c.dom.ProcessingInstruction
+import scala.collection.JavaConversions._
+
+/**
+ * Computes 64 bit hashes of DOM subtrees in a way that subtrees
+ * DOMDifferenceEngine would find no differences in share the same
+ * fingerprint.
+ *
+ * <p>Fingerprints only take those properties of a node into
+ * account that are compared by comparisons whose type is not
+ * contained in the set of ignored comparison types.  Ignoring
+ * NODE_TYPE makes CDATA sections and text nodes look the same.</p>
+ *
+ * <p>Child nodes contribute in document order, attributes in any
+ * order.  Like any hash a fingerprint may collide, this is
+ * extremely unlikely for 64 bits but not impossible.</p>
+ */
+class SubtreeFingerprinter(ignoredTypes: java.util.Set[ComparisonType]) {
+  private val ignored = EnumSet.noneOf(classOf[ComparisonType])
+  this.ignored.addAll(ignoredTypes)
+
+  def this() = this(EnumSet.noneOf(classOf[ComparisonType]))
+
+  /**
+   * Obtains the fingerprint of a node.
+   *
+   * <p>The fingerprints of all nodes of the subtree (including the
+   * node itself) are added to the given cache, nodes already present
+   * in the cache are not visited again.  The subtree is traversed
+   * without recursion so deeply nested documents are fine.</p>
+   */
+  def getFingerprint(
+    node: Node,
+    cache: java.util.Map[Node, java.lang.Long]
+  ): Long = {
+    val stack = new ArrayDeque[Node]
+    stack.push(node)
+    while (!stack.isEmpty) {
+      val current = stack.peek
+      if (cache.containsKey(current)) stack.pop() else {
+        val deps = SubtreeFingerprinter.dependencies(current)
+        val pending = deps.filterNot(cache.containsKey)
+        if (pending.isEmpty) {
+          cache.put(current, this.hash(current, deps.map(cache.get(_).longValue)))
+          stack.pop()
+        } else pending.foreach(stack.push)
+      }
+    }
+    cache.get(node).longValue
+  }
+
+  /**
+   * Whether fingerprints take all properties into account.
+   */
+  private[diff] def isExact = this.ignored.isEmpty
+
+  private def considers(comparisonType: ComparisonType) =
+    !this.ignored.contains(comparisonType)
+
+  private def hash(node: Node, fingerprints: Seq[Long]) = {
+    import SubtreeFingerprinter._
+
+    val nodeType = node.getNodeType match {
+      case Node.CDATA_SECTION_NODE if !this.considers(ComparisonType.NODE_TYPE) =>
+        Node.TEXT_NODE
+      case t => t
+    }
+    var h = mix(Seed, nodeType)
+    if (this.considers(ComparisonType.NAMESPACE_URI))
+      h = mix(h, node.getNamespaceURI)
+    if (this.considers(ComparisonType.NAMESPACE_PREFIX))
+      h = mix(h, node.getPrefix)
+
+    node match {
+      case d: Document =>
+        if (this.considers(ComparisonType.HAS_DOCTYPE_DECLARATION))
+          h = mix(h, d.getDoctype != null)
+        if (this.considers(ComparisonType.XML_VERSION))
+          h = mix(h, d.getXmlVersion)
+        if (this.considers(ComparisonType.XML_STANDALONE))
+          h = mix(h, d.getXmlStandalone)
+        if (this.considers(ComparisonType.XML_ENCODING))
+          h = mix(h, d.getXmlEncoding)
+      case d: DocumentType =>
+        if (this.considers(ComparisonType.DOCTYPE_NAME))
+          h = mix(h, d.getName)
+        if (this.considers(ComparisonType.DOCTYPE_PUBLIC_ID))
+          h = mix(h, d.getPublicId)
+        if (this.considers(ComparisonType.DOCTYPE_SYSTEM_ID))
+          h = mix(h, d.getSystemId)
+      case e: Element =>
+        if (this.considers(ComparisonType.ELEMENT_TAG_NAME))
+          h = mix(h, NodeInfoCache.getQName(e).getLocalPart)
+        h = this.hashAttributes(h, e)
+      case c: CharacterData =>
+        if (this.considers(ComparisonType.TEXT_VALUE))
+          h = mix(h, c.getData)
+      case p: ProcessingInstruction =>
+        if (this.considers(ComparisonType.PROCESSING_INSTRUCTION_TARGET))
+          h = mix(h, p.getTarget)
+        if (this.considers(ComparisonType.PROCESSING_INSTRUCTION_DATA))
+          h = mix(h, p.getData)
+      case _ =>
+    }
+
+    h = mix(h, fingerprints.size)
+    fingerprints.foreach(f => h = mix(h, f))
+    finish(h)
+  }
+
+  private def hashAttributes(start: Long, e: Element) = {
+    import SubtreeFingerprinter._
+
+    var sum = 0L
+    var count = 0
+    val attrs = e.getAttributes
+    for (i <- 0 until attrs.getLength) {
+      val a = attrs.item(i).asInstanceOf[Attr]
+      val ns = a.getNamespaceURI
+      if (ns == XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI) {
+        val name = a.getLocalName
+        if (
+          (name == "schemaLocation" &&
+           this.considers(ComparisonType.SCHEMA_LOCATION)) ||
+          (name == "noNamespaceSchemaLocation" &&
+           this.considers(ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION))
+        ) sum += finish(mix(mix(Seed, name), a.getValue))
+      } else if (ns != XMLConstants.XMLNS_ATTRIBUTE_NS_URI) {
+        var ah = mix(Seed, ns)
+        ah = mix(ah, if (ns == null) a.getName else a.getLocalName)
+        if (this.considers(ComparisonType.NAMESPACE_PREFIX))
+          ah = mix(ah, a.getPrefix)
+        if (this.considers(ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED))
+          ah = mix(ah, a.getSpecified)
+        if (this.considers(ComparisonType.ATTR_VALUE))
+          ah = mix(ah, a.getValue)
+        sum += finish(ah)
+        count += 1
+      }
+    }
+    mix(mix(start, count), sum)
+  }
+}
+
+object SubtreeFingerprinter {
+  private val Seed = 0xcbf29ce484222325L
+  private val Prime = 0x100000001b3L
+
+  /**
+   * Nodes whose fingerprints contribute to the one of the given
+   * node - the same nodes DOMDifferenceEngine compares when it
+   * recurses.
+   */
+  private def dependencies(node: Node): Seq[Node] = {
+    val children = new IterableNodeList(node.getChildNodes).filter(
+      _.getNodeType != Node.DOCUMENT_TYPE_NODE
+    ).toIndexedSeq
+    node match {
+      case d: Document if d.getDoctype != null => d.getDoctype +: children
+      case _ => children
+    }
+  }
+
+  private def mix(h: Long, value: Long): Long = (h ^ value) * Prime
+
+  private def mix(h: Long, value: Boolean): Long = mix(h, if (value) 1L else 2L)
+
+  private def mix(h: Long, value: String): Long =
+    if (value == null) mix(h, -1L) else {
+      var r = mix(h, value.length.toLong)
+      var i = 0
+      while (i < value.length) {
+        r = (r ^ value.charAt(i)) * Prime
+        i += 1
+      }
+      r
+    }
+
+  /**
+   * Spreads the bits of a hash (finalizer of MurmurHash3).
+   */
+  private def finish(h: Long) = {
+    var r = h ^ (h >>> 33)
+    r *= 0xff51afd7ed558ccdL
+    r ^= r >>> 33
+    r *= 0xc4ceb9fe1a85ec53L
+    r ^ (r >>> 33)
+  }
+
+  /**
+   * Fingerprints that take all properties into account.
+   */
+  val Identical = new SubtreeFingerprinter
+
+  /**
+   * Fingerprints that ignore all properties {@link
+   * DifferenceEvaluators#Default DifferenceEvaluators.Default}
+   * considers similar.
+   *
+   * <p>Subtrees that only differ in such properties would be skipped
+   * without reporting any comparison at all, therefore
+   * DOMDifferenceEngine only uses these fingerprints for {@link
+   * DOMDifferenceEngine#isSimilar isSimilar} and falls back to
+   * {@link #Identical} otherwise.</p>
+   */
+  val Similar = new SubtreeFingerprinter(EnumSet.of(
+    ComparisonType.NODE_TYPE,
+    ComparisonType.HAS_DOCTYPE_DECLARATION,
+    ComparisonType.DOCTYPE_SYSTEM_ID,
+    ComparisonType.SCHEMA_LOCATION,
+    ComparisonType.NO_NAMESPACE_SCHEMA_LOCATION,
+    ComparisonType.NAMESPACE_PREFIX,
+    ComparisonType.ATTR_VALUE_EXPLICITLY_SPECIFIED,
+    ComparisonType.CHILD_NODELIST_SEQUENCE,
+    ComparisonType.XML_ENCODING
+  ))
+}
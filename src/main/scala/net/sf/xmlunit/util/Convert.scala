@@ -21,6 +21,8 @@ import javax.xml.namespace.NamespaceContext
 import javax.xml.parsers.DocumentBuilder
 import javax.xml.parsers.DocumentBuilderFactory
 import javax.xml.parsers.ParserConfigurationException
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamException
 import javax.xml.transform.Source
 import javax.xml.transform.Transformer
 import javax.xml.transform.TransformerConfigurationException
@@ -62,6 +64,24 @@ object Convert {
     case e: TransformerException => throw new XMLUnitException(e)
   }
 
+  /**
+   * Creates a StAX XMLStreamReader from a TraX Source.
+   *
+   * <p>Uses {@link #toInputSource} and the given factory, so this
+   * may involve an XSLT identity transform as well.</p>
+   */
+  def toXMLStreamReader(source: Source, factory: XMLInputFactory) = {
+    val in = this.toInputSource(source)
+    val stream = new StreamSource
+    stream.setSystemId(in.getSystemId)
+    stream.setPublicId(in.getPublicId)
+    if (in.getCharacterStream != null) stream.setReader(in.getCharacterStream)
+    else stream.setInputStream(in.getByteStream)
+    try factory.createXMLStreamReader(stream) catch {
+      case e: XMLStreamException => throw new XMLUnitException(e)
+    }
+  }
+
   /**
    * Creates a DOM Document from a TraX Source.
    *
@@ -0,0 +1,264 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.Source;
+import net.sf.xmlunit.builder.Input;
+import net.sf.xmlunit.exceptions.XMLUnitException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchDifferenceEngineTest {
+
+    private ExecutorService executor;
+
+    @Before public void createExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static Source test(int i) {
+        switch (i % 3) {
+        case 0:
+            return Input.fromMemory("<a><b>x</b></a>").build();
+        case 1:
+            return Input.fromMemory("<a><b><![CDATA[x]]></b></a>").build();
+        default:
+            return Input.fromMemory("<a><b>y</b></a>").build();
+        }
+    }
+
+    @Test public void comparesEachTest() {
+        List<Source> tests = new ArrayList<Source>();
+        for (int i = 0; i < 30; i++) {
+            tests.add(test(i));
+        }
+        final List<BatchResult> results =
+            Collections.synchronizedList(new ArrayList<BatchResult>());
+        new BatchDifferenceEngine(executor, 3)
+            .compare(Input.fromMemory("<a><b>x</b></a>").build(), tests,
+                     new BatchListener() {
+                         public void testCompared(BatchResult result) {
+                             results.add(result);
+                         }
+                     });
+        assertEquals(30, results.size());
+        boolean[] seen = new boolean[30];
+        for (BatchResult r : results) {
+            assertFalse(seen[r.getIndex()]);
+            seen[r.getIndex()] = true;
+            assertSame(tests.get(r.getIndex()), r.getTest());
+            assertNull(r.getFailure());
+            switch (r.getIndex() % 3) {
+            case 0:
+                assertTrue(r.isIdentical());
+                assertEquals(0, r.getDifferences().size());
+                break;
+            case 1:
+                assertFalse(r.isIdentical());
+                assertTrue(r.isSimilar());
+                assertEquals(ComparisonResult.SIMILAR, r.getOutcome());
+                break;
+            default:
+                assertFalse(r.isSimilar());
+                assertEquals(1, r.getDifferences().size());
+                Difference d = r.getDifferences().get(0);
+                assertEquals(ComparisonType.TEXT_VALUE,
+                             d.getComparison().getType());
+                assertEquals(ComparisonResult.DIFFERENT, d.getResult());
+                break;
+            }
+        }
+    }
+
+    @Test public void limitsTestsInFlight() {
+        final AtomicInteger pulled = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        Iterable<Source> tests = new Iterable<Source>() {
+            public Iterator<Source> iterator() {
+                return new Iterator<Source>() {
+                    public boolean hasNext() {
+                        return pulled.get() < 50;
+                    }
+                    public Source next() {
+                        int inFlight = pulled.incrementAndGet() - done.get();
+                        if (inFlight > maxInFlight.get()) {
+                            maxInFlight.set(inFlight);
+                        }
+                        return test(0);
+                    }
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        new BatchDifferenceEngine(executor, 2)
+            .compare(Input.fromMemory("<a><b>x</b></a>").build(), tests,
+                     new BatchListener() {
+                         public void testCompared(BatchResult result) {
+                             done.incrementAndGet();
+                         }
+                     });
+        assertEquals(50, done.get());
+        assertTrue(maxInFlight.get() <= 2);
+    }
+
+    @Test public void rethrowsListenerExceptions() {
+        List<Source> tests = new ArrayList<Source>();
+        for (int i = 0; i < 10; i++) {
+            tests.add(test(i));
+        }
+        try {
+            new BatchDifferenceEngine(executor, 2)
+                .compare(Input.fromMemory("<a><b>x</b></a>").build(), tests,
+                         new BatchListener() {
+                             public void testCompared(BatchResult result) {
+                                 throw new IllegalStateException("boom");
+                             }
+                         });
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test public void sharesControlWithTextReadingSelectors() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < 50; i++) {
+            sb.append("<item><name>n").append(i).append("</name><v>")
+                .append(i).append("</v></item>");
+        }
+        final String xml = sb.append("</root>").toString();
+        SubtreeFingerprinter[] fingerprinters = new SubtreeFingerprinter[] {
+            null, SubtreeFingerprinter.Identical()
+        };
+        for (SubtreeFingerprinter f : fingerprinters) {
+            List<Source> tests = new ArrayList<Source>();
+            for (int i = 0; i < 200; i++) {
+                tests.add(Input.fromMemory(xml).build());
+            }
+            final List<String> failed =
+                Collections.synchronizedList(new ArrayList<String>());
+            BatchDifferenceEngine e = new BatchDifferenceEngine(executor, 16);
+            e.setNodeMatcher(new DefaultNodeMatcher(ElementSelectors
+                                                    .byNameAndTextRec));
+            e.setSubtreeFingerprinter(f);
+            e.compare(Input.fromMemory(xml).build(), tests,
+                      new BatchListener() {
+                          public void testCompared(BatchResult result) {
+                              if (result.getFailure() != null) {
+                                  failed.add(result.getFailure().toString());
+                              }
+                              for (Difference d : result.getDifferences()) {
+                                  failed.add(d.toString());
+                              }
+                          }
+                      });
+            assertEquals(Collections.<String>emptyList(), failed);
+        }
+    }
+
+    @Test public void worksWithAThreadPerTask() {
+        List<Source> tests = new ArrayList<Source>();
+        for (int i = 0; i < 30; i++) {
+            tests.add(test(i));
+        }
+        final AtomicInteger similar = new AtomicInteger();
+        BatchDifferenceEngine e =
+            new BatchDifferenceEngine(new Executor() {
+                    public void execute(Runnable r) {
+                        new Thread(r).start();
+                    }
+                }, 8);
+        e.compare(test(0), tests, new BatchListener() {
+                public void testCompared(BatchResult result) {
+                    if (!result.getDifferences().isEmpty()
+                        && result.getIndex() % 3 == 1) {
+                        similar.incrementAndGet();
+                    }
+                }
+            });
+        assertEquals(10, similar.get());
+    }
+
+    @Test public void recordsExceptionsOfComparisons() {
+        List<Source> tests = new ArrayList<Source>();
+        for (int i = 0; i < 10; i++) {
+            tests.add(test(i));
+        }
+        final List<BatchResult> results =
+            Collections.synchronizedList(new ArrayList<BatchResult>());
+        BatchDifferenceEngine e = new BatchDifferenceEngine(executor, 2);
+        e.setDifferenceEvaluator(new DifferenceEvaluator() {
+                public <A, B> ComparisonResult
+                    evaluate(Comparison<A, B> comparison,
+                             ComparisonResult outcome) {
+                    throw new IllegalStateException("boom");
+                }
+            });
+        e.compare(Input.fromMemory("<a><b>x</b></a>").build(), tests,
+                  new BatchListener() {
+                      public void testCompared(BatchResult result) {
+                          results.add(result);
+                      }
+                  });
+        assertEquals(10, results.size());
+        for (BatchResult r : results) {
+            assertNotNull(r.getFailure());
+            assertTrue(r.getFailure().getCause()
+                       instanceof IllegalStateException);
+            assertFalse(r.isSimilar());
+        }
+    }
+
+    @Test public void rethrowsErrorsOfComparisons() {
+        try {
+            BatchDifferenceEngine e = new BatchDifferenceEngine(executor, 2);
+            e.setDifferenceEvaluator(new DifferenceEvaluator() {
+                    public <A, B> ComparisonResult
+                        evaluate(Comparison<A, B> comparison,
+                                 ComparisonResult outcome) {
+                        throw new AssertionError("boom");
+                    }
+                });
+            e.compare(Input.fromMemory("<a><b>x</b></a>").build(),
+                      Collections.singletonList(test(0)),
+                      new BatchListener() {
+                          public void testCompared(BatchResult result) {
+                              fail("listener must not be called");
+                          }
+                      });
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            assertTrue(ex.getCause() instanceof AssertionError);
+            assertFalse(ex.getMessage().contains("BatchListener"));
+        }
+    }
+}
@@ -13,8 +13,20 @@
 */
 package net.sf.xmlunit.diff;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.sf.xmlunit.exceptions.XMLUnitException;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -51,6 +63,246 @@ public class ComparisonListenerSupportTest {
         s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
     }
 
+    private ExecutorService executor;
+
+    @Before public void createExecutor() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test public void asynchronousDispatchKeepsOrder() {
+        for (ComparisonListenerSupport.WaitStrategy w
+                 : ComparisonListenerSupport.WaitStrategy.values()) {
+            ComparisonListenerSupport s = new ComparisonListenerSupport();
+            final List<ComparisonResult> seen =
+                new ArrayList<ComparisonResult>();
+            final Thread caller = Thread.currentThread();
+            s.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        assertNotSame(caller, Thread.currentThread());
+                        seen.add(outcome);
+                    }
+                });
+            s.dispatchAsynchronously(executor, 4,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK, w);
+            List<ComparisonResult> expected =
+                new ArrayList<ComparisonResult>();
+            for (int i = 0; i < 1000; i++) {
+                ComparisonResult r = ComparisonResult.values()[i % 4];
+                expected.add(r);
+                s.fireComparisonPerformed(null, r);
+            }
+            s.flush();
+            assertEquals(expected, seen);
+            s.close();
+            assertFalse(s.isDispatchingAsynchronously());
+            assertEquals(0, s.getDroppedComparisons());
+        }
+    }
+
+    @Test public void sameThreadExecutorMeansSynchronousDispatch() {
+        ComparisonListenerSupport s = new ComparisonListenerSupport();
+        final Thread caller = Thread.currentThread();
+        final List<ComparisonResult> seen = new ArrayList<ComparisonResult>();
+        s.addComparisonListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    assertSame(caller, Thread.currentThread());
+                    seen.add(outcome);
+                }
+            });
+        s.dispatchAsynchronously(new Executor() {
+                public void execute(Runnable r) {
+                    r.run();
+                }
+            }, 4, ComparisonListenerSupport.Backpressure.BLOCK,
+            ComparisonListenerSupport.WaitStrategy.BLOCKING);
+        assertFalse(s.isDispatchingAsynchronously());
+        s.fireComparisonPerformed(null, ComparisonResult.SIMILAR);
+        assertEquals(Arrays.asList(ComparisonResult.SIMILAR), seen);
+        s.flush();
+        s.close();
+    }
+
+    @Test public void droppingBackpressureDropsWhenFull() throws Exception {
+        ComparisonListenerSupport s = new ComparisonListenerSupport();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Listener l = new Listener(ComparisonResult.EQUAL) {
+                @Override
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    super.comparisonPerformed(comparison, outcome);
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            };
+        s.addComparisonListener(l);
+        s.dispatchAsynchronously(executor, 2,
+                                 ComparisonListenerSupport.Backpressure.DROP,
+                                 ComparisonListenerSupport.WaitStrategy
+                                 .BLOCKING);
+        s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+        blocked.await();
+        // the first comparison occupies its slot until delivered
+        for (int i = 0; i < 5; i++) {
+            s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+        }
+        release.countDown();
+        s.close();
+        assertEquals(4, s.getDroppedComparisons());
+        assertEquals(2, l.getInvocations());
+    }
+
+    @Test public void listenerExceptionsAreRethrownByFlush() {
+        ComparisonListenerSupport s = new ComparisonListenerSupport();
+        s.addComparisonListener(new Listener());
+        s.dispatchAsynchronously(executor, 16,
+                                 ComparisonListenerSupport.Backpressure.BLOCK,
+                                 ComparisonListenerSupport.WaitStrategy
+                                 .BLOCKING);
+        s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+        s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+        try {
+            s.flush();
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            assertTrue(ex.getCause() instanceof AssertionError);
+        }
+        s.flush();
+        s.close();
+    }
+
+    @Test public void interruptedConsumerMakesDispatchFail()
+        throws Exception {
+        ComparisonListenerSupport s = new ComparisonListenerSupport();
+        s.addComparisonListener(new Listener(ComparisonResult.EQUAL));
+        s.dispatchAsynchronously(executor, 4,
+                                 ComparisonListenerSupport.Backpressure.BLOCK,
+                                 ComparisonListenerSupport.WaitStrategy
+                                 .BLOCKING);
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        try {
+            s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            // expected
+        }
+        try {
+            s.flush();
+            fail("expected an exception");
+        } catch (XMLUnitException ex) {
+            // expected
+        }
+    }
+
+    @Test public void idleYieldingConsumerBlocks() throws Exception {
+        final Thread[] consumer = new Thread[1];
+        ExecutorService e =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        consumer[0] = new Thread(r);
+                        return consumer[0];
+                    }
+                });
+        try {
+            ComparisonListenerSupport s = new ComparisonListenerSupport();
+            s.addComparisonListener(new Listener(ComparisonResult.EQUAL));
+            s.dispatchAsynchronously(e, 4,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK,
+                                     ComparisonListenerSupport.WaitStrategy
+                                     .YIELDING);
+            s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+            s.flush();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (consumer[0].getState() != Thread.State.WAITING
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.WAITING, consumer[0].getState());
+            s.fireComparisonPerformed(null, ComparisonResult.EQUAL);
+            s.close();
+        } finally {
+            e.shutdownNow();
+        }
+    }
+
+    @Test public void consumersShareTheListeners() throws Exception {
+        ExecutorService e = Executors.newFixedThreadPool(2);
+        try {
+            ComparisonListenerSupport s = new ComparisonListenerSupport();
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+            final List<ComparisonResult> blocked =
+                new ArrayList<ComparisonResult>();
+            final List<ComparisonResult> seen =
+                new ArrayList<ComparisonResult>();
+            s.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        blocked.add(outcome);
+                        threads.add(Thread.currentThread());
+                    }
+                });
+            final CountDownLatch done = new CountDownLatch(100);
+            s.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        seen.add(outcome);
+                        threads.add(Thread.currentThread());
+                        done.countDown();
+                    }
+                });
+            s.dispatchAsynchronously(e, 128,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK,
+                                     ComparisonListenerSupport.WaitStrategy
+                                     .BLOCKING, 2);
+            List<ComparisonResult> expected =
+                new ArrayList<ComparisonResult>();
+            for (int i = 0; i < 100; i++) {
+                ComparisonResult r = ComparisonResult.values()[i % 4];
+                expected.add(r);
+                s.fireComparisonPerformed(null, r);
+            }
+            // the second listener doesn't wait for the first one
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            s.close();
+            assertEquals(expected, seen);
+            assertEquals(expected, blocked);
+            assertEquals(2, new HashSet<Thread>(threads).size());
+        } finally {
+            e.shutdownNow();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void shouldRejectNonPositiveConsumers() {
+        new ComparisonListenerSupport()
+            .dispatchAsynchronously(executor, 4,
+                                    ComparisonListenerSupport.Backpressure
+                                    .BLOCK,
+                                    ComparisonListenerSupport.WaitStrategy
+                                    .BLOCKING, 0);
+    }
+
     static class Listener implements ComparisonListener {
         private final HashSet<ComparisonResult> acceptable =
             new HashSet<ComparisonResult>();
@@ -0,0 +1,124 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import net.sf.xmlunit.builder.Input;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ComparisonMetricsTest {
+
+    private static void compare(ComparisonMetrics m) {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.addComparisonListener(m);
+        d.compare(Input.fromMemory("<a><b x='1'>foo</b><c/></a>").build(),
+                  Input.fromMemory("<a><b x='2'>bar</b><c/></a>").build());
+    }
+
+    @Test public void countsComparisonsByTypeAndOutcome() {
+        ComparisonMetrics m = new ComparisonMetrics();
+        compare(m);
+        ComparisonMetrics.Snapshot s = m.snapshot();
+        assertEquals(1, s.getCount(ComparisonType.ATTR_VALUE,
+                                   ComparisonResult.DIFFERENT));
+        assertEquals(1, s.getCount(ComparisonType.TEXT_VALUE,
+                                   ComparisonResult.DIFFERENT));
+        assertEquals(2, s.getDifferences(ComparisonType.ATTR_VALUE)
+                     + s.getDifferences(ComparisonType.TEXT_VALUE));
+        assertEquals(0, s.getDifferences(ComparisonType.ELEMENT_TAG_NAME));
+        assertEquals(3, s.getCount(ComparisonType.ELEMENT_TAG_NAME,
+                                   ComparisonResult.EQUAL));
+    }
+
+    @Test public void histogramsOfDifferences() {
+        ComparisonMetrics m = new ComparisonMetrics(2, 1);
+        compare(m);
+        ComparisonMetrics.Snapshot s = m.snapshot();
+        // attribute and text node are both children of b at depth 3,
+        // which is counted in the last bucket
+        assertEquals(2, s.getDifferencesAtDepth(2));
+        assertEquals(0, s.getDifferencesAtDepth(1));
+        assertEquals(Long.valueOf(2),
+                     s.getDifferencesByElement().get(new QName("b")));
+        assertEquals(1, s.getDifferencesByElement().size());
+    }
+
+    @Test public void deeperDifferencesAreCountedAtMaxDepth() {
+        ComparisonMetrics shallow = new ComparisonMetrics(3, 1);
+        ComparisonMetrics deep = new ComparisonMetrics(5, 1);
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.addComparisonListener(shallow);
+        d.addComparisonListener(deep);
+        d.compare(Input.fromMemory("<a>1<b x='1'>foo</b>"
+                                   + "<c><d><e>y</e></d></c></a>").build(),
+                  Input.fromMemory("<a>2<b x='2'>bar</b>"
+                                   + "<c><d><e>w</e></d></c></a>").build());
+
+        ComparisonMetrics.Snapshot s = deep.snapshot();
+        assertEquals(1, s.getDifferencesAtDepth(2));
+        assertEquals(2, s.getDifferencesAtDepth(3));
+        assertEquals(0, s.getDifferencesAtDepth(4));
+        assertEquals(1, s.getDifferencesAtDepth(5));
+        assertEquals(Long.valueOf(1),
+                     s.getDifferencesByElement().get(new QName("e")));
+
+        s = shallow.snapshot();
+        assertEquals(1, s.getDifferencesAtDepth(2));
+        // the text of e at depth 5 joins the two differences at depth 3
+        assertEquals(3, s.getDifferencesAtDepth(3));
+        assertEquals(3, s.getDifferencesAtDepth(5));
+    }
+
+    @Test public void resetClearsAllCounters() {
+        ComparisonMetrics m = new ComparisonMetrics();
+        compare(m);
+        m.reset();
+        ComparisonMetrics.Snapshot s = m.snapshot();
+        for (ComparisonType t : ComparisonType.values()) {
+            for (ComparisonResult r : ComparisonResult.values()) {
+                assertEquals(0, s.getCount(t, r));
+            }
+        }
+        assertEquals(0, s.getDifferencesAtDepth(3));
+        assertTrue(s.getDifferencesByElement().isEmpty());
+    }
+
+    @Test public void canBeSharedByConcurrentEngines() throws Exception {
+        final ComparisonMetrics m = new ComparisonMetrics(64, 4);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread() {
+                    @Override public void run() {
+                        for (int j = 0; j < 25; j++) {
+                            compare(m);
+                        }
+                    }
+                });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(100, m.snapshot().getCount(ComparisonType.ATTR_VALUE,
+                                                ComparisonResult.DIFFERENT));
+        assertEquals(Long.valueOf(200), m.snapshot().getDifferencesByElement()
+                     .get(new QName("b")));
+    }
+}
@@ -13,6 +13,9 @@
 */
 package net.sf.xmlunit.diff;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import net.sf.xmlunit.NullNode;
@@ -759,4 +762,398 @@ public class DOMDifferenceEngineTest extends AbstractDifferenceEngineTest {
         assertEquals(1, ex.invoked);
     }
 
+    @Test public void xPathsCanBeObtainedAfterComparisonIsDone() {
+        Element e1 = doc.createElement("foo");
+        e1.appendChild(doc.createElement("bar"));
+        Element e3 = doc.createElement("baz");
+        e3.setAttribute("a", "1");
+        e1.appendChild(e3);
+
+        Element e2 = doc.createElement("foo");
+        e2.appendChild(doc.createElement("bar"));
+        Element e4 = doc.createElement("baz");
+        e4.setAttribute("a", "2");
+        e2.appendChild(e4);
+
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        assertEquals(ComparisonResult.EQUAL,
+                     d.compareNodes(e1, new XPathContext(),
+                                    e2, new XPathContext()));
+        assertEquals(1, differences.size());
+        Comparison c = differences.get(0);
+        assertEquals(ComparisonType.ATTR_VALUE, c.getType());
+        assertEquals("/baz[1]/@a", c.getControlDetails().getXPath());
+        assertEquals("/baz[1]/@a", c.getTestDetails().getXPath());
+    }
+
+    @Test public void lazyDetailsEqualEagerDetails() {
+        Element e1 = doc.createElement("foo");
+        e1.setAttribute("a", "1");
+        Element e2 = doc.createElement("foo");
+        e2.setAttribute("a", "2");
+
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compareNodes(e1, new XPathContext(), e2, new XPathContext());
+        assertEquals(1, differences.size());
+        Comparison lazy = differences.get(0);
+        Comparison eager =
+            new Comparison(ComparisonType.ATTR_VALUE,
+                           lazy.getControlDetails().getTarget(), "/@a", "1",
+                           lazy.getTestDetails().getTarget(), "/@a", "2");
+        assertEquals(eager.getControlDetails().toString(),
+                     lazy.getControlDetails().toString());
+        assertEquals(eager.getControlDetails().hashCode(),
+                     lazy.getControlDetails().hashCode());
+        assertEquals(eager.getTestDetails().toString(),
+                     lazy.getTestDetails().toString());
+        assertSame(lazy.getControlDetails(), lazy.getControlDetails());
+        assertFalse(eager.getControlDetails()
+                    .equals(eager.getTestDetails()));
+    }
+
+    private static class Counter implements ComparisonListener {
+        private int comparisons = 0;
+        public void comparisonPerformed(Comparison comparison,
+                                        ComparisonResult outcome) {
+            comparisons++;
+        }
+    }
+
+    @Test public void subtreesWithSameFingerprintAreSkipped() {
+        String control = "<a><b><c x='1'>foo</c></b><d>bar</d></a>";
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setSubtreeFingerprinter(SubtreeFingerprinter.Identical());
+        Counter c = new Counter();
+        d.addComparisonListener(c);
+        d.compare(Input.fromMemory(control).build(),
+                  Input.fromMemory(control).build());
+        assertEquals(0, c.comparisons);
+    }
+
+    @Test public void differencesAreFoundDespiteFingerprints() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setSubtreeFingerprinter(SubtreeFingerprinter.Identical());
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(Input.fromMemory("<a><b><c x='1'>foo</c></b><d>bar</d></a>")
+                  .build(),
+                  Input.fromMemory("<a><b><c x='1'>foo</c></b><d>baz</d></a>")
+                  .build());
+        assertEquals(1, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0).getType());
+        assertEquals("/a[1]/d[1]/text()[1]",
+                     differences.get(0).getControlDetails().getXPath());
+    }
+
+    @Test public void similarFingerprintsDontHideSimilarDifferences() {
+        String control = "<a><b x='1'>foo</b><c/></a>";
+        String test = "<a><b x='1'><![CDATA[foo]]></b><c/></a>";
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setSubtreeFingerprinter(SubtreeFingerprinter.Similar());
+        assertFalse(d.isIdentical(Input.fromMemory(control).build(),
+                                  Input.fromMemory(test).build()));
+        assertTrue(d.isSimilar(Input.fromMemory(control).build(),
+                               Input.fromMemory(test).build()));
+
+        final List<ComparisonResult> outcomes =
+            new ArrayList<ComparisonResult>();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    outcomes.add(outcome);
+                }
+            });
+        d.compare(Input.fromMemory(control).build(),
+                  Input.fromMemory(test).build());
+        assertEquals(Arrays.asList(ComparisonResult.SIMILAR), outcomes);
+    }
+
+    @Test public void isIdenticalAndIsSimilar() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        assertTrue(d.isIdentical(Input.fromMemory("<a><b x='1'>foo</b></a>")
+                                 .build(),
+                                 Input.fromMemory("<a><b x='1'>foo</b></a>")
+                                 .build()));
+        assertFalse(d.isIdentical(Input.fromMemory("<a>foo</a>").build(),
+                                  Input.fromMemory("<a><![CDATA[foo]]></a>")
+                                  .build()));
+        assertTrue(d.isSimilar(Input.fromMemory("<a>foo</a>").build(),
+                               Input.fromMemory("<a><![CDATA[foo]]></a>")
+                               .build()));
+        assertFalse(d.isSimilar(Input.fromMemory("<a>foo</a>").build(),
+                                Input.fromMemory("<a>bar</a>").build()));
+    }
+
+    @Test public void verdictModeStopsAtFirstDifferenceWithoutListeners() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        Counter c = new Counter();
+        d.addComparisonListener(c);
+        final List<Comparison> evaluated = new ArrayList<Comparison>();
+        d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                public ComparisonResult evaluate(Comparison comparison,
+                                                 ComparisonResult outcome) {
+                    evaluated.add(comparison);
+                    return outcome;
+                }
+            });
+        assertFalse(d.isIdentical(Input.fromMemory("<a><b>1</b><c>2</c></a>")
+                                  .build(),
+                                  Input.fromMemory("<a><b>3</b><c>4</c></a>")
+                                  .build()));
+        assertEquals(0, c.comparisons);
+        assertEquals(1, evaluated.size());
+        assertEquals(ComparisonType.TEXT_VALUE, evaluated.get(0).getType());
+        assertEquals("/a[1]/b[1]/text()[1]",
+                     evaluated.get(0).getControlDetails().getXPath());
+
+        d.compare(Input.fromMemory("<a/>").build(),
+                  Input.fromMemory("<a/>").build());
+        assertTrue(c.comparisons > 0);
+    }
+
+    @Test public void deeplyNestedDocumentsDontExhaustTheStack() {
+        final int depth = 20000;
+        StringBuilder control = new StringBuilder();
+        StringBuilder test = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            control.append("<a>");
+            test.append("<a>");
+        }
+        control.append("foo");
+        test.append("bar");
+        for (int i = 0; i < depth; i++) {
+            control.append("</a>");
+            test.append("</a>");
+        }
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compare(Input.fromMemory(control.toString()).build(),
+                  Input.fromMemory(test.toString()).build());
+        assertEquals(1, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0).getType());
+        assertTrue(differences.get(0).getControlDetails().getXPath()
+                   .endsWith("/a[1]/a[1]/text()[1]"));
+    }
+
+    @Test public void manyAttributesAreMatchedByName() {
+        Element e1 = doc.createElement("foo");
+        Element e2 = doc.createElement("foo");
+        for (int i = 0; i < 300; i++) {
+            e1.setAttribute("a" + i, "v" + i);
+            e2.setAttribute("a" + (299 - i), "v" + (299 - i));
+        }
+        e1.setAttributeNS("urn:xmlunit:test", "x:only", "c");
+        e2.setAttribute("only", "t");
+
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        final List<Comparison> differences = new ArrayList<Comparison>();
+        d.addDifferenceListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    differences.add(comparison);
+                }
+            });
+        d.compareNodes(e1, new XPathContext(), e2, new XPathContext());
+        assertEquals(2, differences.size());
+        assertEquals(ComparisonType.ATTR_NAME_LOOKUP,
+                     differences.get(0).getType());
+        assertEquals(Boolean.FALSE,
+                     differences.get(0).getTestDetails().getValue());
+        assertEquals(ComparisonType.ATTR_NAME_LOOKUP,
+                     differences.get(1).getType());
+        assertEquals(Boolean.FALSE,
+                     differences.get(1).getControlDetails().getValue());
+        assertEquals("/@only",
+                     differences.get(1).getTestDetails().getXPath());
+    }
+
+    @Test public void disabledComparisonsAreNeverPerformed() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        final List<ComparisonType> evaluated = new ArrayList<ComparisonType>();
+        d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                public ComparisonResult evaluate(Comparison comparison,
+                                                 ComparisonResult outcome) {
+                    evaluated.add(comparison.getType());
+                    return outcome;
+                }
+            });
+        Counter c = new Counter();
+        d.addDifferenceListener(c);
+        d.setDisabledComparisonTypes(java.util.EnumSet
+                                     .of(ComparisonType.TEXT_VALUE,
+                                         ComparisonType.SCHEMA_LOCATION,
+                                         ComparisonType.DOCTYPE_NAME,
+                                         ComparisonType.DOCTYPE_PUBLIC_ID,
+                                         ComparisonType.DOCTYPE_SYSTEM_ID));
+        String xsi = " xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'";
+        d.compare(Input.fromMemory("<!DOCTYPE a []>"
+                                   + "<a" + xsi + " xsi:schemaLocation='x'>"
+                                   + "<!-- foo -->bar</a>").build(),
+                  Input.fromMemory("<!DOCTYPE b []>"
+                                   + "<a" + xsi + " xsi:schemaLocation='y'>"
+                                   + "<!-- baz -->qux</a>").build());
+        assertEquals(0, c.comparisons);
+        assertFalse(evaluated.isEmpty());
+        for (ComparisonType t : d.getDisabledComparisonTypes()) {
+            assertFalse(t.toString(), evaluated.contains(t));
+        }
+        // document, element, comment and text - the doctypes are not
+        // visited at all
+        int nodeTypeComparisons = 0;
+        for (ComparisonType t : evaluated) {
+            if (t == ComparisonType.NODE_TYPE) {
+                nodeTypeComparisons++;
+            }
+        }
+        assertEquals(4, nodeTypeComparisons);
+    }
+
+    @Test public void compareWaitsForAsynchronousListeners() {
+        java.util.concurrent.ExecutorService executor =
+            java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            Counter sync = new Counter();
+            d.addComparisonListener(sync);
+            d.compare(Input.fromMemory("<a><b x='1'/>foo</a>").build(),
+                      Input.fromMemory("<a><b x='2'/>bar</a>").build());
+
+            Counter async = new Counter();
+            d = new DOMDifferenceEngine();
+            d.addComparisonListener(async);
+            d.dispatchAsynchronously(executor, 2,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK,
+                                     ComparisonListenerSupport.WaitStrategy
+                                     .BLOCKING);
+            d.compare(Input.fromMemory("<a><b x='1'/>foo</a>").build(),
+                      Input.fromMemory("<a><b x='2'/>bar</a>").build());
+            assertEquals(sync.comparisons, async.comparisons);
+            d.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void failedCompareWaitsForAsynchronousListeners() {
+        java.util.concurrent.ExecutorService executor =
+            java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            final int[] evaluated = new int[1];
+            final java.util.concurrent.atomic.AtomicInteger delivered =
+                new java.util.concurrent.atomic.AtomicInteger();
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                    public <A, B> ComparisonResult
+                        evaluate(Comparison<A, B> comparison,
+                                 ComparisonResult outcome) {
+                        if (++evaluated[0] == 5) {
+                            throw new IllegalStateException("boom");
+                        }
+                        return outcome;
+                    }
+                });
+            d.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        delivered.incrementAndGet();
+                    }
+                });
+            d.dispatchAsynchronously(executor, 16,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK,
+                                     ComparisonListenerSupport.WaitStrategy
+                                     .BLOCKING);
+            try {
+                d.compare(Input.fromMemory("<a><b x='1'/>foo</a>").build(),
+                          Input.fromMemory("<a><b x='2'/>bar</a>").build());
+                fail("expected an exception");
+            } catch (net.sf.xmlunit.exceptions.XMLUnitException ex) {
+                assertEquals(4, delivered.get());
+            }
+            d.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void listenerFailuresDontHideComparisonFailures() {
+        java.util.concurrent.ExecutorService executor =
+            java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            final int[] evaluated = new int[1];
+            final java.util.concurrent.CountDownLatch listenerFailed =
+                new java.util.concurrent.CountDownLatch(1);
+            final IllegalStateException boom =
+                new IllegalStateException("boom");
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setDifferenceEvaluator(new DifferenceEvaluator() {
+                    public <A, B> ComparisonResult
+                        evaluate(Comparison<A, B> comparison,
+                                 ComparisonResult outcome) {
+                        if (++evaluated[0] == 5) {
+                            try {
+                                listenerFailed.await();
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw boom;
+                        }
+                        return outcome;
+                    }
+                });
+            d.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        listenerFailed.countDown();
+                        throw new UnsupportedOperationException();
+                    }
+                });
+            d.dispatchAsynchronously(executor, 16,
+                                     ComparisonListenerSupport.Backpressure
+                                     .BLOCK,
+                                     ComparisonListenerSupport.WaitStrategy
+                                     .BLOCKING);
+            try {
+                d.compare(Input.fromMemory("<a><b x='1'/>foo</a>").build(),
+                          Input.fromMemory("<a><b x='2'/>bar</a>").build());
+                fail("expected an exception");
+            } catch (net.sf.xmlunit.exceptions.XMLUnitException ex) {
+                assertSame(boom, ex.getCause());
+            }
+            d.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import net.sf.xmlunit.util.Linqy;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import scala.Tuple2;
+
+import static org.junit.Assert.*;
+
+public class DefaultNodeMatcherTest {
+
+    private Document doc;
+
+    @Before public void createDoc() throws Exception {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    /**
+     * Hides the KeyedElementSelector nature of a selector.
+     */
+    private static ElementSelector unkeyed(final ElementSelector s) {
+        return new ElementSelector() {
+            public boolean canBeCompared(Element controlElement,
+                                         Element testElement) {
+                return s.canBeCompared(controlElement, testElement);
+            }
+        };
+    }
+
+    private static List<Tuple2<Node, Node>> matches(NodeMatcher m,
+                                                     List<Node> control,
+                                                     List<Node> test) {
+        return Linqy.asList(m.getMatches(control, test));
+    }
+
+    private Element element(String name, String attrValue) {
+        Element e = doc.createElement(name);
+        e.setAttribute("id", attrValue);
+        return e;
+    }
+
+    @Test public void keyedMatchingFindsSameMatchesAsScanning() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(doc.createTextNode("a"));
+        control.add(element("foo", "1"));
+        control.add(element("bar", "1"));
+        control.add(doc.createComment("c"));
+        control.add(element("foo", "2"));
+        control.add(doc.createCDATASection("b"));
+        control.add(element("baz", "1"));
+
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("bar", "1"));
+        test.add(element("foo", "2"));
+        test.add(doc.createComment("c"));
+        test.add(doc.createTextNode("a"));
+        test.add(element("foo", "1"));
+        test.add(doc.createTextNode("b"));
+        test.add(element("foo", "3"));
+
+        KeyedElementSelector[] selectors = new KeyedElementSelector[] {
+            ElementSelectors.byName,
+            ElementSelectors.byNameAndAttributes("id"),
+            ElementSelectors.byNameAndAllAttributes,
+        };
+        for (KeyedElementSelector s : selectors) {
+            assertEquals(matches(new DefaultNodeMatcher(unkeyed(s)),
+                                 control, test),
+                         matches(new DefaultNodeMatcher(s), control, test));
+        }
+    }
+
+    @Test public void keyedMatchingUsesKeys() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(element("foo", "1"));
+        control.add(element("foo", "2"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("foo", "2"));
+        test.add(element("foo", "3"));
+        test.add(element("foo", "1"));
+
+        List<Tuple2<Node, Node>> m =
+            matches(new DefaultNodeMatcher(ElementSelectors
+                                           .byNameAndAttributes("id")),
+                    control, test);
+        assertEquals(2, m.size());
+        assertSame(control.get(0), m.get(0)._1());
+        assertSame(test.get(2), m.get(0)._2());
+        assertSame(control.get(1), m.get(1)._1());
+        assertSame(test.get(0), m.get(1)._2());
+    }
+
+    @Test public void indexedMatchesPointToMatchedNodes() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(element("foo", "1"));
+        control.add(doc.createComment("c"));
+        control.add(element("bar", "1"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(element("bar", "1"));
+        test.add(doc.createTextNode("t"));
+        test.add(element("foo", "1"));
+
+        ElementSelector[] selectors = new ElementSelector[] {
+            ElementSelectors.byName, unkeyed(ElementSelectors.byName)
+        };
+        for (ElementSelector s : selectors) {
+            DefaultNodeMatcher m = new DefaultNodeMatcher(s);
+            List<Tuple2<Object, Object>> indices =
+                new ArrayList<Tuple2<Object, Object>>();
+            for (Tuple2<Object, Object> p
+                     : m.getIndexedMatches(control, test)) {
+                indices.add(p);
+            }
+            assertEquals(2, indices.size());
+            assertEquals(0, indices.get(0)._1());
+            assertEquals(2, indices.get(0)._2());
+            assertEquals(2, indices.get(1)._1());
+            assertEquals(0, indices.get(1)._2());
+        }
+    }
+
+    /**
+     * Matches the way DefaultNodeMatcher always did: each control
+     * node with the first available test node that can be compared.
+     */
+    private static List<Tuple2<Node, Node>> naiveMatches(ElementSelector s,
+                                                          List<Node> control,
+                                                          List<Node> test) {
+        List<Tuple2<Node, Node>> result = new ArrayList<Tuple2<Node, Node>>();
+        boolean[] used = new boolean[test.size()];
+        for (Node c : control) {
+            for (int i = 0; i < test.size(); i++) {
+                Node t = test.get(i);
+                boolean match = c instanceof Element && t instanceof Element
+                    ? s.canBeCompared((Element) c, (Element) t)
+                    : DefaultNodeTypeMatcher.canBeCompared(c.getNodeType(),
+                                                           t.getNodeType());
+                if (!used[i] && match) {
+                    used[i] = true;
+                    result.add(new Tuple2<Node, Node>(c, t));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class CountingSelector implements NamedElementSelector {
+        private final ElementSelector delegate;
+        private int calls;
+        private CountingSelector(ElementSelector delegate) {
+            this.delegate = delegate;
+        }
+        public boolean canBeCompared(Element controlElement,
+                                     Element testElement) {
+            calls++;
+            return delegate.canBeCompared(controlElement, testElement);
+        }
+    }
+
+    @Test public void scannedMatchingOnlyAsksSelectorForPlausibleCandidates() {
+        List<Node> control = new ArrayList<Node>();
+        List<Node> test = new ArrayList<Node>();
+        for (int i = 0; i < 20; i++) {
+            control.add(doc.createTextNode(" "));
+            control.add(element(i % 2 == 0 ? "foo" : "bar", "" + (i % 3)));
+            control.add(doc.createComment("c"));
+            test.add(doc.createTextNode(" "));
+            test.add(doc.createCDATASection(" "));
+            test.add(element(i % 3 == 0 ? "foo" : "bar", "" + (i % 4)));
+        }
+        ElementSelector byAttr = unkeyed(ElementSelectors
+                                         .byNameAndAttributes("id"));
+        CountingSelector counting = new CountingSelector(byAttr);
+        assertEquals(naiveMatches(byAttr, control, test),
+                     matches(new DefaultNodeMatcher(counting), control, test));
+        assertTrue(counting.calls > 0);
+        assertTrue(counting.calls < 20 * 20 / 2);
+
+        ElementSelector unnamed = unkeyed(ElementSelectors.byName);
+        assertEquals(naiveMatches(unnamed, control, test),
+                     matches(new DefaultNodeMatcher(unnamed), control, test));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.sf.xmlunit.builder.Input;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiffConfigTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cantUseNullMatcher() {
+        DiffConfig.builder().withNodeMatcher(null);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void disabledComparisonTypesCantBeModified() {
+        DiffConfig.builder()
+            .disableComparisonTypes(ComparisonType.TEXT_VALUE).build()
+            .getDisabledComparisonTypes().clear();
+    }
+
+    @Test public void disabledComparisonTypesAreEqual() {
+        DiffConfig config = DiffConfig.builder()
+            .disableComparisonTypes(ComparisonType.TEXT_VALUE,
+                                    ComparisonType.NAMESPACE_PREFIX)
+            .build();
+        assertTrue(config.isIdentical(Input.fromMemory("<a>foo</a>").build(),
+                                      Input.fromMemory("<a>bar</a>").build()));
+        assertFalse(config.isIdentical(Input.fromMemory("<a>foo</a>").build(),
+                                       Input.fromMemory("<b>foo</b>").build()));
+        assertFalse(DiffConfig.Default()
+                    .isIdentical(Input.fromMemory("<a>foo</a>").build(),
+                                 Input.fromMemory("<a>bar</a>").build()));
+    }
+
+    @Test public void enginesUseConfiguredListeners() {
+        final List<ComparisonType> differences =
+            new ArrayList<ComparisonType>();
+        DiffConfig config = DiffConfig.builder()
+            .withDifferenceListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        differences.add(comparison.getType());
+                    }
+                })
+            .build();
+        config.compare(Input.fromMemory("<a>foo</a>").build(),
+                       Input.fromMemory("<a>bar</a>").build());
+        config.newEngine().compare(Input.fromMemory("<a x='1'/>").build(),
+                                   Input.fromMemory("<a x='2'/>").build());
+        assertEquals(2, differences.size());
+        assertEquals(ComparisonType.TEXT_VALUE, differences.get(0));
+        assertEquals(ComparisonType.ATTR_VALUE, differences.get(1));
+    }
+}
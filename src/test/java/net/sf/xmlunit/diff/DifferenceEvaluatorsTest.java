@@ -53,4 +53,58 @@ public class DifferenceEvaluatorsTest {
         assertTrue(e2.called);
     }
 
+    private static Comparison comparison(ComparisonType type) {
+        return new Comparison(type, null, null, null, null, null, null);
+    }
+
+    @Test public void builderOnlyCallsEvaluatorsForMatchingType() {
+        Evaluator attr = new Evaluator(ComparisonResult.SIMILAR);
+        Evaluator text = new Evaluator(ComparisonResult.EQUAL);
+        DifferenceEvaluator d = DifferenceEvaluators.builder()
+            .withEvaluator(attr, ComparisonType.ATTR_VALUE)
+            .withEvaluator(text, ComparisonType.TEXT_VALUE,
+                           ComparisonType.ATTR_VALUE)
+            .build();
+        assertEquals(ComparisonResult.DIFFERENT,
+                     d.evaluate(comparison(ComparisonType.NODE_TYPE),
+                                ComparisonResult.DIFFERENT));
+        assertFalse(attr.called);
+        assertFalse(text.called);
+
+        assertEquals(ComparisonResult.EQUAL,
+                     d.evaluate(comparison(ComparisonType.TEXT_VALUE),
+                                ComparisonResult.DIFFERENT));
+        assertFalse(attr.called);
+        assertTrue(text.called);
+
+        text.called = false;
+        assertEquals(ComparisonResult.SIMILAR,
+                     d.evaluate(comparison(ComparisonType.ATTR_VALUE),
+                                ComparisonResult.DIFFERENT));
+        assertTrue(attr.called);
+        assertFalse(text.called);
+    }
+
+    @Test public void builderDispatchesOnOutcome() {
+        Evaluator e = new Evaluator(ComparisonResult.SIMILAR);
+        DifferenceEvaluator d = DifferenceEvaluators.builder()
+            .withEvaluator(e, ComparisonResult.DIFFERENT,
+                           ComparisonType.ATTR_VALUE)
+            .build();
+        assertEquals(ComparisonResult.EQUAL,
+                     d.evaluate(comparison(ComparisonType.ATTR_VALUE),
+                                ComparisonResult.EQUAL));
+        assertFalse(e.called);
+        assertEquals(ComparisonResult.SIMILAR,
+                     d.evaluate(comparison(ComparisonType.ATTR_VALUE),
+                                ComparisonResult.DIFFERENT));
+        assertTrue(e.called);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void builderNeedsTypes() {
+        DifferenceEvaluators.builder()
+            .withEvaluator(DifferenceEvaluators.Accept);
+    }
+
 }
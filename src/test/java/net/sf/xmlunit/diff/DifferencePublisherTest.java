@@ -0,0 +1,220 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Source;
+import net.sf.xmlunit.builder.Input;
+import net.sf.xmlunit.util.Flow;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Node;
+import scala.Tuple2;
+
+import static org.junit.Assert.*;
+
+public class DifferencePublisherTest {
+
+    private ExecutorService executor;
+
+    @Before public void createExecutor() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static Source control() {
+        return Input.fromMemory("<a><b x='1'/><c>foo</c><d/></a>").build();
+    }
+
+    private static Source test() {
+        return Input.fromMemory("<a><b x='2'/><c>bar</c><e/></a>").build();
+    }
+
+    private static class Recorder implements Flow.Subscriber<Difference> {
+        private final List<Difference> items =
+            Collections.synchronizedList(new ArrayList<Difference>());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+        private volatile boolean completed;
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+        Flow.Subscription subscription() {
+            return subscription;
+        }
+        public void onNext(Difference d) {
+            items.add(d);
+        }
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+    }
+
+    @Test public void publishesAllDifferences() throws Exception {
+        final List<Comparison> expected = new ArrayList<Comparison>();
+        DiffConfig.builder()
+            .withDifferenceListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        expected.add(comparison);
+                    }
+                })
+            .build()
+            .compare(control(), test());
+
+        Recorder r = new Recorder();
+        new DifferencePublisher(DiffConfig.Default(), control(), test(),
+                                executor).subscribe(r);
+        r.subscription.request(Long.MAX_VALUE);
+        assertTrue(r.done.await(10, TimeUnit.SECONDS));
+        assertTrue(r.completed);
+        assertNull(r.error);
+        assertEquals(expected.size(), r.items.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getType(),
+                         r.items.get(i).getComparison().getType());
+        }
+    }
+
+    /**
+     * Counts down once per difference found by the engine, before
+     * the publisher sees it.
+     */
+    private static class DifferenceLatch implements ComparisonListener {
+        private final CountDownLatch first = new CountDownLatch(1);
+        private final CountDownLatch second = new CountDownLatch(2);
+        public void comparisonPerformed(Comparison comparison,
+                                        ComparisonResult outcome) {
+            first.countDown();
+            second.countDown();
+        }
+    }
+
+    @Test public void waitsForDemand() throws Exception {
+        DifferenceLatch found = new DifferenceLatch();
+        DiffConfig config =
+            DiffConfig.builder().withDifferenceListener(found).build();
+        Recorder r = new Recorder();
+        new DifferencePublisher(config, control(), test(), executor)
+            .subscribe(r);
+        // the publisher is waiting for demand for the first difference
+        assertTrue(found.first.await(10, TimeUnit.SECONDS));
+        assertEquals(0, r.items.size());
+        r.subscription.request(1);
+        // listeners are notified in order, so the first difference
+        // has been published and the second one waits for demand
+        assertTrue(found.second.await(10, TimeUnit.SECONDS));
+        assertEquals(1, r.items.size());
+        assertFalse(r.completed);
+        r.subscription.request(Long.MAX_VALUE);
+        assertTrue(r.done.await(10, TimeUnit.SECONDS));
+        assertTrue(r.completed);
+        assertTrue(r.items.size() > 1);
+    }
+
+    @Test public void cancelStopsTraversingSkippedNodes() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<c><d/></c>");
+        }
+        String rest = sb.append("</a>").toString();
+        final int[] childLists = new int[1];
+        final NodeMatcher matcher = new DefaultNodeMatcher();
+        // no comparison after the first difference reaches the
+        // DifferenceEvaluator
+        EnumSet<ComparisonType> disabled =
+            EnumSet.complementOf(EnumSet.of(ComparisonType.TEXT_VALUE));
+        DiffConfig config = DiffConfig.builder()
+            .withNodeMatcher(new NodeMatcher() {
+                    public Iterable<Tuple2<Node, Node>>
+                        getMatches(Iterable<Node> controlNodes,
+                                   Iterable<Node> testNodes) {
+                        childLists[0]++;
+                        return matcher.getMatches(controlNodes, testNodes);
+                    }
+                })
+            .disableComparisonTypes(disabled
+                                    .toArray(new ComparisonType[0]))
+            .build();
+        final Recorder r = new Recorder() {
+                @Override public void onNext(Difference d) {
+                    super.onNext(d);
+                    subscription().cancel();
+                }
+            };
+        new DifferencePublisher(config,
+                                Input.fromMemory("<a><b>1</b>" + rest).build(),
+                                Input.fromMemory("<a><b>2</b>" + rest).build(),
+                                executor).subscribe(r);
+        r.subscription.request(Long.MAX_VALUE);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, r.items.size());
+        assertFalse(r.completed);
+        assertNull(r.error);
+        assertTrue(childLists[0] < 10);
+    }
+
+    @Test public void cancelStopsTheComparison() throws Exception {
+        Recorder r = new Recorder();
+        new DifferencePublisher(DiffConfig.Default(), control(), test(),
+                                executor).subscribe(r);
+        r.subscription.request(1);
+        r.subscription.cancel();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(r.items.size() <= 1);
+        assertFalse(r.completed);
+        assertNull(r.error);
+    }
+
+    @Test public void nonPositiveRequestsAreErrors() throws Exception {
+        Recorder r = new Recorder();
+        new DifferencePublisher(DiffConfig.Default(), control(), test(),
+                                executor).subscribe(r);
+        r.subscription.request(0);
+        assertTrue(r.done.await(10, TimeUnit.SECONDS));
+        assertTrue(r.error instanceof IllegalArgumentException);
+    }
+
+    @Test public void onlyOneSubscriberIsSupported() throws Exception {
+        DifferencePublisher p =
+            new DifferencePublisher(DiffConfig.Default(), control(), test(),
+                                    executor);
+        Recorder first = new Recorder();
+        p.subscribe(first);
+        Recorder second = new Recorder();
+        p.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+        first.subscription.cancel();
+    }
+}
@@ -13,6 +13,7 @@
 */
 package net.sf.xmlunit.diff;
 
+import java.util.concurrent.CountDownLatch;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -94,6 +95,122 @@ public class ElementSelectorsTest {
     }
 
     @Test public void byNameAndTextRec() {
+        byNameAndText_MultiLevel(ElementSelectors.byNameAndTextRec);
+    }
+
+    @Test public void memoizedByNameAndTextRec_NamePart() {
+        pureElementNameComparisons(ElementSelectors
+                                   .memoizedByNameAndTextRec());
+    }
+
+    @Test public void memoizedByNameAndTextRec_Single() {
+        byNameAndText_SingleLevel(ElementSelectors.memoizedByNameAndTextRec());
+    }
+
+    @Test public void memoizedByNameAndTextRec() {
+        byNameAndText_MultiLevel(ElementSelectors.memoizedByNameAndTextRec());
+    }
+
+    @Test public void memoizedByNameAndTextRecConsidersNonTextChildren() {
+        KeyedElementSelector s = ElementSelectors.memoizedByNameAndTextRec();
+        Element control = doc.createElement(FOO);
+        control.appendChild(doc.createComment(BAR));
+        control.appendChild(doc.createTextNode(BAR));
+        Element equal = doc.createElement(FOO);
+        equal.appendChild(doc.createTextNode(BAR));
+        equal.appendChild(doc.createComment(FOO));
+        Element differentType = doc.createElement(FOO);
+        differentType.appendChild(doc.createProcessingInstruction(BAR, BAR));
+        differentType.appendChild(doc.createTextNode(BAR));
+
+        assertTrue(s.canBeCompared(control, equal));
+        assertEquals(s.getKey(control), s.getKey(equal));
+        assertFalse(s.canBeCompared(control, differentType));
+        assertEquals(ElementSelectors.byNameAndTextRec
+                     .canBeCompared(control, equal),
+                     s.canBeCompared(control, equal));
+        assertEquals(ElementSelectors.byNameAndTextRec
+                     .canBeCompared(control, differentType),
+                     s.canBeCompared(control, differentType));
+    }
+
+    @Test public void memoizedByNameAndTextRecHandlesDeepDocuments() {
+        KeyedElementSelector s = ElementSelectors.memoizedByNameAndTextRec();
+        Element control = doc.createElement(FOO);
+        Element equal = doc.createElement(FOO);
+        Element different = doc.createElement(FOO);
+        Element c = control, e = equal, d = different;
+        // Xerces would otherwise walk all ancestors for each new child
+        doc.setStrictErrorChecking(false);
+        for (int i = 0; i < 100000; i++) {
+            c = (Element) c.appendChild(doc.createElement(BAR));
+            e = (Element) e.appendChild(doc.createElement(BAR));
+            d = (Element) d.appendChild(doc.createElement(BAR));
+        }
+        c.appendChild(doc.createTextNode(FOO));
+        e.appendChild(doc.createTextNode(FOO));
+        d.appendChild(doc.createTextNode(BAR));
+
+        assertTrue(s.canBeCompared(control, equal));
+        assertFalse(s.canBeCompared(control, different));
+        assertTrue(s.canBeCompared((Element) control.getFirstChild(),
+                                   (Element) equal.getFirstChild()));
+    }
+
+    @Test public void memoizedByNameAndTextRecCanBeSharedByThreads()
+        throws Exception {
+        final KeyedElementSelector s =
+            ElementSelectors.memoizedByNameAndTextRec();
+        final int threads = 4;
+        // a document per thread, DOM implementations needn't support
+        // concurrent reads
+        final Element[] roots = new Element[threads];
+        for (int i = 0; i < threads; i++) {
+            Document d = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().newDocument();
+            roots[i] = d.createElement(FOO);
+            for (int j = 0; j < 1000; j++) {
+                Element child = d.createElement(BAR);
+                child.appendChild(d.createTextNode(String.valueOf(j % 10)));
+                roots[i].appendChild(child);
+            }
+        }
+        final Object[] keys = new Object[threads];
+        final Object[] lastChildKeys = new Object[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread() {
+                    @Override public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                        keys[index] = s.getKey(roots[index]);
+                        lastChildKeys[index] =
+                            s.getKey((Element) roots[index].getLastChild());
+                    }
+                };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        for (int i = 0; i < threads; i++) {
+            assertNotNull(keys[i]);
+            assertSame(keys[0], keys[i]);
+            assertSame(lastChildKeys[0], lastChildKeys[i]);
+            assertSame(s.getKey((Element) roots[i].getFirstChild()
+                                .getNextSibling()),
+                       s.getKey((Element) roots[0].getChildNodes()
+                                .item(11)));
+        }
+    }
+
+    private void byNameAndText_MultiLevel(ElementSelector s) {
         Element control = doc.createElement(FOO);
         Element child = doc.createElement(BAR);
         control.appendChild(child);
@@ -118,7 +235,6 @@ public class ElementSelectorsTest {
         differentText.appendChild(child5);
         child5.appendChild(doc.createTextNode(FOO));
 
-        ElementSelector s = ElementSelectors.byNameAndTextRec;
         assertTrue(s.canBeCompared(control, equal));
         assertTrue(s.canBeCompared(control, equalC));
         assertFalse(s.canBeCompared(control, noText));
@@ -275,4 +391,35 @@ public class ElementSelectorsTest {
                    .canBeCompared(control, noNS));
     }
 
+    private void keysAgreeWithCanBeCompared(KeyedElementSelector s,
+                                            Element... elements) {
+        for (Element e1 : elements) {
+            for (Element e2 : elements) {
+                assertEquals(s.canBeCompared(e1, e2),
+                             s.getKey(e1).equals(s.getKey(e2)));
+            }
+        }
+    }
+
+    @Test public void keysOfKeyedSelectors() {
+        Element foo = doc.createElement(FOO);
+        foo.setAttribute(BAR, BAR);
+        Element fooWithText = doc.createElement(FOO);
+        fooWithText.setAttribute(BAR, BAR);
+        fooWithText.appendChild(doc.createTextNode(BAR));
+        Element fooNoAttr = doc.createElement(FOO);
+        Element fooNS = doc.createElementNS(SOME_URI, FOO);
+        fooNS.setAttribute(BAR, BAR);
+        Element bar = doc.createElement(BAR);
+        Element[] all = new Element[] {
+            foo, fooWithText, fooNoAttr, fooNS, bar
+        };
+
+        keysAgreeWithCanBeCompared(ElementSelectors.byName, all);
+        keysAgreeWithCanBeCompared(ElementSelectors.byNameAndText, all);
+        keysAgreeWithCanBeCompared(ElementSelectors.byNameAndAttributes(BAR),
+                                   all);
+        keysAgreeWithCanBeCompared(ElementSelectors.byNameAndAllAttributes,
+                                   all);
+    }
 }
@@ -0,0 +1,110 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.xml.parsers.DocumentBuilderFactory;
+import net.sf.xmlunit.util.Linqy;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import scala.Tuple2;
+
+import static org.junit.Assert.*;
+
+public class MinHashNodeMatcherTest {
+
+    private Document doc;
+
+    @Before public void createDoc() throws Exception {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    private Element row(int id, String text) {
+        Element e = doc.createElement("row");
+        e.setAttribute("id", String.valueOf(id));
+        Element name = doc.createElement("name");
+        name.appendChild(doc.createTextNode("entry number " + id));
+        e.appendChild(name);
+        Element value = doc.createElement("value");
+        value.appendChild(doc.createTextNode(text));
+        e.appendChild(value);
+        return e;
+    }
+
+    private static List<Tuple2<Node, Node>> matches(NodeMatcher m,
+                                                     List<Node> control,
+                                                     List<Node> test) {
+        return Linqy.asList(m.getMatches(control, test));
+    }
+
+    @Test public void matchesShuffledAndSlightlyModifiedRows() {
+        List<Node> control = new ArrayList<Node>();
+        List<Node> test = new ArrayList<Node>();
+        for (int i = 0; i < 200; i++) {
+            String text = "item " + (i * 7919) + " of " + (i * 104729);
+            control.add(row(i, text));
+            test.add(row(i, i % 10 == 0 ? text + "!" : text));
+        }
+        Collections.shuffle(test, new Random(42));
+
+        List<Tuple2<Node, Node>> m =
+            matches(new MinHashNodeMatcher(ElementSelectors.byName),
+                    control, test);
+        assertEquals(200, m.size());
+        for (Tuple2<Node, Node> p : m) {
+            assertEquals(((Element) p._1()).getAttribute("id"),
+                         ((Element) p._2()).getAttribute("id"));
+        }
+    }
+
+    @Test public void respectsElementSelector() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(row(1, "foo"));
+        List<Node> test = new ArrayList<Node>();
+        Element other = doc.createElement("other");
+        other.setAttribute("id", "1");
+        test.add(other);
+        test.add(row(2, "foo"));
+
+        List<Tuple2<Node, Node>> m =
+            matches(new MinHashNodeMatcher(ElementSelectors
+                                           .byNameAndAttributes("id")),
+                    control, test);
+        assertEquals(0, m.size());
+    }
+
+    @Test public void matchesNonElementsByType() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(doc.createComment("a comment"));
+        control.add(doc.createTextNode("some text"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(doc.createCDATASection("some text"));
+        test.add(doc.createComment("a comment"));
+
+        List<Tuple2<Node, Node>> m =
+            matches(new MinHashNodeMatcher(), control, test);
+        assertEquals(2, m.size());
+        assertSame(control.get(0), m.get(0)._1());
+        assertSame(test.get(1), m.get(0)._2());
+        assertSame(control.get(1), m.get(1)._1());
+        assertSame(test.get(0), m.get(1)._2());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.*;
+
+public class NodeInfoCacheTest {
+
+    private Element e;
+
+    @Before public void createElement() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        e = doc.createElementNS("urn:foo", "f:foo");
+        e.setAttribute("bar", "baz");
+    }
+
+    @Test public void computesInfoOutsideOfComparison() {
+        assertEquals(new QName("urn:foo", "foo", "f"),
+                     NodeInfoCache.getQName(e));
+        assertNotSame(NodeInfoCache.getQName(e), NodeInfoCache.getQName(e));
+        Map<QName, String> attrs = NodeInfoCache.getAttributes(e);
+        assertEquals(1, attrs.size());
+        assertEquals("baz", attrs.get(new QName("bar")));
+    }
+
+    @Test public void cachesInfoDuringComparison() {
+        NodeInfoCache.begin();
+        try {
+            QName name = NodeInfoCache.getQName(e);
+            Map<QName, String> attrs = NodeInfoCache.getAttributes(e);
+            NodeInfoCache.begin();
+            try {
+                assertSame(name, NodeInfoCache.getQName(e));
+            } finally {
+                NodeInfoCache.end();
+            }
+            assertSame(name, NodeInfoCache.getQName(e));
+            assertSame(attrs, NodeInfoCache.getAttributes(e));
+        } finally {
+            NodeInfoCache.end();
+        }
+        assertNotSame(NodeInfoCache.getQName(e), NodeInfoCache.getQName(e));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void attributesCantBeModified() {
+        NodeInfoCache.getAttributes(e).clear();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import javax.xml.transform.Source;
+import net.sf.xmlunit.builder.Input;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import static org.junit.Assert.*;
+
+public class ParallelDOMDifferenceEngineTest
+    extends AbstractDifferenceEngineTest {
+
+    @Override protected AbstractDifferenceEngine getDifferenceEngine() {
+        return new ParallelDOMDifferenceEngine();
+    }
+
+    private static class Recorder implements ComparisonListener {
+        private final List<String> comparisons =
+            Collections.synchronizedList(new ArrayList<String>());
+        public void comparisonPerformed(Comparison comparison,
+                                        ComparisonResult outcome) {
+            comparisons.add(comparison.getType() + " "
+                            + comparison.getControlDetails().getXPath() + " "
+                            + comparison.getTestDetails().getXPath() + " "
+                            + outcome);
+        }
+    }
+
+    private static Source document(int differentItem) {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<list n='").append(i).append("'>");
+            for (int j = 0; j < 5; j++) {
+                sb.append("<item>")
+                    .append(i * 5 + j == differentItem ? "x" : "y")
+                    .append("</item>");
+            }
+            sb.append("</list>");
+        }
+        return Input.fromMemory(sb.append("</root>").toString()).build();
+    }
+
+    private static List<String> record(DOMDifferenceEngine d,
+                                       DifferenceEvaluator ev) {
+        Recorder r = new Recorder();
+        d.addComparisonListener(r);
+        d.setDifferenceEvaluator(ev);
+        d.compare(document(-1), document(42));
+        return r.comparisons;
+    }
+
+    private static ParallelDOMDifferenceEngine parallel(boolean deterministic) {
+        ParallelDOMDifferenceEngine d = new ParallelDOMDifferenceEngine();
+        d.setForkThreshold(3);
+        d.setDeterministic(deterministic);
+        return d;
+    }
+
+    @Test public void deterministicModeReplaysInDocumentOrder() {
+        List<String> expected = record(new DOMDifferenceEngine(),
+                                       DifferenceEvaluators.Default);
+        assertEquals(expected, record(parallel(true),
+                                      DifferenceEvaluators.Default));
+    }
+
+    @Test public void deterministicModeStopsAtFirstCriticalResult() {
+        List<String> expected =
+            record(new DOMDifferenceEngine(),
+                   DifferenceEvaluators.DefaultStopWhenDifferent);
+        List<String> actual =
+            record(parallel(true),
+                   DifferenceEvaluators.DefaultStopWhenDifferent);
+        assertEquals(expected, actual);
+        assertTrue(actual.get(actual.size() - 1).endsWith(" CRITICAL"));
+    }
+
+    @Test public void nonDeterministicModeFindsAllComparisons() {
+        List<String> expected = new ArrayList<String>(
+            record(new DOMDifferenceEngine(), DifferenceEvaluators.Default));
+        List<String> actual = new ArrayList<String>(
+            record(parallel(false), DifferenceEvaluators.Default));
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    private static Source documentWithDefaults(int explicitItem) {
+        StringBuilder sb =
+            new StringBuilder("<!DOCTYPE root [<!ATTLIST item d CDATA 'x'>]>"
+                              + "<root>");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<list n='").append(i).append("'>");
+            for (int j = 0; j < 5; j++) {
+                sb.append(i * 5 + j == explicitItem ? "<item d='x'>"
+                          : "<item>")
+                    .append("y</item>");
+            }
+            sb.append("</list>");
+        }
+        return Input.fromMemory(sb.append("</root>").toString()).build();
+    }
+
+    @Test public void forkedSubtreesKeepDefaultedAttributes() {
+        SubtreeFingerprinter[] fingerprinters = new SubtreeFingerprinter[] {
+            null, SubtreeFingerprinter.Identical()
+        };
+        for (SubtreeFingerprinter f : fingerprinters) {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setSubtreeFingerprinter(f);
+            Recorder expected = new Recorder();
+            d.addComparisonListener(expected);
+            d.compare(documentWithDefaults(-1), documentWithDefaults(42));
+
+            d = parallel(true);
+            d.setSubtreeFingerprinter(f);
+            Recorder actual = new Recorder();
+            d.addComparisonListener(actual);
+            d.compare(documentWithDefaults(-1), documentWithDefaults(42));
+            assertEquals(expected.comparisons, actual.comparisons);
+
+            actual.comparisons.clear();
+            d.compare(new PreparedControl(documentWithDefaults(-1)),
+                      documentWithDefaults(42));
+            assertEquals(expected.comparisons, actual.comparisons);
+        }
+    }
+
+    @Test public void tasksDontShareDocuments() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < 8; i++) {
+            sb.append("<list>");
+            for (int j = 0; j < 100; j++) {
+                sb.append("<item><name>n").append(j).append("</name><v>")
+                    .append(i).append("</v></item>");
+            }
+            sb.append("</list>");
+        }
+        String xml = sb.append("</root>").toString();
+        for (int i = 0; i < 10; i++) {
+            ParallelDOMDifferenceEngine d = parallel(true);
+            d.setForkThreshold(20);
+            d.setNodeMatcher(new DefaultNodeMatcher(ElementSelectors
+                                                    .byNameAndTextRec));
+            final List<String> differences = new ArrayList<String>();
+            final Set<Node> documents =
+                Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            d.addComparisonListener(new ComparisonListener() {
+                    public void comparisonPerformed(Comparison comparison,
+                                                    ComparisonResult outcome) {
+                        if (outcome != ComparisonResult.EQUAL) {
+                            differences.add(comparison.toString());
+                        }
+                        Node n = (Node) comparison.getControlDetails()
+                            .getTarget();
+                        documents.add(n instanceof Document ? n
+                                      : n.getOwnerDocument());
+                    }
+                });
+            // Xerces' deferred DOM changes whenever it is read
+            d.compare(Input.fromMemory(xml).build(),
+                      Input.fromMemory(xml).build());
+            assertEquals(Collections.<String>emptyList(), differences);
+            // one for the root task and one per list
+            assertEquals(9, documents.size());
+        }
+    }
+
+    @Test public void enginesWithoutPoolDontLeakThreads() {
+        record(parallel(true), DifferenceEvaluators.Default);
+        int before = Thread.activeCount();
+        for (int i = 0; i < 20; i++) {
+            record(parallel(true), DifferenceEvaluators.Default);
+        }
+        assertTrue(Thread.activeCount() - before
+                   <= Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,299 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import net.sf.xmlunit.builder.Input;
+import net.sf.xmlunit.util.Convert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import static org.junit.Assert.*;
+
+public class PreparedControlTest {
+
+    private static final String CONTROL =
+        "<!DOCTYPE a []>"
+        + "<a xmlns:x='urn:x'><!-- c --><b x:y='1' z='2'>foo</b>"
+        + "<?pi data?><x:c><d/>bar<d/></x:c></a>";
+    private static final String TEST =
+        "<!DOCTYPE a []>"
+        + "<a xmlns:x='urn:x'><!-- d --><b z='3' w='4'>foo</b>"
+        + "<?pi data?><x:c><d/><e/><![CDATA[bar]]></x:c></a>";
+
+    private static class Recorder implements ComparisonListener {
+        private final List<String> comparisons = new ArrayList<String>();
+        public void comparisonPerformed(Comparison comparison,
+                                        ComparisonResult outcome) {
+            comparisons.add(comparison.getType() + " "
+                            + comparison.getControlDetails().getXPath() + " "
+                            + comparison.getTestDetails().getXPath() + " "
+                            + outcome);
+        }
+    }
+
+    @Test public void preparedControlYieldsSameComparisons() {
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        Recorder expected = new Recorder();
+        d.addComparisonListener(expected);
+        d.compare(Input.fromMemory(CONTROL).build(),
+                  Input.fromMemory(TEST).build());
+
+        PreparedControl control =
+            new PreparedControl(Input.fromMemory(CONTROL).build());
+        for (int i = 0; i < 2; i++) {
+            d = new DOMDifferenceEngine();
+            Recorder actual = new Recorder();
+            d.addComparisonListener(actual);
+            d.compare(control, Input.fromMemory(TEST).build());
+            assertEquals(expected.comparisons, actual.comparisons);
+        }
+    }
+
+    @Test public void preparedControlUsesNamespaceContext() {
+        scala.collection.immutable.Map<String, String> uri2Prefix =
+            new scala.collection.immutable.Map.Map1<String, String>("urn:x",
+                                                                    "p");
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.setNamespaceContext(uri2Prefix);
+        Recorder expected = new Recorder();
+        d.addComparisonListener(expected);
+        d.compare(Input.fromMemory(CONTROL).build(),
+                  Input.fromMemory(TEST).build());
+        assertTrue(expected.comparisons
+                   .contains("ATTR_NAME_LOOKUP /a[1]/b[1]/@p:y /a[1]/b[1]"
+                             + " DIFFERENT"));
+
+        PreparedControl control =
+            new PreparedControl(Input.fromMemory(CONTROL).build());
+        for (int i = 0; i < 2; i++) {
+            d = new DOMDifferenceEngine();
+            d.setNamespaceContext(uri2Prefix);
+            Recorder actual = new Recorder();
+            d.addComparisonListener(actual);
+            d.compare(control, Input.fromMemory(TEST).build());
+            assertEquals(expected.comparisons, actual.comparisons);
+        }
+
+        d = new DOMDifferenceEngine();
+        Recorder unprefixed = new Recorder();
+        d.addComparisonListener(unprefixed);
+        d.compare(control, Input.fromMemory(TEST).build());
+        assertTrue(unprefixed.comparisons
+                   .contains("ATTR_NAME_LOOKUP /a[1]/b[1]/@y /a[1]/b[1]"
+                             + " DIFFERENT"));
+    }
+
+    @Test public void verdictsForPreparedControl() {
+        PreparedControl control =
+            new PreparedControl(Input.fromMemory(CONTROL).build());
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        assertTrue(d.isIdentical(control, Input.fromMemory(CONTROL).build()));
+        assertFalse(d.isSimilar(control, Input.fromMemory(TEST).build()));
+    }
+
+    @Test public void keepsXmlDeclarationAndDefaultedAttributes() {
+        String xml = "<?xml version='1.1' encoding='UTF-8' standalone='yes'?>"
+            + "<!DOCTYPE a [<!ATTLIST b d CDATA 'x'>]>"
+            + "<a><b c='1'/><b c='2' d='x'/></a>";
+        String other = "<!DOCTYPE a [<!ATTLIST b c CDATA '1'>]>"
+            + "<a><b d='x'/><b c='2' d='x'/></a>";
+        Node doc = Convert.toDocument(Input.fromMemory(xml).build());
+        Node[] controls = new Node[] {
+            doc, ((Document) doc).getDocumentElement()
+        };
+        for (Node control : controls) {
+            Source test = Input.fromMemory(other).build();
+            Node testNode = control instanceof Document
+                ? Convert.toDocument(test)
+                : Convert.toDocument(test).getDocumentElement();
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            Recorder expected = new Recorder();
+            d.addComparisonListener(expected);
+            d.compare(new DOMSource(control), new DOMSource(testNode));
+
+            d = new DOMDifferenceEngine();
+            Recorder actual = new Recorder();
+            d.addComparisonListener(actual);
+            d.compare(new PreparedControl(control), new DOMSource(testNode));
+            assertEquals(expected.comparisons, actual.comparisons);
+        }
+    }
+
+    @Test public void getNodeReturnsTheOriginalControl() {
+        Node doc = Convert.toDocument(Input.fromMemory(CONTROL).build());
+        assertSame(doc, new PreparedControl(doc).getNode());
+    }
+
+    @Test public void listenersSeeTheOriginalControl() {
+        final Node doc = Convert.toDocument(Input.fromMemory(CONTROL).build());
+        final List<Node> targets = new ArrayList<Node>();
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        d.addComparisonListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    targets.add((Node) comparison.getControlDetails().getTarget());
+                }
+            });
+        PreparedControl control = new PreparedControl(doc);
+        for (int i = 0; i < 2; i++) {
+            targets.clear();
+            d.compare(control, Input.fromMemory(TEST).build());
+            assertSame(doc, targets.get(0));
+        }
+    }
+
+    @Test public void overlappingComparisonsUseCopies() {
+        String xml = "<?xml version='1.1' encoding='UTF-8' standalone='yes'?>"
+            + "<!DOCTYPE a [<!ATTLIST b d CDATA 'x'>]>"
+            + "<a xmlns:x='urn:x'><!-- c --><b c='1'/><b x:c='2' d='x'/>"
+            + "<?pi data?><x:c>foo<![CDATA[bar]]></x:c></a>";
+        final String other = "<!DOCTYPE b [<!ATTLIST b c CDATA '1'>]>"
+            + "<a xmlns:y='urn:x'><!-- c --><b d='x'/><b y:c='2' d='x'/>"
+            + "<?pi data?><y:c>foobar</y:c></a>";
+        DOMDifferenceEngine d = new DOMDifferenceEngine();
+        Recorder expected = new Recorder();
+        d.addComparisonListener(expected);
+        d.compare(Input.fromMemory(xml).build(),
+                  Input.fromMemory(other).build());
+
+        final Node doc = Convert.toDocument(Input.fromMemory(xml).build());
+        final PreparedControl control = new PreparedControl(doc);
+        final Recorder nested = new Recorder();
+        final List<Node> targets = new ArrayList<Node>();
+        d = new DOMDifferenceEngine();
+        d.addComparisonListener(new ComparisonListener() {
+                public void comparisonPerformed(Comparison comparison,
+                                                ComparisonResult outcome) {
+                    if (targets.isEmpty()) {
+                        targets.add((Node) comparison.getControlDetails()
+                                    .getTarget());
+                        DOMDifferenceEngine inner = new DOMDifferenceEngine();
+                        inner.addComparisonListener(nested);
+                        inner.addComparisonListener(new ComparisonListener() {
+                                public void comparisonPerformed(Comparison c,
+                                                                ComparisonResult r) {
+                                    if (targets.size() == 1) {
+                                        targets.add((Node) c.getControlDetails()
+                                                    .getTarget());
+                                    }
+                                }
+                            });
+                        inner.compare(control,
+                                      Input.fromMemory(other).build());
+                    }
+                }
+            });
+        d.compare(control, Input.fromMemory(other).build());
+        assertSame(doc, targets.get(0));
+        assertNotSame(doc, targets.get(1));
+        assertEquals(expected.comparisons, nested.comparisons);
+    }
+
+    @Test public void fingerprintsOfPreparedControl() {
+        PreparedControl control =
+            new PreparedControl(Input.fromMemory(CONTROL).build());
+        for (SubtreeFingerprinter f
+                 : new SubtreeFingerprinter[] {
+                SubtreeFingerprinter.Identical(),
+                SubtreeFingerprinter.Similar()
+            }) {
+            DOMDifferenceEngine d = new DOMDifferenceEngine();
+            d.setSubtreeFingerprinter(f);
+            Recorder expected = new Recorder();
+            d.addComparisonListener(expected);
+            d.compare(Input.fromMemory(CONTROL).build(),
+                      Input.fromMemory(TEST).build());
+
+            d = new DOMDifferenceEngine();
+            d.setSubtreeFingerprinter(f);
+            Recorder actual = new Recorder();
+            d.addComparisonListener(actual);
+            d.compare(control, Input.fromMemory(TEST).build());
+            assertEquals(expected.comparisons, actual.comparisons);
+            assertTrue(d.isIdentical(control,
+                                     Input.fromMemory(CONTROL).build()));
+            assertFalse(d.isIdentical(control,
+                                      Input.fromMemory(CONTROL.replace("bar",
+                                                                       "<![CDATA[bar]]>"))
+                                      .build()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeMaxCopies() {
+        new PreparedControl(Convert.toDocument(Input.fromMemory(CONTROL)
+                                               .build()), -1);
+    }
+
+    @Test public void canBeSharedByEnginesOnDifferentThreads()
+        throws Exception {
+        StringBuilder control = new StringBuilder("<root>");
+        for (int i = 0; i < 50; i++) {
+            control.append("<item><name>n").append(i).append("</name><v>")
+                .append(i).append("</v></item>");
+        }
+        control.append("</root>");
+        final String controlXml = control.toString();
+        // Xerces creates a deferred DOM that changes when it is read
+        final PreparedControl prepared =
+            new PreparedControl(Input.fromMemory(controlXml).build());
+        final String[] failures = new String[16];
+        Thread[] threads = new Thread[failures.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                    public void run() {
+                        DOMDifferenceEngine d = new DOMDifferenceEngine();
+                        d.setNodeMatcher(new DefaultNodeMatcher(ElementSelectors
+                                                                .byNameAndTextRec));
+                        final List<String> differences =
+                            new ArrayList<String>();
+                        d.addDifferenceListener(new ComparisonListener() {
+                                public void comparisonPerformed(Comparison c,
+                                                                ComparisonResult r) {
+                                    if (r != ComparisonResult.EQUAL) {
+                                        differences.add(c.getType() + " at "
+                                                        + c.getControlDetails()
+                                                        .getXPath());
+                                    }
+                                }
+                            });
+                        try {
+                            for (int j = 0; j < 40; j++) {
+                                d.compare(prepared, Input.fromMemory(controlXml)
+                                          .build());
+                            }
+                            if (!differences.isEmpty()) {
+                                failures[index] = differences.toString();
+                            }
+                        } catch (RuntimeException ex) {
+                            failures[index] = ex.toString();
+                        }
+                    }
+                };
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNull(failures[i], failures[i]);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import net.sf.xmlunit.util.Linqy;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import scala.Tuple2;
+
+import static org.junit.Assert.*;
+
+public class SequenceNodeMatcherTest {
+
+    private static final ElementSelector BY_ID = new ElementSelector() {
+            public boolean canBeCompared(Element controlElement,
+                                         Element testElement) {
+                return controlElement.getAttribute("id")
+                    .equals(testElement.getAttribute("id"));
+            }
+        };
+
+    private Document doc;
+
+    @Before public void createDoc() throws Exception {
+        doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    private List<Node> records(int... ids) {
+        List<Node> l = new ArrayList<Node>();
+        for (int id : ids) {
+            Element e = doc.createElement("record");
+            e.setAttribute("id", String.valueOf(id));
+            l.add(e);
+        }
+        return l;
+    }
+
+    private static List<String> matchedIds(NodeMatcher m, List<Node> control,
+                                           List<Node> test) {
+        List<String> ids = new ArrayList<String>();
+        for (Tuple2<Node, Node> p
+                 : Linqy.asList(m.getMatches(control, test))) {
+            String id = ((Element) p._1()).getAttribute("id");
+            assertEquals(id, ((Element) p._2()).getAttribute("id"));
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Test public void matchesLongestCommonSubsequence() {
+        List<String> ids =
+            matchedIds(new SequenceNodeMatcher(BY_ID),
+                       records(1, 2, 3, 4, 5, 6, 7),
+                       records(0, 1, 3, 4, 8, 5, 6, 7, 9));
+        assertEquals(java.util.Arrays.asList("1", "3", "4", "5", "6", "7"),
+                     ids);
+    }
+
+    @Test public void preservesOrder() {
+        List<String> ids =
+            matchedIds(new SequenceNodeMatcher(BY_ID),
+                       records(1, 2, 3),
+                       records(3, 1, 2));
+        assertEquals(java.util.Arrays.asList("1", "2"), ids);
+    }
+
+    @Test public void handlesEmptyAndIdenticalLists() {
+        SequenceNodeMatcher m = new SequenceNodeMatcher(BY_ID);
+        assertEquals(0, matchedIds(m, records(), records(1, 2)).size());
+        assertEquals(0, matchedIds(m, records(1, 2), records()).size());
+        assertEquals(3, matchedIds(m, records(1, 2, 3),
+                                   records(1, 2, 3)).size());
+    }
+
+    @Test public void insertionAtStartOfLongListKeepsAllMatches() {
+        int[] control = new int[5000];
+        int[] test = new int[5002];
+        for (int i = 0; i < control.length; i++) {
+            control[i] = i + 1;
+            test[i + 1] = i + 1;
+        }
+        test[0] = -1;
+        test[5001] = -2;
+        List<Node> c = records(control);
+        List<Node> t = records(test);
+        List<Tuple2<Object, Object>> m = Linqy.asList(
+            new SequenceNodeMatcher(BY_ID).getIndexedMatches(c, t));
+        assertEquals(5000, m.size());
+        for (int i = 0; i < m.size(); i++) {
+            assertEquals(i, m.get(i)._1());
+            assertEquals(i + 1, m.get(i)._2());
+        }
+    }
+
+    @Test public void fallsBackToDefaultMatcherAfterMaxEdits() {
+        List<String> ids =
+            matchedIds(new SequenceNodeMatcher(BY_ID, 0),
+                       records(1, 2, 3),
+                       records(3, 1, 2));
+        assertEquals(java.util.Arrays.asList("1", "2", "3"), ids);
+    }
+
+    @Test public void matchesNonElementsByType() {
+        List<Node> control = new ArrayList<Node>();
+        control.add(doc.createTextNode("a"));
+        control.add(doc.createComment("b"));
+        List<Node> test = new ArrayList<Node>();
+        test.add(doc.createCDATASection("a"));
+        test.add(doc.createProcessingInstruction("c", "d"));
+        test.add(doc.createComment("b"));
+        List<Tuple2<Node, Node>> m =
+            Linqy.asList(new SequenceNodeMatcher().getMatches(control, test));
+        assertEquals(2, m.size());
+        assertSame(control.get(0), m.get(0)._1());
+        assertSame(test.get(0), m.get(0)._2());
+        assertSame(control.get(1), m.get(1)._1());
+        assertSame(test.get(2), m.get(1)._2());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.sf.xmlunit.builder.Input;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StAXDifferenceEngineTest extends AbstractDifferenceEngineTest {
+
+    @Override protected AbstractDifferenceEngine getDifferenceEngine() {
+        return new StAXDifferenceEngine();
+    }
+
+    private static class Recorder implements ComparisonListener {
+        private final List<String> comparisons = new ArrayList<String>();
+        private final List<String> lengths = new ArrayList<String>();
+        public void comparisonPerformed(Comparison comparison,
+                                        ComparisonResult outcome) {
+            String s = comparison.getType() + " "
+                + comparison.getControlDetails().getXPath() + " "
+                + comparison.getControlDetails().getValue() + " "
+                + comparison.getTestDetails().getXPath() + " "
+                + comparison.getTestDetails().getValue() + " "
+                + outcome;
+            if (comparison.getType() == ComparisonType.CHILD_NODELIST_LENGTH) {
+                lengths.add(s);
+            } else if (comparison.getType() == ComparisonType.CHILD_LOOKUP) {
+                // the values are nodes
+                comparisons.add(comparison.getType() + " "
+                                + comparison.getControlDetails().getXPath()
+                                + " "
+                                + comparison.getTestDetails().getXPath()
+                                + " " + outcome);
+            } else {
+                comparisons.add(s);
+            }
+        }
+    }
+
+    private static void assertSameComparisons(String control, String test) {
+        assertSameComparisons(control, test,
+                              scala.collection.immutable.Map$.MODULE$
+                              .<String, String>empty());
+    }
+
+    private static void assertSameComparisons(String control, String test,
+                                              scala.collection.immutable
+                                              .Map<String, String>
+                                              uri2Prefix) {
+        DOMDifferenceEngine dom = new DOMDifferenceEngine();
+        dom.setNodeMatcher(new PositionalNodeMatcher());
+        dom.setNamespaceContext(uri2Prefix);
+        Recorder expected = new Recorder();
+        dom.addComparisonListener(expected);
+        dom.compare(Input.fromMemory(control).build(),
+                    Input.fromMemory(test).build());
+
+        StAXDifferenceEngine stax = new StAXDifferenceEngine();
+        stax.setNamespaceContext(uri2Prefix);
+        Recorder actual = new Recorder();
+        stax.addComparisonListener(actual);
+        stax.compare(Input.fromMemory(control).build(),
+                     Input.fromMemory(test).build());
+
+        assertEquals(expected.comparisons, actual.comparisons);
+        Collections.sort(expected.lengths);
+        Collections.sort(actual.lengths);
+        assertEquals(expected.lengths, actual.lengths);
+    }
+
+    @Test public void sameComparisonsAsDOMForIdenticalDocuments() {
+        String doc = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<!DOCTYPE a [<!ATTLIST a d CDATA 'x'>]>"
+            + "<!-- c --><a xmlns='urn:a' xmlns:b='urn:b' b:x='1' y='2'>"
+            + "text<![CDATA[cdata]]><b:c>foo&amp;bar</b:c><?pi data?>"
+            + "<d><e/></d></a><!-- e -->";
+        assertSameComparisons(doc, doc);
+    }
+
+    @Test public void sameComparisonsAsDOMForDifferentDocuments() {
+        assertSameComparisons("<?xml version='1.0' standalone='yes'?>"
+                              + "<!DOCTYPE a [<!ATTLIST a d CDATA 'x'>]>"
+                              + "<a x='1' y='2' d='x'>"
+                              + "text<b><c/>foo</b><d>x</d><?pi data?>"
+                              + "<e><f/><f/></e><g/></a>",
+                              "<?xml version='1.0' encoding='UTF-8'?>"
+                              + "<a xmlns:p='urn:p' p:x='1' y='3' z='4'"
+                              + " xmlns:xsi="
+                              + "'http://www.w3.org/2001/XMLSchema-instance'"
+                              + " xsi:noNamespaceSchemaLocation='a.xsd'>"
+                              + "<![CDATA[text]]>bar<b><c/><!--foo--></b>"
+                              + "<p:d>y</p:d><?pi other?>"
+                              + "<e/><g><h/></g><i/><j>k</j></a>");
+    }
+
+    @Test public void sameComparisonsAsDOMWithNamespaceContext() {
+        String doc = "<a xmlns='urn:a' xmlns:c='urn:c' c:x='1' y='2'>"
+            + "<b/><c:b/><b>x</b><c:b c:z='3'/></a>";
+        assertSameComparisons(doc, doc.replace("'3'", "'4'"),
+                              new scala.collection.immutable.Map
+                              .Map1<String, String>("urn:a", "p"));
+    }
+
+    @Test public void usesNamespaceContextForXPaths() {
+        StAXDifferenceEngine d = new StAXDifferenceEngine();
+        d.setNamespaceContext(new scala.collection.immutable.Map
+                              .Map1<String, String>("urn:a", "p"));
+        Recorder r = new Recorder();
+        d.addDifferenceListener(r);
+        d.compare(Input.fromMemory("<a xmlns='urn:a'><b/><b>x</b></a>")
+                  .build(),
+                  Input.fromMemory("<a xmlns='urn:a'><b/><b>y</b></a>")
+                  .build());
+        assertEquals(1, r.comparisons.size());
+        assertEquals("TEXT_VALUE /p:a[1]/p:b[2]/text()[1] x"
+                     + " /p:a[1]/p:b[2]/text()[1] y DIFFERENT",
+                     r.comparisons.get(0));
+    }
+
+    @Test public void acceptsPositionalNodeMatcher() {
+        StAXDifferenceEngine d = new StAXDifferenceEngine();
+        assertTrue(d.getNodeMatcher() instanceof PositionalNodeMatcher);
+        d.setNodeMatcher(new PositionalNodeMatcher());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void shouldRejectOtherNodeMatchers() {
+        new StAXDifferenceEngine().setNodeMatcher(new DefaultNodeMatcher());
+    }
+
+    @Test public void stopsAtCriticalDifference() {
+        StAXDifferenceEngine d = new StAXDifferenceEngine();
+        d.setDifferenceEvaluator(DifferenceEvaluators.DefaultStopWhenDifferent);
+        Recorder r = new Recorder();
+        d.addDifferenceListener(r);
+        d.compare(Input.fromMemory("<a><b>x</b><c>y</c></a>").build(),
+                  Input.fromMemory("<a><b>z</b><c>w</c></a>").build());
+        assertEquals(1, r.comparisons.size());
+        assertEquals("TEXT_VALUE /a[1]/b[1]/text()[1] x"
+                     + " /a[1]/b[1]/text()[1] z CRITICAL",
+                     r.comparisons.get(0));
+    }
+
+    @Test public void verdicts() {
+        StAXDifferenceEngine d = new StAXDifferenceEngine();
+        assertTrue(d.isIdentical(Input.fromMemory("<a><b>x</b></a>").build(),
+                                 Input.fromMemory("<a><b>x</b></a>").build()));
+        assertTrue(d.isSimilar(Input.fromMemory("<a>x</a>").build(),
+                               Input.fromMemory("<a><![CDATA[x]]></a>")
+                               .build()));
+        assertFalse(d.isSimilar(Input.fromMemory("<a>x</a>").build(),
+                                Input.fromMemory("<a>y</a>").build()));
+    }
+
+    @Test public void handlesWideDocuments() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<item n='").append(i).append("'>").append(i)
+                .append("</item>");
+        }
+        String doc = sb.append("</root>").toString();
+        assertTrue(new StAXDifferenceEngine()
+                   .isIdentical(Input.fromMemory(doc).build(),
+                                Input.fromMemory(doc).build()));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+  This file is licensed to You under the Apache License, Version 2.0
+  (the "License"); you may not use this file except in compliance with
+  the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package net.sf.xmlunit.diff;
+
+import java.util.IdentityHashMap;
+import net.sf.xmlunit.builder.Input;
+import net.sf.xmlunit.util.Convert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import static org.junit.Assert.*;
+
+public class SubtreeFingerprinterTest {
+
+    private static long fingerprint(SubtreeFingerprinter f, String xml) {
+        Document d = Convert.toDocument(Input.fromMemory(xml).build());
+        return f.getFingerprint(d, new IdentityHashMap<Node, Long>());
+    }
+
+    private static void assertSame(SubtreeFingerprinter f, String xml1,
+                                   String xml2) {
+        assertEquals(fingerprint(f, xml1), fingerprint(f, xml2));
+    }
+
+    private static void assertDifferent(SubtreeFingerprinter f, String xml1,
+                                        String xml2) {
+        assertFalse(fingerprint(f, xml1) == fingerprint(f, xml2));
+    }
+
+    @Test public void identicalDocuments() {
+        assertSame(SubtreeFingerprinter.Identical(),
+                   "<a b='1'><c>text</c><!-- x --><?pi data?></a>",
+                   "<a b='1'><c>text</c><!-- x --><?pi data?></a>");
+    }
+
+    @Test public void attributeOrderDoesntMatter() {
+        assertSame(SubtreeFingerprinter.Identical(),
+                   "<a b='1' c='2'/>", "<a c='2' b='1'/>");
+    }
+
+    @Test public void childOrderMatters() {
+        assertDifferent(SubtreeFingerprinter.Identical(),
+                        "<a><b/><c/></a>", "<a><c/><b/></a>");
+    }
+
+    @Test public void differencesAnywhereInTheTree() {
+        SubtreeFingerprinter f = SubtreeFingerprinter.Identical();
+        assertDifferent(f, "<a><b><c>x</c></b></a>", "<a><b><c>y</c></b></a>");
+        assertDifferent(f, "<a><b><c d='1'/></b></a>",
+                        "<a><b><c d='2'/></b></a>");
+        assertDifferent(f, "<a><b><c/></b></a>", "<a><b><d/></b></a>");
+        assertDifferent(f, "<a><!-- x --></a>", "<a><!-- y --></a>");
+        assertDifferent(f, "<a><?x y?></a>", "<a><?x z?></a>");
+        assertDifferent(f, "<a>Aa</a>", "<a>BB</a>");
+    }
+
+    @Test public void similarIgnoresPrefixAndCDATA() {
+        String p1 = "<p1:a xmlns:p1='urn:x'><![CDATA[foo]]></p1:a>";
+        String p2 = "<p2:a xmlns:p2='urn:x'>foo</p2:a>";
+        assertDifferent(SubtreeFingerprinter.Identical(), p1, p2);
+        assertSame(SubtreeFingerprinter.Similar(), p1, p2);
+        assertDifferent(SubtreeFingerprinter.Similar(), p1,
+                        "<p2:a xmlns:p2='urn:y'>foo</p2:a>");
+    }
+}
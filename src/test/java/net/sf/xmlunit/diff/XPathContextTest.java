@@ -76,6 +76,26 @@ public class XPathContextTest {
         assertEquals("/foo[3]", ctx.getXPath());
     }
 
+    @Test public void appendChildrenOneByOne() {
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(this.singleton(new Text()));
+        for (int i = 0; i < 1000; i++) {
+            ctx.appendChildren(this.singleton(new Element("foo")));
+            ctx.appendChildren(this.singleton(new Comment()));
+            ctx.appendChildren(this.singleton(new CDATA()));
+        }
+        ctx.navigateToChild(2999);
+        assertEquals("/comment()[1000]", ctx.getXPath());
+        ctx.navigateToParent();
+        ctx.navigateToChild(3000);
+        assertEquals("/text()[1001]", ctx.getXPath());
+        ctx.navigateToParent();
+
+        ctx.setChildren(this.singleton(new Element("foo")));
+        ctx.navigateToChild(0);
+        assertEquals("/foo[1]", ctx.getXPath());
+    }
+
     @Test public void twoLevelsOfElements() {
         ArrayList<Element> l = new ArrayList<Element>();
         l.add(new Element("foo"));
@@ -181,6 +201,67 @@ public class XPathContextTest {
         ctx.navigateToParent();
     }
 
+    @Test public void xPathsAreComputedOnceAndStayValid() {
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(this.singleton(new Element("foo")));
+        ctx.navigateToChild(0);
+        ctx.setChildren(this.singleton(new Element("bar")));
+        ctx.navigateToChild(0);
+        String xpath = ctx.getXPath();
+        assertEquals("/foo[1]/bar[1]", xpath);
+        assertSame(xpath, ctx.getXPath());
+        ctx.navigateToParent();
+        assertEquals("/foo[1]", ctx.getXPath());
+        ctx.navigateToChild(0);
+        assertSame(xpath, ctx.getXPath());
+    }
+
+    @Test public void ancestorsRememberTheirXPaths() {
+        XPathContext ctx = new XPathContext();
+        ctx.setChildren(this.singleton(new Element("foo")));
+        ctx.navigateToChild(0);
+        XPathContext.Level foo = ctx.getCurrentLevel();
+        ctx.setChildren(this.singleton(new Element("bar")));
+        ctx.navigateToChild(0);
+        assertNull(foo.getKnownXPath());
+        assertEquals("/foo[1]/bar[1]", ctx.getXPath());
+        assertEquals("/foo[1]", foo.getKnownXPath());
+    }
+
+    @Test public void deepPathsOnlyRememberCheckpoints() {
+        XPathContext ctx = new XPathContext();
+        ArrayList<XPathContext.Level> levels =
+            new ArrayList<XPathContext.Level>();
+        for (int i = 0; i < 1000; i++) {
+            ctx.setChildren(this.singleton(new Element("a")));
+            ctx.navigateToChild(0);
+            levels.add(ctx.getCurrentLevel());
+        }
+        ctx.getXPath();
+        int known = 0;
+        for (XPathContext.Level l : levels) {
+            String xpath = l.getKnownXPath();
+            if (xpath != null && xpath.length()
+                > XPathContext.MAX_CACHED_LENGTH) {
+                known++;
+            }
+        }
+        // 5 characters per level, the checkpoints are 32 levels apart
+        assertTrue(known > 0);
+        assertTrue(known < 1000 / XPathContext.CHECKPOINT_DISTANCE + 2);
+    }
+
+    @Test public void deepPaths() {
+        XPathContext ctx = new XPathContext();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            ctx.setChildren(this.singleton(new Element("a")));
+            ctx.navigateToChild(0);
+            expected.append("/a[1]");
+        }
+        assertEquals(expected.toString(), ctx.getXPath());
+    }
+
     private static class Element implements XPathContext.NodeInfo {
         private final QName name;
         private Element(String name) {